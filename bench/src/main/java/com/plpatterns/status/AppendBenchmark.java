@@ -0,0 +1,79 @@
+package com.plpatterns.status;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Logging an event through the appender to everyone listening.
+ * <p>
+ * {@link #doAppend()} is what log4j calls, and is synchronized on the
+ * appender, so adding threads mostly measures that lock.
+ * {@link #deliver()} skips it, to show how the delivery path itself
+ * scales.  Both include making the LoggingEvent, as log4j would.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppendBenchmark {
+
+  @Param({"1", "100", "1000", "10000"})
+  public int conversations;
+
+  /** 0 sends every event; the others throttle nearly all of them. */
+  @Param({"0", "1000", "600000"})
+  public long throttleMillis;
+
+  @Param({"string", "callable"})
+  public String message;
+
+  /** Work per packet sent, standing in for the socket. */
+  @Param({"0"})
+  public long sendCpuTokens;
+
+  private BenchAppender _appender;
+  private Logger _logger;
+  private Object _message;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    _appender = BenchAppender.start(conversations, throttleMillis, sendCpuTokens);
+    _logger = Logger.getLogger("status.bench.AppendBenchmark");
+    String body = "processed 1234 of 5678 records";
+    _message = "callable".equals(message) ? BenchAppender.callable(body) : body;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    _appender.close();
+  }
+
+  @Benchmark
+  public void doAppend() {
+    _appender.doAppend(BenchAppender.event(_logger, _message));
+  }
+
+  @Benchmark
+  public void deliver() {
+    _appender.deliver(BenchAppender.event(_logger, _message));
+  }
+
+}
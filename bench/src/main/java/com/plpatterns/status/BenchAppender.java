@@ -0,0 +1,85 @@
+package com.plpatterns.status;
+
+import java.util.concurrent.Callable;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.jivesoftware.smack.Chat;
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.XMPPConnection;
+
+/**
+ * An {@link XmppAppender} logged in over a {@link StubConnection}, with
+ * as many people listening as a benchmark wants.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class BenchAppender extends XmppAppender {
+
+  public static final String FQCN = Logger.class.getName();
+
+  private final long _sendCpuTokens;
+
+  public BenchAppender(long sendCpuTokens) {
+    super(new ConnectionConfiguration("localhost", 5222), "status", "secret", "bench");
+    _sendCpuTokens = sendCpuTokens;
+    setName("bench");
+  }
+
+  @Override
+  protected XMPPConnection createConnection(ConnectionConfiguration conConfig) {
+    return new StubConnection(_sendCpuTokens);
+  }
+
+  public StubConnection getStubConnection() {
+    return (StubConnection)getConnection();
+  }
+
+  /**
+   * Connects and starts conversations with people named
+   * "observer0@localhost" and up, each throttled to the given interval.
+   */
+  public static BenchAppender start(int conversations, long throttleMillis, long sendCpuTokens) {
+    BenchAppender appender = new BenchAppender(sendCpuTokens);
+    appender.setMaxConversations(Math.max(conversations, 1));
+    appender.connect();
+    if (!appender.isLoggedIn()) {
+      throw new IllegalStateException("stub connection didn't log in");
+    }
+
+    for (int i = 0; i < conversations; i++) {
+      Conversation convo = appender.addObserver("observer" + i + "@localhost");
+      convo.setMinMillisecondsBetweenMessages(throttleMillis);
+    }
+    return appender;
+  }
+
+  /**
+   * Starts a conversation the way an incoming IM would, without the IM.
+   */
+  public Conversation addObserver(String participant) {
+    Chat chat = getConnection().getChatManager().createChat(participant, null);
+    return getConversationRegistry().register(chat).getConversation();
+  }
+
+  /**
+   * An INFO event like a call to {@code logger.info(message)} would make.
+   */
+  public static LoggingEvent event(Logger logger, Object message) {
+    return new LoggingEvent(FQCN, logger, Level.INFO, message, null);
+  }
+
+  /**
+   * A message that's rendered lazily, the way the README suggests for
+   * expensive status.
+   */
+  public static Callable<String> callable(final String body) {
+    return new Callable<String>() {
+      public String call() {
+        return body;
+      }
+    };
+  }
+
+}
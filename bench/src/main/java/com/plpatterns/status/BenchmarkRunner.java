@@ -0,0 +1,35 @@
+package com.plpatterns.status;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with 1 to 64 logging threads and the GC profiler,
+ * so each result has throughput, tail latency, and allocation rate.  Any
+ * arguments are passed on to JMH, like a benchmark name regex or "-p
+ * conversations=1000".
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class BenchmarkRunner {
+
+  private static final int[] THREADS = {1, 4, 16, 64};
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    CommandLineOptions cmdLine = new CommandLineOptions(args);
+    for (int threads : THREADS) {
+      Options opts = new OptionsBuilder()
+              .parent(cmdLine)
+              .threads(threads)
+              .addProfiler(GCProfiler.class)
+              .build();
+      new Runner(opts).run();
+    }
+  }
+
+}
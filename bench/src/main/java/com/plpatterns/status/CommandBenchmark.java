@@ -0,0 +1,61 @@
+package com.plpatterns.status;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.packet.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Answering an IM command, from parsing it to sending the reply.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandBenchmark {
+
+  @Param({"status", "every 5 seconds", "watch status.billing.*", "gibberish"})
+  public String command;
+
+  @Param({"1", "1000"})
+  public int conversations;
+
+  private BenchAppender _appender;
+  private Conversation _convo;
+  private Message _message;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    _appender = BenchAppender.start(conversations, 0, 0);
+    _convo = _appender.getConversations().get(0);
+    _message = new Message(_convo.getChat().getParticipant(), Message.Type.chat);
+    _message.setBody(command);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    _appender.close();
+  }
+
+  @Benchmark
+  public void reactToIm() {
+    _convo.reactToIm(false, _message, _appender);
+  }
+
+}
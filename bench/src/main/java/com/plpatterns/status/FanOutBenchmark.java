@@ -0,0 +1,91 @@
+package com.plpatterns.status;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.Chat;
+import org.jivesoftware.smack.packet.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building and serializing one message for everyone listening, the way
+ * {@link Chat#sendMessage(String)} does it versus with a
+ * {@link FanOutMessage}.  Nothing is sent; this is just the XML.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+
+  @Param({"1", "50", "1000"})
+  public int recipients;
+
+  @Param({"40", "200"})
+  public int bodyLength;
+
+  private BenchAppender _appender;
+  private Chat[] _chats;
+  private String[][] _frames;
+  private String _body;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    _appender = BenchAppender.start(recipients, 0, 0);
+    List<Conversation> convos = _appender.getConversations();
+    _chats = new Chat[convos.size()];
+    _frames = new String[convos.size()][];
+    for (int i = 0; i < _chats.length; i++) {
+      _chats[i] = convos.get(i).getChat();
+      _frames[i] = FanOutMessage.frameFor(_chats[i]);
+    }
+
+    StringBuilder body = new StringBuilder();
+    while (body.length() < bodyLength) body.append("Done <42%> & counting... ");
+    _body = body.substring(0, bodyLength);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    _appender.close();
+  }
+
+  @Benchmark
+  public long messagePerRecipient() {
+    long bytes = 0;
+    for (Chat chat : _chats) {
+      Message msg = new Message(chat.getParticipant(), Message.Type.chat);
+      msg.setThread(chat.getThreadID());
+      msg.setBody(_body);
+      bytes += msg.toXML().length();
+    }
+    return bytes;
+  }
+
+  @Benchmark
+  public long fanOut() {
+    long bytes = 0;
+    FanOutMessage fanOut = new FanOutMessage(_body);
+    for (int i = 0; i < _chats.length; i++) {
+      bytes += fanOut.packetFor(_chats[i], _frames[i]).toXML().length();
+    }
+    return bytes;
+  }
+
+}
@@ -0,0 +1,660 @@
+package com.plpatterns.status;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.util.StringUtils;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Just enough of an XMPP server, on the loopback interface, to run the
+ * appender against for load and soak tests without a real account.  It
+ * speaks SASL PLAIN (any password works), resource binding, sessions,
+ * rosters, presence and chat messages, which is all Smack needs, plus
+ * joining and talking in multi-user chat rooms on {@value #MUC_DOMAIN}.
+ * <p>
+ * Real clients, like the appender, connect over sockets and are served by
+ * one NIO thread.  Everyone else is a {@link SimulatedClient}, which lives
+ * in memory and can be made slow, lossy, or flaky.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class LoopbackXmppServer {
+
+  private static final Log LOG = LogFactory.getLog(LoopbackXmppServer.class);
+
+  public static final String DOMAIN = "localhost";
+  public static final String MUC_DOMAIN = "conference." + DOMAIN;
+
+  private static final String SASL_NS = "urn:ietf:params:xml:ns:xmpp-sasl";
+  private static final String BIND_NS = "urn:ietf:params:xml:ns:xmpp-bind";
+  private static final String SESSION_NS = "urn:ietf:params:xml:ns:xmpp-session";
+  private static final String ROSTER_NS = "jabber:iq:roster";
+  private static final String MUC_USER_NS = "http://jabber.org/protocol/muc#user";
+
+  private final Map<String, SimulatedClient> _clients = new ConcurrentHashMap<String, SimulatedClient>();
+  private final List<Session> _sessions = new CopyOnWriteArrayList<Session>();
+  private final Queue<Session> _dirty = new ConcurrentLinkedQueue<Session>();
+
+  /** Simulated clients in each room, by room JID. */
+  private final Map<String, List<SimulatedClient>> _rooms =
+    new ConcurrentHashMap<String, List<SimulatedClient>>();
+  private final AtomicLong _roomMessages = new AtomicLong();
+
+  private final AtomicLong _stanzasIn = new AtomicLong();
+  private final AtomicLong _stanzasOut = new AtomicLong();
+  private final AtomicLong _streamId = new AtomicLong();
+
+  private ServerSocketChannel _server;
+  private Selector _selector;
+  private Thread _thread;
+  private volatile boolean _running;
+  private DocumentBuilder _parser;
+
+  /** Delivers to and from simulated clients after their link latency. */
+  private final ScheduledExecutorService _links = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "loopback-links");
+              t.setDaemon(true);
+              return t;
+            }
+          });
+
+  /**
+   * Starts listening on an ephemeral port on 127.0.0.1.
+   */
+  public synchronized void start() throws IOException {
+    if (_running) return;
+
+    try {
+      _parser = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+    }
+    catch (Exception e) {
+      throw new IOException("no XML parser: " + e);
+    }
+    _selector = Selector.open();
+    _server = ServerSocketChannel.open();
+    _server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+    _server.configureBlocking(false);
+    _server.register(_selector, SelectionKey.OP_ACCEPT);
+
+    _running = true;
+    _thread = new Thread(new Runnable() {
+      public void run() {
+        serve();
+      }
+    }, "loopback-xmpp");
+    _thread.setDaemon(true);
+    _thread.start();
+    LOG.info("loopback XMPP server listening on port " + getPort());
+  }
+
+  public synchronized void stop() {
+    if (!_running) return;
+
+    _running = false;
+    _selector.wakeup();
+    try {
+      _thread.join(5000);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    _links.shutdownNow();
+  }
+
+  public int getPort() {
+    return _server.socket().getLocalPort();
+  }
+
+  /**
+   * Settings for an appender to connect here.  TLS and compression are
+   * off since we don't speak them.
+   */
+  public ConnectionConfiguration getConnectionConfiguration() {
+    ConnectionConfiguration config = new ConnectionConfiguration("127.0.0.1", getPort(), DOMAIN);
+    config.setSecurityMode(ConnectionConfiguration.SecurityMode.disabled);
+    config.setCompressionEnabled(false);
+    return config;
+  }
+
+  /**
+   * Makes a simulated client named {@code name@localhost}, who'll be on
+   * everyone's roster and starts out online.
+   */
+  public SimulatedClient addClient(String name) {
+    SimulatedClient client = new SimulatedClient(this, name + "@" + DOMAIN);
+    _clients.put(client.getBareJid(), client);
+    return client;
+  }
+
+  public List<SimulatedClient> getClients() {
+    return new ArrayList<SimulatedClient>(_clients.values());
+  }
+
+  /**
+   * Puts a simulated client in a room, like {@code status@conference.localhost},
+   * so they get everything said there.
+   */
+  public synchronized void addToRoom(String roomJid, SimulatedClient client) {
+    List<SimulatedClient> occupants = _rooms.get(roomJid);
+    if (occupants == null) {
+      occupants = new CopyOnWriteArrayList<SimulatedClient>();
+      _rooms.put(roomJid, occupants);
+    }
+    occupants.add(client);
+  }
+
+  /** Messages real clients have sent to rooms. */
+  public long getRoomMessages() {
+    return _roomMessages.get();
+  }
+
+  /** How many sockets are open. */
+  public int getSessionCount() {
+    return _sessions.size();
+  }
+
+  public long getStanzasIn() {
+    return _stanzasIn.get();
+  }
+
+  public long getStanzasOut() {
+    return _stanzasOut.get();
+  }
+
+  /**
+   * Drops every socket, as if the network went away.  Clients have to
+   * reconnect and log in again.
+   */
+  public void disconnectAll() {
+    for (Session session : _sessions) {
+      session._closeRequested = true;
+      _dirty.add(session);
+    }
+    _selector.wakeup();
+  }
+
+  /**
+   * A simulated client says something to whoever's logged in as
+   * {@code toBareJid}.  Called once the client's link has had its way
+   * with it.
+   */
+  void fromClient(SimulatedClient client, String toBareJid, String body) {
+    String stanza = "<message from='" + escape(client.getFullJid()) + "' to='" + escape(toBareJid)
+                    + "' type='chat'><body>" + escape(body) + "</body></message>";
+    for (Session session : _sessions) {
+      if (session._available && toBareJid.equals(session._bareJid)) {
+        session.send(stanza);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Tells every logged in session that a simulated client came or went.
+   */
+  void presenceChanged(SimulatedClient client) {
+    for (Session session : _sessions) {
+      if (session._available) session.send(presenceOf(client));
+    }
+  }
+
+  void schedule(Runnable task, long delayMillis) {
+    if (delayMillis <= 0) {
+      _links.execute(task);
+    }
+    else {
+      _links.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void serve() {
+    List<String> stanzas = new ArrayList<String>();
+    while (_running) {
+      try {
+        _selector.select();
+
+        Session dirty;
+        while ((dirty = _dirty.poll()) != null) {
+          if (dirty._closeRequested) {
+            close(dirty);
+          }
+          else {
+            flush(dirty);
+          }
+        }
+
+        Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) continue;
+
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          Session session = (Session)key.attachment();
+          if (key.isWritable()) flush(session);
+          if (key.isValid() && key.isReadable()) {
+            stanzas.clear();
+            if (!read(session, stanzas)) {
+              close(session);
+              continue;
+            }
+            for (String stanza : stanzas) {
+              _stanzasIn.incrementAndGet();
+              handle(session, stanza);
+            }
+          }
+        }
+      }
+      catch (IOException e) {
+        LOG.warn("loopback server error", e);
+      }
+    }
+
+    for (Session session : _sessions) {
+      close(session);
+    }
+    try {
+      _server.close();
+      _selector.close();
+    }
+    catch (IOException e) {
+      LOG.debug("error closing loopback server", e);
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = _server.accept();
+    if (channel == null) return;
+
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    Session session = new Session(channel);
+    session._key = channel.register(_selector, SelectionKey.OP_READ, session);
+    _sessions.add(session);
+  }
+
+  /** @return false at end of stream. */
+  private boolean read(Session session, List<String> stanzas) {
+    try {
+      int n = session._channel.read(session._in);
+      if (n < 0) return false;
+
+      session._in.flip();
+      session._reader.read(session._in, stanzas);
+      session._in.compact();
+      return true;
+    }
+    catch (IOException e) {
+      return false;
+    }
+  }
+
+  private void flush(Session session) {
+    if (!session._key.isValid()) return;
+
+    try {
+      ByteBuffer buf;
+      while ((buf = session._out.peek()) != null) {
+        session._channel.write(buf);
+        if (buf.hasRemaining()) {
+          session._key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          return;
+        }
+        session._out.poll();
+      }
+      session._key.interestOps(SelectionKey.OP_READ);
+    }
+    catch (IOException e) {
+      close(session);
+    }
+  }
+
+  private void close(Session session) {
+    _sessions.remove(session);
+    session._available = false;
+    session._key.cancel();
+    try {
+      session._channel.close();
+    }
+    catch (IOException e) {
+      LOG.debug("error closing session", e);
+    }
+  }
+
+  private void handle(Session session, String stanza) {
+    if (stanza == StanzaReader.STREAM_OPEN) {
+      session.send("<?xml version='1.0'?><stream:stream xmlns='jabber:client'"
+                   + " xmlns:stream='http://etherx.jabber.org/streams' id='" + _streamId.incrementAndGet()
+                   + "' from='" + DOMAIN + "' version='1.0'>");
+      if (session._user == null) {
+        session.send("<stream:features><mechanisms xmlns='" + SASL_NS + "'>"
+                     + "<mechanism>PLAIN</mechanism></mechanisms></stream:features>");
+      }
+      else {
+        session._restarted = true;
+        session.send("<stream:features><bind xmlns='" + BIND_NS + "'/>"
+                     + "<session xmlns='" + SESSION_NS + "'/></stream:features>");
+        for (String early : session._early) {
+          handle(session, early);
+        }
+        session._early.clear();
+      }
+      return;
+    }
+    if (stanza == StanzaReader.STREAM_CLOSE) {
+      session.send("</stream:stream>");
+      session._closeRequested = true;
+      _dirty.add(session);
+      return;
+    }
+
+    // When Smack logs back in on a reconnect, it can ask to bind before
+    // reopening the stream.  Answering right away would confuse it.
+    if (session._user != null && !session._restarted) {
+      session._early.add(stanza);
+      return;
+    }
+
+    Element element;
+    try {
+      element = _parser.parse(new InputSource(new StringReader(stanza))).getDocumentElement();
+    }
+    catch (Exception e) {
+      LOG.warn("couldn't parse stanza: " + stanza, e);
+      return;
+    }
+
+    String name = element.getTagName();
+    if ("auth".equals(name)) {
+      handleAuth(session, element);
+    }
+    else if ("iq".equals(name)) {
+      handleIq(session, element);
+    }
+    else if ("presence".equals(name)) {
+      handlePresence(session, element);
+    }
+    else if ("message".equals(name)) {
+      handleMessage(session, element);
+    }
+  }
+
+  private void handleAuth(Session session, Element auth) {
+    // PLAIN is authzid NUL authcid NUL password.
+    String user = null;
+    try {
+      byte[] decoded = StringUtils.decodeBase64(auth.getTextContent().trim());
+      String[] parts = new String(decoded, "UTF-8").split("\u0000");
+      if (parts.length >= 2) user = parts[1];
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    catch (RuntimeException e) {
+      LOG.debug("bad PLAIN credentials", e);
+    }
+
+    if (user == null || user.length() == 0) {
+      session.send("<failure xmlns='" + SASL_NS + "'><not-authorized/></failure>");
+      return;
+    }
+    // Smack sends just the node, but other clients send the whole address.
+    session._user = user.contains("@") ? user.substring(0, user.indexOf('@')) : user;
+    session.send("<success xmlns='" + SASL_NS + "'/>");
+  }
+
+  private void handleIq(Session session, Element iq) {
+    String id = iq.getAttribute("id");
+    String type = iq.getAttribute("type");
+    if (!"get".equals(type) && !"set".equals(type)) return;
+
+    Element query = firstChildElement(iq);
+    String ns = (query == null) ? "" : query.getAttribute("xmlns");
+    if (BIND_NS.equals(ns)) {
+      String resource = childText(query, "resource");
+      if (resource == null || resource.length() == 0) resource = "loopback" + _streamId.incrementAndGet();
+      session._bareJid = session._user + "@" + DOMAIN;
+      session._fullJid = session._bareJid + "/" + resource;
+      session.send("<iq type='result' id='" + escape(id) + "'><bind xmlns='" + BIND_NS + "'><jid>"
+                   + escape(session._fullJid) + "</jid></bind></iq>");
+    }
+    else if (ROSTER_NS.equals(ns) && "get".equals(type)) {
+      StringBuilder sb = new StringBuilder("<iq type='result' id='").append(escape(id))
+              .append("' to='").append(escape(session._fullJid)).append("'><query xmlns='")
+              .append(ROSTER_NS).append("'>");
+      for (SimulatedClient client : _clients.values()) {
+        sb.append("<item jid='").append(escape(client.getBareJid())).append("' subscription='both'/>");
+      }
+      session.send(sb.append("</query></iq>").toString());
+    }
+    else {
+      // Sessions, and anything else we don't know, just succeed.
+      session.send("<iq type='result' id='" + escape(id) + "'/>");
+    }
+  }
+
+  private void handlePresence(Session session, Element presence) {
+    String to = presence.getAttribute("to");
+    if (to.endsWith("@" + MUC_DOMAIN) || to.contains("@" + MUC_DOMAIN + "/")) {
+      handleRoomPresence(session, presence, to);
+      return;
+    }
+
+    String type = presence.getAttribute("type");
+    if (type.length() > 0 && !"available".equals(type)) {
+      session._available = false;
+      return;
+    }
+    if (session._available) return;
+
+    // Tell them who's around.
+    session._available = true;
+    for (SimulatedClient client : _clients.values()) {
+      session.send(presenceOf(client));
+    }
+  }
+
+  /**
+   * Joining or leaving a room.  Anyone can join any room, and is told
+   * they're its owner.
+   */
+  private void handleRoomPresence(Session session, Element presence, String to) {
+    String room = StringUtils.parseBareAddress(to);
+    String nickname = StringUtils.parseResource(to);
+    if ("unavailable".equals(presence.getAttribute("type"))) {
+      session._nicknames.remove(room);
+      session.send("<presence from='" + escape(to) + "' to='" + escape(session._fullJid)
+                   + "' type='unavailable'/>");
+      return;
+    }
+
+    session._nicknames.put(room, nickname);
+    String self = "<x xmlns='" + MUC_USER_NS + "'><item affiliation='owner' role='moderator'/>"
+                  + "<status code='110'/></x>";
+    List<SimulatedClient> occupants = _rooms.get(room);
+    if (occupants != null) {
+      for (SimulatedClient client : occupants) {
+        session.send("<presence from='" + escape(room + "/" + StringUtils.parseName(client.getBareJid()))
+                     + "' to='" + escape(session._fullJid) + "'><x xmlns='" + MUC_USER_NS
+                     + "'><item affiliation='member' role='participant'/></x></presence>");
+      }
+    }
+    session.send("<presence from='" + escape(to) + "' to='" + escape(session._fullJid) + "'>"
+                 + self + "</presence>");
+  }
+
+  /**
+   * Something said in a room goes to every simulated client in it, and
+   * back to the sender, as real rooms do.
+   */
+  private void handleRoomMessage(Session session, String room, String body) {
+    String nickname = session._nicknames.get(room);
+    if (nickname == null) {
+      session.send("<message from='" + escape(room) + "' to='" + escape(session._fullJid)
+                   + "' type='error'><error code='406' type='modify'>"
+                   + "<not-acceptable xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/></error></message>");
+      return;
+    }
+
+    _roomMessages.incrementAndGet();
+    List<SimulatedClient> occupants = _rooms.get(room);
+    if (occupants != null) {
+      for (SimulatedClient client : occupants) {
+        client.deliver(body);
+      }
+    }
+    session.send("<message from='" + escape(room + "/" + nickname) + "' to='" + escape(session._fullJid)
+                 + "' type='groupchat'><body>" + escape(body) + "</body></message>");
+  }
+
+  private void handleMessage(Session session, Element message) {
+    String to = message.getAttribute("to");
+    String body = childText(message, "body");
+    if (body == null) return;
+
+    String bareJid = StringUtils.parseBareAddress(to);
+    if ("groupchat".equals(message.getAttribute("type"))) {
+      handleRoomMessage(session, bareJid, body);
+      return;
+    }
+
+    SimulatedClient client = _clients.get(bareJid);
+    if (client != null) {
+      client.deliver(body);
+      return;
+    }
+
+    // Pass it along to a real client.
+    for (Session other : _sessions) {
+      if (other._available && bareJid.equals(other._bareJid)) {
+        other.send("<message from='" + escape(session._fullJid) + "' to='" + escape(to)
+                   + "' type='chat'><body>" + escape(body) + "</body></message>");
+        return;
+      }
+    }
+  }
+
+  private String presenceOf(SimulatedClient client) {
+    return "<presence from='" + escape(client.getFullJid()) + "'"
+           + (client.isOnline() ? "" : " type='unavailable'") + "/>";
+  }
+
+  private static Element firstChildElement(Element parent) {
+    for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n instanceof Element) return (Element)n;
+    }
+    return null;
+  }
+
+  private static String childText(Element parent, String name) {
+    NodeList nodes = parent.getElementsByTagName(name);
+    return (nodes.getLength() == 0) ? null : nodes.item(0).getTextContent();
+  }
+
+  static String escape(String s) {
+    if (s == null) return "";
+    StringBuilder sb = null;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      String entity;
+      switch (c) {
+        case '<': entity = "&lt;"; break;
+        case '>': entity = "&gt;"; break;
+        case '&': entity = "&amp;"; break;
+        case '\'': entity = "&apos;"; break;
+        case '"': entity = "&quot;"; break;
+        default: entity = null;
+      }
+      if (entity == null) {
+        if (sb != null) sb.append(c);
+        continue;
+      }
+      if (sb == null) sb = new StringBuilder(s.length() + 16).append(s, 0, i);
+      sb.append(entity);
+    }
+    return (sb == null) ? s : sb.toString();
+  }
+
+  /**
+   * One socket.  Only the server thread reads or writes it; anyone can
+   * {@link #send} to it.
+   */
+  private class Session {
+
+    private final SocketChannel _channel;
+    private final ByteBuffer _in = ByteBuffer.allocate(16 * 1024);
+    private final StanzaReader _reader = new StanzaReader();
+    private final Queue<ByteBuffer> _out = new ConcurrentLinkedQueue<ByteBuffer>();
+    private SelectionKey _key;
+
+    private String _user;
+    /** Whether the stream's been reopened since SASL succeeded. */
+    private boolean _restarted;
+    private final List<String> _early = new ArrayList<String>();
+    private String _bareJid;
+    private String _fullJid;
+    private volatile boolean _available;
+    private volatile boolean _closeRequested;
+    /** Our nickname in each room we've joined. */
+    private final Map<String, String> _nicknames = new ConcurrentHashMap<String, String>();
+
+    Session(SocketChannel channel) {
+      _channel = channel;
+    }
+
+    void send(String xml) {
+      try {
+        _out.add(ByteBuffer.wrap(xml.getBytes("UTF-8")));
+      }
+      catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+      _stanzasOut.incrementAndGet();
+
+      if (Thread.currentThread() == _thread) {
+        flush(this);
+      }
+      else {
+        _dirty.add(this);
+        _selector.wakeup();
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,157 @@
+package com.plpatterns.status;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Someone on a {@link LoopbackXmppServer} who isn't really connected.
+ * They can IM the appender, go offline and come back, and have a link
+ * that's slow, lossy, or both.  Everything they get is counted, and any
+ * IM with a "t=" nanoTime stamp in it from this JVM is timed end to end.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class SimulatedClient {
+
+  private static final String STAMP = "t=";
+
+  private final LoopbackXmppServer _server;
+  private final String _bareJid;
+  private final String _fullJid;
+  private final Random _random;
+
+  private volatile long _latencyMillis;
+  private volatile double _lossRate;
+  private volatile boolean _online = true;
+
+  private final AtomicLong _received = new AtomicLong();
+  private final AtomicLong _lost = new AtomicLong();
+  private volatile LatencyHistogram _deliveryLatency = new LatencyHistogram();
+
+  SimulatedClient(LoopbackXmppServer server, String bareJid) {
+    _server = server;
+    _bareJid = bareJid;
+    _fullJid = bareJid + "/sim";
+    _random = new Random(bareJid.hashCode());
+  }
+
+  public String getBareJid() {
+    return _bareJid;
+  }
+
+  public String getFullJid() {
+    return _fullJid;
+  }
+
+  public long getLatencyMillis() {
+    return _latencyMillis;
+  }
+
+  /** Delay each way on this client's link. */
+  public void setLatencyMillis(long latencyMillis) {
+    _latencyMillis = Math.max(0, latencyMillis);
+  }
+
+  public double getLossRate() {
+    return _lossRate;
+  }
+
+  /** Fraction of IMs lost each way, from 0 to 1. */
+  public void setLossRate(double lossRate) {
+    _lossRate = Math.max(0, Math.min(1, lossRate));
+  }
+
+  public boolean isOnline() {
+    return _online;
+  }
+
+  /**
+   * Goes offline or comes back, telling everyone logged in.
+   */
+  public void setOnline(boolean online) {
+    if (_online == online) return;
+    _online = online;
+    _server.presenceChanged(this);
+  }
+
+  /**
+   * IMs whoever's logged in as {@code toBareJid}, like the appender.
+   */
+  public void say(final String toBareJid, final String body) {
+    if (!_online) return;
+    if (isLost()) return;
+
+    _server.schedule(new Runnable() {
+      public void run() {
+        _server.fromClient(SimulatedClient.this, toBareJid, body);
+      }
+    }, _latencyMillis);
+  }
+
+  /** IMs received, after losses. */
+  public long getReceived() {
+    return _received.get();
+  }
+
+  /** IMs lost on the way to us. */
+  public long getLost() {
+    return _lost.get();
+  }
+
+  /** From logging to our receiving it, for IMs stamped with "t=". */
+  public LatencyHistogram getDeliveryLatency() {
+    return _deliveryLatency;
+  }
+
+  /**
+   * Shares one histogram across clients, so a soak test can look at
+   * everyone at once.
+   */
+  public void setDeliveryLatency(LatencyHistogram histogram) {
+    _deliveryLatency = histogram;
+  }
+
+  /** An IM to us arrived at the server. */
+  void deliver(final String body) {
+    if (isLost()) {
+      _lost.incrementAndGet();
+      return;
+    }
+
+    _server.schedule(new Runnable() {
+      public void run() {
+        received(body);
+      }
+    }, _latencyMillis);
+  }
+
+  private void received(String body) {
+    _received.incrementAndGet();
+
+    // Digests and coalesced IMs may have several stamps; time the last.
+    int i = body.lastIndexOf(STAMP);
+    if (i < 0) return;
+    int start = i + STAMP.length();
+    int end = start;
+    if (end < body.length() && body.charAt(end) == '-') end++; // nanoTime can be negative.
+    while (end < body.length() && Character.isDigit(body.charAt(end))) end++;
+    if (end == start || !Character.isDigit(body.charAt(end - 1))) return;
+    try {
+      _deliveryLatency.recordSince(Long.parseLong(body.substring(start, end)));
+    }
+    catch (NumberFormatException e) {
+      // Not one of ours.
+    }
+  }
+
+  private boolean isLost() {
+    double lossRate = _lossRate;
+    return lossRate > 0 && _random.nextDouble() < lossRate;
+  }
+
+  @Override
+  public String toString() {
+    return _fullJid;
+  }
+
+}
@@ -0,0 +1,217 @@
+package com.plpatterns.status;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the appender against a {@link LoopbackXmppServer} for as long as
+ * you like, with simulated people IMing it commands, some on slow or
+ * lossy links, some going offline and coming back, and the whole
+ * connection dropping now and then.  Every so often it prints delivery
+ * latency from logging to receipt, what the appender's been doing, and
+ * heap used after a GC, and at the end how fast the heap grew.
+ * <p>
+ * Settings are name=value arguments:
+ * <ul>
+ * <li>minutes: how long to run (60)</li>
+ * <li>observers: simulated people (100)</li>
+ * <li>rate: events logged per second (200)</li>
+ * <li>every: seconds each person asks to throttle to (1)</li>
+ * <li>slow: fraction of people with a 500 ms link (0.1)</li>
+ * <li>lossy: fraction of people losing 5% of IMs (0.1)</li>
+ * <li>flap: fraction of people who go offline or come back each report (0.05)</li>
+ * <li>commands: commands per second across everyone (5)</li>
+ * <li>dropEvery: minutes between dropping every connection, or 0 (10)</li>
+ * <li>report: seconds between reports (60)</li>
+ * <li>async: whether the appender sends from its own thread (true)</li>
+ * <li>room: people who listen in a broadcast room instead of IMing, or 0 (0)</li>
+ * <li>errors: fraction of events logged at ERROR instead of INFO (0)</li>
+ * <li>sendRate: IMs per second the appender may send, or 0 for no limit (0)</li>
+ * </ul>
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class SoakTest {
+
+  private static final String APPENDER_USER = "status";
+  private static final String ROOM = "status@" + LoopbackXmppServer.MUC_DOMAIN;
+
+  private static final String[] COMMANDS = {
+    "status", "stats", "every 1 s", "every 5 s", "set level warn", "watch status.soak.*",
+    "unwatch", "filter seq", "filter off", "stop", "start", "coalesce"
+  };
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> settings = parse(args);
+    long minutes = Long.parseLong(get(settings, "minutes", "60"));
+    int observers = Integer.parseInt(get(settings, "observers", "100"));
+    double rate = Double.parseDouble(get(settings, "rate", "200"));
+    long every = Long.parseLong(get(settings, "every", "1"));
+    double slow = Double.parseDouble(get(settings, "slow", "0.1"));
+    double lossy = Double.parseDouble(get(settings, "lossy", "0.1"));
+    double flap = Double.parseDouble(get(settings, "flap", "0.05"));
+    double commandRate = Double.parseDouble(get(settings, "commands", "5"));
+    long dropEveryMillis = (long)(Double.parseDouble(get(settings, "dropEvery", "10")) * 60 * 1000);
+    long reportSeconds = Long.parseLong(get(settings, "report", "60"));
+    boolean async = Boolean.parseBoolean(get(settings, "async", "true"));
+    int roomMembers = Integer.parseInt(get(settings, "room", "0"));
+    double errors = Double.parseDouble(get(settings, "errors", "0"));
+    double sendRate = Double.parseDouble(get(settings, "sendRate", "0"));
+
+    LoopbackXmppServer server = new LoopbackXmppServer();
+    server.start();
+
+    LatencyHistogram latency = new LatencyHistogram();
+    Random random = new Random(42);
+    String appenderJid = APPENDER_USER + "@" + LoopbackXmppServer.DOMAIN;
+    for (int i = 0; i < observers; i++) {
+      SimulatedClient client = server.addClient("observer" + i);
+      client.setDeliveryLatency(latency);
+      if (random.nextDouble() < slow) client.setLatencyMillis(500);
+      if (random.nextDouble() < lossy) client.setLossRate(0.05);
+    }
+    for (int i = 0; i < roomMembers; i++) {
+      SimulatedClient member = server.addClient("member" + i);
+      member.setDeliveryLatency(latency);
+      server.addToRoom(ROOM, member);
+    }
+
+    XmppAppender appender = new XmppAppender(server.getConnectionConfiguration(),
+            APPENDER_USER, "secret", "soak");
+    appender.setName("soak");
+    appender.setAsync(async);
+    appender.setMaxConversations(observers);
+    appender.setReconnectInitialDelayMillis(100);
+    appender.setReconnectMaxDelayMillis(5000);
+    appender.setSendRatePerSecond(sendRate);
+    if (roomMembers > 0) {
+      appender.setBroadcastRoom(ROOM);
+      appender.setBroadcastIntervalMillis(every * 1000);
+    }
+    appender.connect();
+    if (!appender.isLoggedIn()) {
+      throw new IllegalStateException("couldn't log in to the loopback server");
+    }
+
+    Logger logger = Logger.getLogger("status.soak.SoakTest");
+    logger.setAdditivity(false);
+    logger.setLevel(Level.INFO);
+    logger.addAppender(appender);
+
+    // Everyone says hi, then throttles to the same interval.  Room members
+    // just listen.
+    List<SimulatedClient> clients = new ArrayList<SimulatedClient>();
+    for (SimulatedClient client : server.getClients()) {
+      if (client.getBareJid().startsWith("observer")) clients.add(client);
+    }
+    for (SimulatedClient client : clients) {
+      client.say(appenderJid, "hi");
+      client.say(appenderJid, "every " + every + " s");
+    }
+
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    long startMillis = System.currentTimeMillis();
+    long endMillis = startMillis + minutes * 60 * 1000;
+    long nextReport = startMillis + reportSeconds * 1000;
+    long nextDrop = (dropEveryMillis > 0) ? startMillis + dropEveryMillis : Long.MAX_VALUE;
+    double commandChance = commandRate / Math.max(rate, 1);
+    long firstHeap = -1;
+    long lastHeap = 0;
+    long seq = 0;
+    long nanosPerEvent = (long)(1e9 / Math.max(rate, 0.001));
+    long nextEventNanos = System.nanoTime();
+
+    System.out.println("soak: " + observers + " observers, " + rate + " events/s, " + minutes + " min");
+    while (System.currentTimeMillis() < endMillis) {
+      long now = System.nanoTime();
+      if (now < nextEventNanos) {
+        long sleepNanos = nextEventNanos - now;
+        Thread.sleep(sleepNanos / 1000000, (int)(sleepNanos % 1000000));
+        continue;
+      }
+      nextEventNanos += nanosPerEvent;
+
+      if (errors > 0 && random.nextDouble() < errors) {
+        logger.error("seq=" + (seq++) + " t=" + System.nanoTime());
+      }
+      else {
+        logger.info("seq=" + (seq++) + " t=" + System.nanoTime());
+      }
+
+      if (random.nextDouble() < commandChance) {
+        SimulatedClient client = clients.get(random.nextInt(clients.size()));
+        client.say(appenderJid, COMMANDS[random.nextInt(COMMANDS.length)]);
+      }
+
+      long nowMillis = System.currentTimeMillis();
+      if (nowMillis >= nextDrop) {
+        System.out.println("soak: dropping all connections");
+        server.disconnectAll();
+        nextDrop += dropEveryMillis;
+      }
+      if (nowMillis >= nextReport) {
+        nextReport += reportSeconds * 1000;
+        for (SimulatedClient client : clients) {
+          if (random.nextDouble() < flap) client.setOnline(!client.isOnline());
+        }
+
+        System.gc();
+        long heap = memory.getHeapMemoryUsage().getUsed();
+        if (firstHeap < 0) firstHeap = heap;
+        lastHeap = heap;
+        report(nowMillis - startMillis, seq, clients, latency, heap, appender, server);
+      }
+    }
+
+    double hours = (System.currentTimeMillis() - startMillis) / 3600000d;
+    System.out.println(String.format("soak: done after %.2f h; heap after GC went from %d KB to %d KB (%.0f KB/h)",
+            hours, firstHeap / 1024, lastHeap / 1024,
+            (hours > 0 && firstHeap >= 0) ? (lastHeap - firstHeap) / 1024d / hours : 0d));
+
+    logger.removeAppender(appender);
+    appender.close();
+    server.stop();
+  }
+
+  private static void report(long elapsedMillis, long logged, List<SimulatedClient> clients,
+          LatencyHistogram latency, long heap, XmppAppender appender, LoopbackXmppServer server) {
+    long received = 0;
+    long lost = 0;
+    int online = 0;
+    for (SimulatedClient client : clients) {
+      received += client.getReceived();
+      lost += client.getLost();
+      if (client.isOnline()) online++;
+    }
+    System.out.println(String.format("soak: %s in, logged %d, IMs received %d, lost %d, online %d/%d, sessions %d, room messages %d, heap %d KB%n"
+                                     + "delivery: %s%n%s",
+            Utils.formatPeriod(elapsedMillis), logged, received, lost, online, clients.size(),
+            server.getSessionCount(), server.getRoomMessages(), heap / 1024,
+            latency.toHumanReadableString(),
+            appender.getStats().toHumanReadableString()));
+  }
+
+  private static Map<String, String> parse(String[] args) {
+    Map<String, String> settings = new HashMap<String, String>();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq <= 0) throw new IllegalArgumentException("expected name=value: " + arg);
+      settings.put(arg.substring(0, eq), arg.substring(eq + 1));
+    }
+    return settings;
+  }
+
+  private static String get(Map<String, String> settings, String name, String defaultValue) {
+    String value = settings.get(name);
+    return (value == null) ? defaultValue : value;
+  }
+
+}
@@ -0,0 +1,132 @@
+package com.plpatterns.status;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Splits an incoming XMPP stream into top-level stanzas, as bytes arrive.
+ * It only understands as much XML as clients like Smack send: it tracks
+ * element depth, skips the XML declaration, and respects quoted attribute
+ * values, but doesn't validate anything.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class StanzaReader {
+
+  /** What {@link #read} hands back for the opening {@code <stream:stream>}. */
+  public static final String STREAM_OPEN = "<stream:stream>";
+
+  /** What {@link #read} hands back for {@code </stream:stream>}. */
+  public static final String STREAM_CLOSE = "</stream:stream>";
+
+  private final CharsetDecoder _decoder = Charset.forName("UTF-8").newDecoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private final CharBuffer _chars = CharBuffer.allocate(4096);
+  private final StringBuilder _text = new StringBuilder();
+
+  /** Where to resume scanning {@link #_text}. */
+  private int _pos;
+  /** 0 outside the stream, 1 between stanzas. */
+  private int _depth;
+  private int _stanzaStart = -1;
+
+  /**
+   * Takes more bytes off the wire and adds any stanzas they complete to
+   * {@code out}.  Bytes of a character split across reads are left in
+   * {@code bytes}, so compact it rather than clearing it.
+   */
+  public void read(ByteBuffer bytes, List<String> out) {
+    CoderResult result;
+    do {
+      result = _decoder.decode(bytes, _chars, false);
+      _chars.flip();
+      _text.append(_chars);
+      _chars.clear();
+    } while (result.isOverflow());
+    scan(out);
+  }
+
+  private void scan(List<String> out) {
+    while (true) {
+      int lt = _text.indexOf("<", _pos);
+      if (lt < 0) {
+        if (_stanzaStart < 0) discard(_text.length());
+        return;
+      }
+      int gt = findTagEnd(lt);
+      if (gt < 0) return; // Tag isn't all here yet.
+
+      char c = (lt + 1 < _text.length()) ? _text.charAt(lt + 1) : 0;
+      _pos = gt + 1;
+      if (c == '?' || c == '!') {
+        // XML declaration or comment.
+      }
+      else if (c == '/') {
+        _depth--;
+        if (_depth == 0) {
+          out.add(STREAM_CLOSE);
+        }
+        else if (_depth == 1 && _stanzaStart >= 0) {
+          out.add(_text.substring(_stanzaStart, _pos));
+          _stanzaStart = -1;
+        }
+      }
+      else if (_text.charAt(gt - 1) == '/') {
+        // Self-closing.
+        if (_depth == 1) out.add(_text.substring(lt, _pos));
+      }
+      else if (_depth == 0 || isStreamTag(lt)) {
+        // Clients open a new stream after SASL, without closing the old one.
+        _depth = 1;
+        _stanzaStart = -1;
+        out.add(STREAM_OPEN);
+      }
+      else {
+        if (_depth == 1) _stanzaStart = lt;
+        _depth++;
+      }
+
+      if (_stanzaStart < 0) discard(_pos);
+    }
+  }
+
+  private boolean isStreamTag(int lt) {
+    String name = "stream:stream";
+    if (lt + 1 + name.length() > _text.length()) return false;
+    for (int i = 0; i < name.length(); i++) {
+      if (_text.charAt(lt + 1 + i) != name.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  /** Index of the tag's closing '>', skipping quoted values, or -1. */
+  private int findTagEnd(int lt) {
+    char quote = 0;
+    for (int i = lt + 1; i < _text.length(); i++) {
+      char c = _text.charAt(i);
+      if (quote != 0) {
+        if (c == quote) quote = 0;
+      }
+      else if (c == '"' || c == '\'') {
+        quote = c;
+      }
+      else if (c == '>') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Drops text we're done with, so the buffer doesn't grow forever. */
+  private void discard(int upTo) {
+    _text.delete(0, upTo);
+    _pos -= upTo;
+  }
+
+}
@@ -0,0 +1,92 @@
+package com.plpatterns.status;
+
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.Roster;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.Packet;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * An {@link XMPPConnection} that never touches the network.  It's always
+ * connected and logged in, and sending a packet just counts it, optionally
+ * burning some CPU to stand in for a real socket write.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class StubConnection extends XMPPConnection {
+
+  private final long _sendCpuTokens;
+  private final StripedCounter _sent = new StripedCounter();
+  private volatile boolean _loggedIn;
+  private volatile String _user;
+
+  /**
+   * @param sendCpuTokens work to do per packet sent, in
+   *                      {@link Blackhole#consumeCPU} tokens.
+   */
+  public StubConnection(long sendCpuTokens) {
+    // Giving a host keeps Smack from looking up SRV records.
+    super(new ConnectionConfiguration("localhost", 5222));
+    _sendCpuTokens = sendCpuTokens;
+  }
+
+  public long getSentCount() {
+    return _sent.sum();
+  }
+
+  @Override
+  public void connect() {
+    // Nothing to connect to.
+  }
+
+  @Override
+  public boolean isConnected() {
+    return true;
+  }
+
+  @Override
+  public void login(String username, String password, String resource) {
+    _user = username + "@localhost/" + resource;
+    _loggedIn = true;
+  }
+
+  @Override
+  public boolean isAuthenticated() {
+    return _loggedIn;
+  }
+
+  @Override
+  public String getUser() {
+    return _user;
+  }
+
+  @Override
+  public Roster getRoster() {
+    return null;
+  }
+
+  @Override
+  public void sendPacket(Packet packet) {
+    if (_sendCpuTokens > 0) Blackhole.consumeCPU(_sendCpuTokens);
+    _sent.increment();
+  }
+
+  @Override
+  public void addPacketListener(PacketListener listener, PacketFilter filter) {
+    // Nothing will ever arrive.
+  }
+
+  @Override
+  public void addConnectionListener(ConnectionListener listener) {
+    // We never drop.
+  }
+
+  @Override
+  public void disconnect() {
+    _loggedIn = false;
+  }
+
+}
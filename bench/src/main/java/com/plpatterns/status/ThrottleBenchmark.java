@@ -0,0 +1,64 @@
+package com.plpatterns.status;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One conversation's throttle, checked by every logging thread at once.
+ * This is the check nearly every event stops at.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThrottleBenchmark {
+
+  @Param({"0", "1", "1000", "600000"})
+  public long throttleMillis;
+
+  private BenchAppender _appender;
+  private Conversation _convo;
+  private LoggingEvent _event;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    _appender = BenchAppender.start(1, throttleMillis, 0);
+    _convo = _appender.getConversations().get(0);
+    _event = BenchAppender.event(Logger.getLogger("status.bench.ThrottleBenchmark"), "tick");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    _appender.close();
+  }
+
+  @Benchmark
+  public boolean shouldNotify() {
+    return _convo.shouldNotify(_event);
+  }
+
+  @Benchmark
+  public boolean claimNotification() {
+    return _convo.shouldNotify(_event) && _convo.claimNotification(_event) != null;
+  }
+
+}
@@ -0,0 +1,137 @@
+package com.plpatterns.status;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+
+/**
+ * Picks a throttle interval for "every auto" from how busy things are.
+ * When events are rare the interval stays near the minimum, so the few
+ * there are get through; as the rate climbs it stretches toward the
+ * maximum.  A larger share of warnings and errors pulls it back down,
+ * since that's when people want to hear more.
+ * <p>
+ * The rate is an exponentially decaying count of events, with debug
+ * events counting half.  Recording an event is one atomic add; whoever
+ * records next without contention folds the adds in and recomputes the
+ * interval, so nothing is lost and nothing allocates.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class AdaptiveThrottle {
+
+  public static final long DEFAULT_MIN_MILLIS = 10 * 1000L;
+  public static final long DEFAULT_MAX_MILLIS = 10 * 60 * 1000L;
+
+  /** How long it takes an event's weight to decay to 1/e. */
+  private static final double DECAY_SECONDS = 60d;
+
+  /** Weights are fixed-point with this many units per event. */
+  private static final long UNIT = 2;
+
+  private final long _minMillis;
+  private final long _maxMillis;
+
+  /** Rate, in events per second, at which we're halfway to the maximum. */
+  private final double _halfwayRate;
+
+  private final AtomicLong _pending = new AtomicLong();
+  private final AtomicLong _pendingSevere = new AtomicLong();
+  private final AtomicBoolean _folding = new AtomicBoolean();
+
+  // Guarded by _folding.
+  private double _weight;
+  private double _severeWeight;
+  private long _lastFoldNanos;
+
+  private volatile double _rate;
+  private volatile double _severeShare;
+  private volatile long _intervalMillis;
+
+  public AdaptiveThrottle(long minMillis, long maxMillis) {
+    if (minMillis <= 0 || maxMillis < minMillis) {
+      throw new IllegalArgumentException("bad bounds: " + minMillis + " to " + maxMillis);
+    }
+    _minMillis = minMillis;
+    _maxMillis = maxMillis;
+    // At one event per minimum interval, we'd send them all; that's busy.
+    _halfwayRate = 1000d / minMillis;
+    _intervalMillis = minMillis;
+    _lastFoldNanos = System.nanoTime();
+  }
+
+  public long getMinMillis() {
+    return _minMillis;
+  }
+
+  public long getMaxMillis() {
+    return _maxMillis;
+  }
+
+  /**
+   * An event came in for this conversation.
+   *
+   * @param nowNanos {@link System#nanoTime()}, read once per event by the
+   *                 caller and shared across conversations.
+   */
+  public void record(Level level, long nowNanos) {
+    long weight = level.isGreaterOrEqual(Level.INFO) ? UNIT : UNIT / 2;
+    _pending.addAndGet(weight);
+    if (level.isGreaterOrEqual(Level.WARN)) _pendingSevere.addAndGet(weight);
+
+    if (_folding.compareAndSet(false, true)) {
+      try {
+        fold(nowNanos);
+      }
+      finally {
+        _folding.set(false);
+      }
+    }
+  }
+
+  /** The interval to throttle to right now. */
+  public long getIntervalMillis() {
+    return _intervalMillis;
+  }
+
+  /** Weighted events per second, decayed. */
+  public double getRate() {
+    return _rate;
+  }
+
+  /** Fraction of recent events at WARN or above. */
+  public double getSevereShare() {
+    return _severeShare;
+  }
+
+  /** Assumes {@link #_folding} is held. */
+  private void fold(long nowNanos) {
+    long elapsed = nowNanos - _lastFoldNanos;
+    if (elapsed > 0) {
+      double decay = Math.exp(-elapsed / (DECAY_SECONDS * TimeUnit.SECONDS.toNanos(1)));
+      _weight *= decay;
+      _severeWeight *= decay;
+      _lastFoldNanos = nowNanos;
+    }
+    _weight += (double)_pending.getAndSet(0) / UNIT;
+    _severeWeight += (double)_pendingSevere.getAndSet(0) / UNIT;
+
+    double rate = _weight / DECAY_SECONDS;
+    double severeShare = (_weight > 0) ? Math.min(1d, _severeWeight / _weight) : 0d;
+    double busy = rate / (rate + _halfwayRate);
+    _rate = rate;
+    _severeShare = severeShare;
+    _intervalMillis = _minMillis + Math.round((_maxMillis - _minMillis) * busy * (1d - severeShare));
+  }
+
+  /**
+   * Like "auto, 10 seconds to 10 minutes, now 45 seconds".
+   */
+  public String toHumanReadableString() {
+    return "auto, " + Utils.formatPeriod(_minMillis) + " to " + Utils.formatPeriod(_maxMillis)
+           + ", now " + Utils.formatPeriod(getIntervalMillis());
+  }
+
+}
@@ -0,0 +1,260 @@
+package com.plpatterns.status;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Counters and latencies for an {@link XmppAppender}, gathered cheaply on
+ * the logging path and shown by the "stats" IM command and over JMX.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class AppenderStats implements AppenderStatsMBean {
+
+  private static final Log LOG = LogFactory.getLog(AppenderStats.class);
+
+  private static final double NANOS_PER_MILLI = 1e6d;
+
+  private final XmppAppender _appender;
+
+  private final StripedCounter _appended = new StripedCounter();
+  private final StripedCounter _rendered = new StripedCounter();
+  private final StripedCounter _skippedEvaluations = new StripedCounter();
+  private final StripedCounter _whileDisconnected = new StripedCounter();
+
+  private ObjectName _objectName;
+
+  public AppenderStats(XmppAppender appender) {
+    _appender = appender;
+  }
+
+  void appended() {
+    _appended.increment();
+  }
+
+  void rendered() {
+    _rendered.increment();
+  }
+
+  void skippedEvaluation() {
+    _skippedEvaluations.increment();
+  }
+
+  /** Kept apart from skipped evaluations, which are about throttling. */
+  void whileDisconnected() {
+    _whileDisconnected.increment();
+  }
+
+  /** Counts across all conversations. */
+  public DeliveryStats getTotals() {
+    return _appender.getConversationRegistry().getTotals();
+  }
+
+  public long getEventsAppended() {
+    return _appended.sum();
+  }
+
+  public long getEventsRendered() {
+    return _rendered.sum();
+  }
+
+  public long getSkippedEvaluations() {
+    return _skippedEvaluations.sum();
+  }
+
+  public long getEventsWhileDisconnected() {
+    return _whileDisconnected.sum();
+  }
+
+  public long getReceived() {
+    return getTotals().getReceived();
+  }
+
+  public long getSent() {
+    return getTotals().getSent();
+  }
+
+  public long getFailed() {
+    return getTotals().getFailed();
+  }
+
+  public long getThrottled() {
+    return getTotals().getThrottled();
+  }
+
+  public long getPaused() {
+    return getTotals().getPaused();
+  }
+
+  public long getFiltered() {
+    return getTotals().getFiltered();
+  }
+
+  public long getHeld() {
+    return getTotals().getHeld();
+  }
+
+  public double getSendLatencyP50Millis() {
+    return getTotals().getSendLatency().getPercentileNanos(50) / NANOS_PER_MILLI;
+  }
+
+  public double getSendLatencyP99Millis() {
+    return getTotals().getSendLatency().getPercentileNanos(99) / NANOS_PER_MILLI;
+  }
+
+  public double getSendLatencyMaxMillis() {
+    return getTotals().getSendLatency().getMaxNanos() / NANOS_PER_MILLI;
+  }
+
+  public double getEventLagP50Millis() {
+    return getTotals().getEventLag().getPercentileNanos(50) / NANOS_PER_MILLI;
+  }
+
+  public double getEventLagP99Millis() {
+    return getTotals().getEventLag().getPercentileNanos(99) / NANOS_PER_MILLI;
+  }
+
+  public int getConversationCount() {
+    return _appender.getConversationRegistry().size();
+  }
+
+  public String[] getConversationStats() {
+    List<Conversation> convos = _appender.getConversations();
+    String[] lines = new String[convos.size()];
+    for (int i = 0; i < lines.length; i++) {
+      Conversation convo = convos.get(i);
+      lines[i] = convo.getChat().getParticipant() + ": " + convo.getStats().toHumanReadableString();
+    }
+    return lines;
+  }
+
+  public String getConnectionState() {
+    return String.valueOf(_appender.getConnectionState());
+  }
+
+  public long getReconnects() {
+    return _appender.getConnectionSupervisor().getReconnects();
+  }
+
+  public int getAsyncQueueSize() {
+    return _appender.getAsyncQueueSize();
+  }
+
+  public long getAsyncDropped() {
+    return _appender.getDroppedCount();
+  }
+
+  public long getAsyncFailed() {
+    return _appender.getFailedCount();
+  }
+
+  public int getCommandQueueDepth() {
+    CommandExecutor commands = _appender.getCommandExecutorIfStarted();
+    return (commands == null) ? 0 : commands.getQueueDepth();
+  }
+
+  public int getOfflineBacklogSize() {
+    OfflineBacklog backlog = _appender.getOfflineBacklogIfStarted();
+    return (backlog == null) ? 0 : backlog.size();
+  }
+
+  public int getSendQueueDepth() {
+    SendScheduler scheduler = _appender.getSendSchedulerIfStarted();
+    return (scheduler == null) ? 0 : scheduler.getDepth();
+  }
+
+  public long getSendShed() {
+    SendScheduler scheduler = _appender.getSendSchedulerIfStarted();
+    return (scheduler == null) ? 0L : scheduler.getShed();
+  }
+
+  public String[] getSendLanes() {
+    SendScheduler scheduler = _appender.getSendSchedulerIfStarted();
+    if (scheduler == null) return new String[0];
+
+    SendScheduler.Lane[] lanes = SendScheduler.Lane.values();
+    String[] lines = new String[lanes.length];
+    for (int i = 0; i < lanes.length; i++) {
+      lines[i] = scheduler.toHumanReadableString(lanes[i]);
+    }
+    return lines;
+  }
+
+  public void resetLatencies() {
+    getTotals().getSendLatency().reset();
+    getTotals().getEventLag().reset();
+  }
+
+  /**
+   * For the "stats" IM command.
+   */
+  public String toHumanReadableString() {
+    DeliveryStats totals = getTotals();
+    return String.format("events: appended %d, rendered %d, never rendered %d, while disconnected %d%n" +
+            "everyone: %s%n" +
+            "send latency: %s%n" +
+            "event to IM: %s%n" +
+            "connection: %s, %d reconnects%n" +
+            "async queue: %d, dropped %d, failed %d%n" +
+            "commands waiting: %d, offline backlog: %d",
+            getEventsAppended(), getEventsRendered(), getSkippedEvaluations(),
+            getEventsWhileDisconnected(),
+            totals.toHumanReadableString(),
+            totals.getSendLatency().toHumanReadableString(),
+            totals.getEventLag().toHumanReadableString(),
+            getConnectionState(), getReconnects(),
+            getAsyncQueueSize(), getAsyncDropped(), getAsyncFailed(),
+            getCommandQueueDepth(), getOfflineBacklogSize())
+           + formatSendScheduler()
+           + formatBroadcastRoom();
+  }
+
+  private String formatSendScheduler() {
+    SendScheduler scheduler = _appender.getSendSchedulerIfStarted();
+    return (scheduler == null) ? "" : String.format("%nsend rate: %s", scheduler.toHumanReadableString());
+  }
+
+  private String formatBroadcastRoom() {
+    BroadcastRoom room = _appender.getBroadcastRoomIfStarted();
+    return (room == null) ? "" : String.format("%nroom: %s", room.toHumanReadableString());
+  }
+
+  /**
+   * Registers with the platform MBean server, if we haven't already.
+   */
+  synchronized void register(String name) {
+    if (_objectName != null) return;
+
+    try {
+      ObjectName objectName = new ObjectName("com.plpatterns.status:type=XmppAppender,name="
+              + ObjectName.quote(name));
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (!server.isRegistered(objectName)) {
+        server.registerMBean(this, objectName);
+        _objectName = objectName;
+      }
+    }
+    catch (Exception e) {
+      LOG.warn("couldn't register stats with JMX", e);
+    }
+  }
+
+  synchronized void unregister() {
+    if (_objectName == null) return;
+
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(_objectName);
+    }
+    catch (Exception e) {
+      LOG.debug("couldn't unregister stats from JMX", e);
+    }
+    _objectName = null;
+  }
+
+}
@@ -0,0 +1,75 @@
+package com.plpatterns.status;
+
+/**
+ * What an {@link XmppAppender} has been doing, for JMX consoles.  Latencies
+ * are in milliseconds.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public interface AppenderStatsMBean {
+
+  long getEventsAppended();
+
+  long getEventsRendered();
+
+  long getSkippedEvaluations();
+
+  /** Events that came in while we weren't logged in, buffered or dropped. */
+  long getEventsWhileDisconnected();
+
+  long getReceived();
+
+  long getSent();
+
+  long getFailed();
+
+  long getThrottled();
+
+  long getPaused();
+
+  long getFiltered();
+
+  long getHeld();
+
+  double getSendLatencyP50Millis();
+
+  double getSendLatencyP99Millis();
+
+  double getSendLatencyMaxMillis();
+
+  double getEventLagP50Millis();
+
+  double getEventLagP99Millis();
+
+  int getConversationCount();
+
+  /** One line per conversation, with its counts. */
+  String[] getConversationStats();
+
+  String getConnectionState();
+
+  long getReconnects();
+
+  int getAsyncQueueSize();
+
+  long getAsyncDropped();
+
+  long getAsyncFailed();
+
+  int getCommandQueueDepth();
+
+  int getOfflineBacklogSize();
+
+  /** IMs waiting on the send rate, across lanes. */
+  int getSendQueueDepth();
+
+  /** IMs shed because the send rate couldn't keep up. */
+  long getSendShed();
+
+  /** Waiting, sent and shed for each send lane. */
+  String[] getSendLanes();
+
+  /** Starts the latency histograms over. */
+  void resetLatencies();
+
+}
@@ -0,0 +1,196 @@
+package com.plpatterns.status;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Decouples logging threads from the network.  Logged events are put on a
+ * bounded {@link RingBuffer} and a single daemon thread takes them off and
+ * hands them to {@link XmppAppender#deliver(LoggingEvent)}, which does the
+ * actual IMing.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class AsyncSender {
+
+  private static final Log LOG = LogFactory.getLog(AsyncSender.class);
+
+  /** Upper bound on how long the sender sleeps when it has nothing to do. */
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  /** How long a blocked logging thread sleeps between retries. */
+  private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+  private final XmppAppender _appender;
+  private final RingBuffer<LoggingEvent> _queue;
+  private final OverflowPolicy _overflowPolicy;
+  private final long _blockTimeoutNanos;
+  private final Thread _thread;
+
+  private volatile boolean _running = true;
+  private volatile boolean _parked = false;
+
+  private final AtomicLong _enqueued = new AtomicLong();
+  private final AtomicLong _processed = new AtomicLong();
+  private final AtomicLong _failed = new AtomicLong();
+  private final AtomicLong _dropped = new AtomicLong();
+
+  public AsyncSender(XmppAppender appender, int capacity,
+          OverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+    _appender = appender;
+    _queue = new RingBuffer<LoggingEvent>(capacity);
+    _overflowPolicy = overflowPolicy;
+    _blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+
+    _thread = new Thread(new Runnable() {
+      public void run() {
+        drain();
+      }
+    }, "status-async-sender");
+    _thread.setDaemon(true);
+    _thread.start();
+  }
+
+  /**
+   * Queues an event for delivery, applying the overflow policy when the
+   * queue is full.
+   *
+   * @return false if the event was dropped.
+   */
+  public boolean enqueue(LoggingEvent event) {
+    if (!_running) {
+      _dropped.incrementAndGet();
+      return false;
+    }
+
+    boolean queued = _queue.offer(event);
+    if (!queued) {
+      switch (_overflowPolicy) {
+        case DROP_OLDEST:
+          // Keep making room until our event fits.  Other producers may be
+          // doing the same, so each dropped event is counted by whoever
+          // removed it.
+          while (!queued) {
+            if (_queue.poll() != null) _dropped.incrementAndGet();
+            queued = _queue.offer(event);
+          }
+          break;
+
+        case BLOCK:
+          long deadline = System.nanoTime() + _blockTimeoutNanos;
+          while (!queued && System.nanoTime() - deadline < 0) {
+            wakeSender();
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            queued = _queue.offer(event);
+          }
+          break;
+
+        default:
+          break;
+      }
+    }
+
+    if (!queued) {
+      _dropped.incrementAndGet();
+      return false;
+    }
+
+    _enqueued.incrementAndGet();
+    wakeSender();
+    return true;
+  }
+
+  /**
+   * Stops accepting events, gives the sender thread up to the given time to
+   * drain what is already queued, and then stops it.
+   */
+  public void shutdown(long timeoutMillis) {
+    _running = false;
+    LockSupport.unpark(_thread);
+    try {
+      _thread.join(timeoutMillis);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    // Anything still queued is lost.
+    while (_queue.poll() != null) {
+      _dropped.incrementAndGet();
+    }
+  }
+
+  private void wakeSender() {
+    if (_parked) LockSupport.unpark(_thread);
+  }
+
+  private void drain() {
+    while (true) {
+      LoggingEvent event = _queue.poll();
+      if (event == null) {
+        if (!_running) return;
+
+        // Announce that we're going to sleep before checking the queue one
+        // last time, so a producer can't slip an event in unnoticed.
+        _parked = true;
+        if (_queue.isEmpty() && _running) {
+          LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        _parked = false;
+        continue;
+      }
+
+      boolean delivered;
+      try {
+        delivered = _appender.deliver(event);
+      }
+      catch (Throwable t) {
+        LOG.warn("failed delivering logging event", t);
+        delivered = false;
+      }
+      if (!delivered) _failed.incrementAndGet();
+      _processed.incrementAndGet();
+    }
+  }
+
+  public int getCapacity() {
+    return _queue.capacity();
+  }
+
+  public int getQueueSize() {
+    return _queue.size();
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return _overflowPolicy;
+  }
+
+  /** Number of events accepted onto the queue. */
+  public long getEnqueuedCount() {
+    return _enqueued.get();
+  }
+
+  /**
+   * Number of events taken off the queue and handed to the appender,
+   * whether or not anyone ended up being sent them.
+   */
+  public long getProcessedCount() {
+    return _processed.get();
+  }
+
+  /** Number of processed events that failed to send to someone. */
+  public long getFailedCount() {
+    return _failed.get();
+  }
+
+  /** Number of events thrown away because the queue was full or closed. */
+  public long getDroppedCount() {
+    return _dropped.get();
+  }
+
+}
@@ -0,0 +1,205 @@
+package com.plpatterns.status;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+import org.jivesoftware.smack.SmackConfiguration;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smackx.muc.DiscussionHistory;
+import org.jivesoftware.smackx.muc.MultiUserChat;
+
+/**
+ * A multi-user chat room that gets every update, sent once no matter how
+ * many people are in it.  Sending to each person privately costs a stanza
+ * per person, and servers rate-limit that; a team channel should cost one.
+ * People who want their own settings can still IM the appender privately.
+ * <p>
+ * The room has one throttle for everyone in it, like a conversation's
+ * "every", and WARN and above always get through.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class BroadcastRoom {
+
+  private static final Log LOG = LogFactory.getLog(BroadcastRoom.class);
+
+  public static final long DEFAULT_MIN_MILLIS_BETWEEN_MESSAGES = 30 * 1000L;
+
+  private static final long NEVER = Long.MIN_VALUE;
+
+  private final String _room;
+  private final String _nickname;
+  private final long _minMillisBetweenMessages;
+  private final Level _alwaysNotifyAtLevel = Level.WARN;
+
+  private final AtomicLong _lastSentNanos = new AtomicLong(NEVER);
+  private final DeliveryStats _stats;
+
+  /** The room on the current connection, or null if we're not in it. */
+  private volatile MultiUserChat _muc;
+
+  private volatile SendScheduler _sendScheduler;
+
+  /**
+   * @param room the room's JID, like "ops@conference.example.com".
+   * @param totals the appender's totals, which the room's stats count toward.
+   */
+  public BroadcastRoom(String room, String nickname, long minMillisBetweenMessages,
+                       DeliveryStats totals) {
+    _room = room;
+    _nickname = nickname;
+    _minMillisBetweenMessages = Math.max(0L, minMillisBetweenMessages);
+    _stats = new DeliveryStats(totals);
+  }
+
+  public String getRoom() {
+    return _room;
+  }
+
+  public String getNickname() {
+    return _nickname;
+  }
+
+  public long getMinMillisBetweenMessages() {
+    return _minMillisBetweenMessages;
+  }
+
+  public DeliveryStats getStats() {
+    return _stats;
+  }
+
+  /** Sends for us under the account's rate limit, or null to send directly. */
+  public void setSendScheduler(SendScheduler sendScheduler) {
+    _sendScheduler = sendScheduler;
+  }
+
+  public boolean isJoined() {
+    MultiUserChat muc = _muc;
+    return muc != null && muc.isJoined();
+  }
+
+  /**
+   * Joins the room on a newly logged-in connection, without asking for the
+   * room's history.  If that fails we'll try again the next time we log in.
+   */
+  void join(XMPPConnection con) {
+    MultiUserChat muc = new MultiUserChat(con, _room);
+    DiscussionHistory history = new DiscussionHistory();
+    history.setMaxStanzas(0);
+    try {
+      muc.join(_nickname, null, history, SmackConfiguration.getPacketReplyTimeout());
+      _muc = muc;
+      LOG.info("joined " + _room + " as " + _nickname);
+    }
+    catch (XMPPException e) {
+      _muc = null;
+      LOG.warn("couldn't join " + _room + " as " + _nickname, e);
+    }
+  }
+
+  void leave() {
+    MultiUserChat muc = _muc;
+    _muc = null;
+    if (muc == null) return;
+
+    try {
+      muc.leave();
+    }
+    catch (RuntimeException e) {
+      LOG.debug("error leaving " + _room, e);
+    }
+  }
+
+  /**
+   * Decides whether the room gets an event, and if so takes this throttle
+   * interval, so exactly one of several racing threads gets a claim.
+   * Counts the event either way.  The message is only rendered once the
+   * throttle is open, and a blank one doesn't take the interval.
+   *
+   * @return null if the room doesn't get it.
+   */
+  ThrottleClaim claimNotification(RenderedEvent rendered) {
+    if (_muc == null) return null;
+
+    LoggingEvent event = rendered.getEvent();
+    _stats.received();
+    boolean bypassThrottle = event.getLevel().isGreaterOrEqual(_alwaysNotifyAtLevel);
+    long intervalNanos = TimeUnit.MILLISECONDS.toNanos(_minMillisBetweenMessages);
+    long lastSent = _lastSentNanos.get();
+    if (!bypassThrottle && lastSent != NEVER && System.nanoTime() - lastSent < intervalNanos) {
+      _stats.throttled();
+      return null;
+    }
+    if (rendered.isBlank()) {
+      _stats.filtered();
+      return null;
+    }
+
+    while (true) {
+      long last = _lastSentNanos.get();
+      long now = System.nanoTime();
+      if (!bypassThrottle && last != NEVER && now - last < intervalNanos) {
+        _stats.throttled();
+        return null;
+      }
+      if (_lastSentNanos.compareAndSet(last, now)) {
+        return new ThrottleClaim(_lastSentNanos, last, now);
+      }
+    }
+  }
+
+  /**
+   * Sends one message to the room.
+   *
+   * @param claim the interval taken for it, given back if it's shed.
+   */
+  void send(String body, LoggingEvent event, XMPPConnection con, ThrottleClaim claim) {
+    MultiUserChat muc = _muc;
+    if (muc == null) {
+      claim.release();
+      return;
+    }
+
+    Message msg = muc.createMessage();
+    msg.setBody(body);
+    SendScheduler scheduler = _sendScheduler;
+    if (scheduler != null) {
+      scheduler.submit(SendScheduler.Lane.of(event.getLevel()), msg, _stats, event.timeStamp, claim);
+    }
+    else {
+      sendNow(msg, event.timeStamp, con);
+    }
+
+    // The room echoes everything back, and Smack queues it for us; nobody
+    // reads it, so don't let it pile up.
+    while (muc.pollMessage() != null) {}
+  }
+
+  private void sendNow(Message msg, long eventMillis, XMPPConnection con) {
+    long start = System.nanoTime();
+    try {
+      con.sendPacket(msg);
+    }
+    catch (RuntimeException e) {
+      _stats.failed();
+      throw e;
+    }
+    _stats.sent(start, eventMillis);
+  }
+
+  /**
+   * Like "ops@conference.example.com (joined as status), every 30 seconds".
+   */
+  public String toHumanReadableString() {
+    return _room + (isJoined() ? " (joined as " + _nickname + ")" : " (not joined)")
+           + ((_minMillisBetweenMessages > 0) ? ", every " + Utils.formatPeriod(_minMillisBetweenMessages) : "")
+           + ": " + _stats.toHumanReadableString();
+  }
+
+}
@@ -0,0 +1,646 @@
+package com.plpatterns.status;
+
+import static com.plpatterns.status.Utils.formatPeriod;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.Level;
+
+/**
+ * The commands every appender understands.  The responses are purposely
+ * lower-case and casual to mimic the way people usually type IMs.  To a
+ * user, it shouldn't feel like they are talking to a bot, but rather
+ * someone on the other end helping them.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class BuiltinCommands {
+
+  private static final Log LOG = LogFactory.getLog(BuiltinCommands.class);
+
+  private static final Pattern EVERY_PATTERN =
+    Pattern.compile("every\\s+([\\w\\.]+)\\s+(\\w+)\\s*", Pattern.CASE_INSENSITIVE);
+  private static final Pattern EVERY_AUTO_PATTERN =
+    Pattern.compile("every\\s+auto(?:\\s+([\\w\\.]+)\\s*([a-z]+)\\s+(?:to\\s+)?([\\w\\.]+)\\s*([a-z]+))?\\s*",
+                    Pattern.CASE_INSENSITIVE);
+
+  private static final Pattern ALERT_PATTERN =
+    Pattern.compile("alert\\s+(?:me\\s+)?if\\s+(\\S+)\\s+(?:is\\s+|goes\\s+)?(?:silent|quiet)\\s+(?:for\\s+)?([\\w\\.]+)\\s*([a-z]+)\\s*",
+                    Pattern.CASE_INSENSITIVE);
+
+  private static final Pattern SET_LEVEL_PATTERN =
+    Pattern.compile("set\\s+level\\s+(\\w+)\\s*", Pattern.CASE_INSENSITIVE);
+
+  /** People can't ask for IMs more often than every {@value} ms. */
+  private static final long MIN_PERIOD_MILLIS = 500L;
+
+  private BuiltinCommands() {}
+
+  public static void registerAll(CommandRegistry registry) {
+    registry.register(new Resume());
+    registry.register(new Pause());
+    registry.register(new Every());
+    registry.register(new SetLevel());
+    registry.register(new Coalesce());
+    registry.register(new DigestMode());
+    registry.register(new Watch());
+    registry.register(new Unwatch());
+    registry.register(new Filter());
+    registry.register(new Ignore());
+    registry.register(new Status());
+    registry.register(new Stats());
+    registry.register(new Last());
+    registry.register(new Progress());
+    registry.register(new Alert());
+    registry.register(new SystemCommand());
+    registry.register(new Who());
+    registry.register(new Bye());
+    registry.register(new Echo());
+  }
+
+  /**
+   * Milliseconds in something like "5" "minutes", at least
+   * {@link BuiltinCommands#MIN_PERIOD_MILLIS}, or -1 if we can't tell.
+   */
+  static long parsePeriod(String number, String units) {
+    String strUnits = units.toLowerCase();
+    double num;
+    try {
+      num = Double.parseDouble(number);
+    }
+    catch (NumberFormatException e) {
+      return -1;
+    }
+    if (Double.isNaN(num) || Double.isInfinite(num) || num < 0d ||
+        !strUnits.startsWith("s") && !strUnits.startsWith("m")) {
+      return -1;
+    }
+
+    // Convert to milliseconds.
+    LOG.debug("Interval found: " + num + " " + strUnits);
+    if (strUnits.startsWith("m")) {
+      num *= 60d;
+    }
+    num *= 1000d;
+
+    // Prevent people from setting this too low.
+    return Math.max(Math.round(num), MIN_PERIOD_MILLIS);
+  }
+
+  /**
+   * Base for commands with fixed names and usage.
+   */
+  public static abstract class SimpleCommand implements Command {
+
+    private final String[] _names;
+    private final String _usage;
+
+    protected SimpleCommand(String usage, String... names) {
+      _usage = usage;
+      _names = names;
+    }
+
+    public String[] getNames() {
+      return _names.clone();
+    }
+
+    public String getUsage() {
+      return _usage;
+    }
+
+    @Override
+    public String toString() {
+      return _names[0];
+    }
+
+  }
+
+  public static class Pause extends SimpleCommand {
+
+    public Pause() {
+      super("stop", "stop", "pause");
+    }
+
+    public void execute(CommandContext ctx) {
+      ctx.getConversation().setPaused(true);
+    }
+
+  }
+
+  public static class Resume extends SimpleCommand {
+
+    public Resume() {
+      super("start", "start", "resume");
+    }
+
+    public void execute(CommandContext ctx) {
+      Conversation convo = ctx.getConversation();
+      ctx.reply("i'll start sending updates every " +
+              formatPeriod(convo.getThrottleMillis()));
+      convo.setPaused(false);
+    }
+
+  }
+
+  /**
+   * Changes the period at which IMs are sent.
+   */
+  public static class Every extends SimpleCommand {
+
+    private static final String I_DONT_UNDERSTAND = "I don't understand.  If you'd rather I sent you IMs more often or less often, just let me know by saying \"every 5 minutes\", for example.";
+
+    public Every() {
+      super("every N s[econds], every N m[inutes], every auto [N s to N m]", "every");
+    }
+
+    public void execute(CommandContext ctx) {
+      Matcher auto = EVERY_AUTO_PATTERN.matcher(ctx.getText());
+      if (auto.matches()) {
+        executeAuto(ctx, auto);
+        return;
+      }
+
+      // Try to match the basic format.
+      LOG.debug("Trying to parse change in interval.");
+      Matcher matcher = EVERY_PATTERN.matcher(ctx.getText());
+      if (!matcher.matches()) {
+        ctx.reply(I_DONT_UNDERSTAND);
+        return;
+      }
+
+      // Try to parse the number and units.
+      LOG.debug("Basic structure found.  Trying to parse number and unit.");
+      long period = parsePeriod(matcher.group(1), matcher.group(2));
+      if (period < 0) {
+        ctx.reply(I_DONT_UNDERSTAND);
+        return;
+      }
+
+      // Set new period.
+      ctx.reply("ok, i'll send updates every " + formatPeriod(period));
+      ctx.getConversation().setAdaptiveThrottle(null);
+      ctx.getConversation().setMinMillisecondsBetweenMessages(period);
+    }
+
+    private void executeAuto(CommandContext ctx, Matcher matcher) {
+      long min = AdaptiveThrottle.DEFAULT_MIN_MILLIS;
+      long max = AdaptiveThrottle.DEFAULT_MAX_MILLIS;
+      if (matcher.group(1) != null) {
+        min = parsePeriod(matcher.group(1), matcher.group(2));
+        max = parsePeriod(matcher.group(3), matcher.group(4));
+        if (min < 0 || max < 0) {
+          ctx.reply(I_DONT_UNDERSTAND);
+          return;
+        }
+        if (max < min) {
+          long t = min;
+          min = max;
+          max = t;
+        }
+      }
+
+      AdaptiveThrottle throttle = new AdaptiveThrottle(min, max);
+      ctx.getConversation().setAdaptiveThrottle(throttle);
+      ctx.reply("ok, i'll send updates every " + formatPeriod(min) + " when things are quiet, "
+                + "up to every " + formatPeriod(max) + " when they're busy");
+    }
+
+  }
+
+  /**
+   * Changes the level at or above which updates skip the throttle.
+   */
+  public static class SetLevel extends SimpleCommand {
+
+    private static final String I_DONT_UNDERSTAND = "I don't understand.  If you'd rather I only sent you IMs above a certain log level, just let me know by saying \"set level info\", for example.";
+
+    public SetLevel() {
+      super("set level <log-level>", "set");
+    }
+
+    public void execute(CommandContext ctx) {
+      // Try to match the basic format.
+      LOG.debug("Trying to parse log level.");
+      Matcher matcher = SET_LEVEL_PATTERN.matcher(ctx.getText());
+      if (!matcher.matches()) {
+        ctx.reply(I_DONT_UNDERSTAND);
+        return;
+      }
+
+      // Try to parse the level.
+      LOG.debug("Basic structure found.  Trying to parse the level.");
+      Conversation convo = ctx.getConversation();
+      Level level = Level.toLevel(matcher.group(1).toUpperCase(), null);
+      if (level == null) {
+        ctx.reply(I_DONT_UNDERSTAND);
+        return;
+      }
+
+      // Set new log level.
+      ctx.reply("ok, i'll send " + level + " updates");
+      convo.setAlwaysNotifyAtLevel(level);
+    }
+
+  }
+
+  /**
+   * Turns on or off holding the latest dropped update.
+   */
+  public static class Coalesce extends SimpleCommand {
+
+    public Coalesce() {
+      super("coalesce on|off", "coalesce");
+    }
+
+    public void execute(CommandContext ctx) {
+      Conversation convo = ctx.getConversation();
+      String arg = ctx.getArguments();
+      if (arg.equalsIgnoreCase("off")) {
+        convo.setCoalescing(false);
+        ctx.reply("ok, i'll drop updates that come in too soon after the last one");
+      }
+      else if (arg.length() == 0 || arg.equalsIgnoreCase("on")) {
+        convo.setCoalescing(true);
+        ctx.reply("ok, if updates come in too soon, i'll send you the latest one after " +
+                formatPeriod(convo.getThrottleMillis()));
+      }
+      else {
+        ctx.reply("I don't understand.  Say \"coalesce on\" or \"coalesce off\".");
+      }
+    }
+
+  }
+
+  /**
+   * Turns on or off batching updates into one IM per interval.
+   */
+  public static class DigestMode extends SimpleCommand {
+
+    public DigestMode() {
+      super("digest on|off", "digest");
+    }
+
+    public void execute(CommandContext ctx) {
+      Conversation convo = ctx.getConversation();
+      String arg = ctx.getArguments();
+      if (arg.equalsIgnoreCase("off")) {
+        convo.setDigesting(false);
+        ctx.reply("ok, i'll send updates one at a time");
+      }
+      else if (arg.length() == 0 || arg.equalsIgnoreCase("on")) {
+        convo.setDigesting(true);
+        ctx.reply("ok, i'll collect updates and send you a summary every " +
+                formatPeriod(convo.getThrottleMillis()));
+      }
+      else {
+        ctx.reply("I don't understand.  Say \"digest on\" or \"digest off\".");
+      }
+    }
+
+  }
+
+  /**
+   * Only sends updates from some loggers.
+   */
+  public static class Watch extends SimpleCommand {
+
+    public Watch() {
+      super("watch <logger>[.*]", "watch");
+    }
+
+    public void execute(CommandContext ctx) {
+      Conversation convo = ctx.getConversation();
+      String arg = ctx.getArguments();
+      if (arg.length() == 0) {
+        ctx.reply("i'm sending you updates from " + convo.formatWatches());
+        return;
+      }
+
+      try {
+        ctx.getAppender().getConversationRegistry().watch(convo, arg);
+      }
+      catch (IllegalArgumentException e) {
+        ctx.reply("I don't understand.  Say \"watch status.billing.*\", for example, to only get updates from status.billing and the loggers under it.");
+        return;
+      }
+      ctx.reply("ok, i'll send you updates from " + convo.formatWatches());
+    }
+
+  }
+
+  public static class Unwatch extends SimpleCommand {
+
+    public Unwatch() {
+      super("unwatch [<logger>]", "unwatch");
+    }
+
+    public void execute(CommandContext ctx) {
+      Conversation convo = ctx.getConversation();
+      ConversationRegistry registry = ctx.getAppender().getConversationRegistry();
+      String arg = ctx.getArguments();
+      if (arg.length() == 0 || arg.equalsIgnoreCase("all")) {
+        registry.unwatchAll(convo);
+      }
+      else if (!registry.unwatch(convo, arg)) {
+        ctx.reply("you weren't watching " + arg + ".  i'm sending you updates from " +
+                convo.formatWatches());
+        return;
+      }
+      ctx.reply("ok, i'll send you updates from " + convo.formatWatches());
+    }
+
+  }
+
+  /**
+   * Only sends messages matching a regex or some text.
+   */
+  public static class Filter extends SimpleCommand {
+
+    public Filter() {
+      super("filter /regex/|text|off", "filter");
+    }
+
+    public void execute(CommandContext ctx) {
+      Conversation convo = ctx.getConversation();
+      String arg = ctx.getArguments();
+      if (arg.length() == 0) {
+        ctx.reply("filter: " + convo.getFilter().toHumanReadableString());
+        return;
+      }
+      if (arg.equalsIgnoreCase("off") || arg.equalsIgnoreCase("none")) {
+        convo.setFilter(null);
+        ctx.reply("ok, i'll send you updates whatever they say");
+        return;
+      }
+
+      try {
+        convo.setFilter(convo.getFilter().matching(arg));
+      }
+      catch (IllegalArgumentException e) {
+        ctx.reply("I don't understand that regex: " + e.getMessage());
+        return;
+      }
+      ctx.reply("ok, i'll only send you updates " + convo.getFilter().toHumanReadableString());
+    }
+
+  }
+
+  /**
+   * Stops sending messages matching a regex or some text.
+   */
+  public static class Ignore extends SimpleCommand {
+
+    public Ignore() {
+      super("ignore /regex/|text", "ignore");
+    }
+
+    public void execute(CommandContext ctx) {
+      Conversation convo = ctx.getConversation();
+      String arg = ctx.getArguments();
+      if (arg.length() == 0) {
+        ctx.reply("I don't understand.  Say \"ignore heartbeat\" or \"ignore /retry \\d+/\", for example.  \"filter off\" stops ignoring things.");
+        return;
+      }
+
+      try {
+        convo.setFilter(convo.getFilter().ignoring(arg));
+      }
+      catch (IllegalArgumentException e) {
+        ctx.reply("I don't understand that regex: " + e.getMessage());
+        return;
+      }
+      ctx.reply("ok, i'll only send you updates " + convo.getFilter().toHumanReadableString());
+    }
+
+  }
+
+  public static class Status extends SimpleCommand {
+
+    public Status() {
+      super("status", "status", "st");
+    }
+
+    public void execute(CommandContext ctx) {
+      ctx.reply(ctx.getConversation().toHumanReadableString());
+    }
+
+  }
+
+  public static class Stats extends SimpleCommand {
+
+    public Stats() {
+      super("stats", "stats");
+    }
+
+    public void execute(CommandContext ctx) {
+      ctx.reply(ctx.getAppender().getStats().toHumanReadableString()
+                + "\nyou: " + ctx.getConversation().getStats().toHumanReadableString());
+    }
+
+  }
+
+  /**
+   * What was logged most recently, whether or not it was sent.
+   */
+  public static class Last extends SimpleCommand {
+
+    public Last() {
+      super("last [<logger>]", "last", "latest");
+    }
+
+    public void execute(CommandContext ctx) {
+      String arg = ctx.getArguments();
+      String prefix = SubscriptionIndex.normalize(arg);
+      if (prefix == null) {
+        ctx.reply("I don't understand.  Say \"last\" for the latest updates, or \"last status.billing\" for just the ones from status.billing and the loggers under it.");
+        return;
+      }
+
+      String latest = ctx.getAppender().getLatestEvents()
+                         .toHumanReadableString(prefix, System.currentTimeMillis());
+      if (latest == null) {
+        ctx.reply((prefix.length() == 0) ? "nothing's been logged yet"
+                  : "nothing's been logged from " + prefix + " yet");
+        return;
+      }
+      ctx.reply(latest);
+    }
+
+  }
+
+  /**
+   * How far along each {@link ProgressTracker} is.
+   */
+  public static class Progress extends SimpleCommand {
+
+    public Progress() {
+      super("progress [<name>]", "progress", "eta");
+    }
+
+    public void execute(CommandContext ctx) {
+      String name = ctx.getArguments();
+      if (name.length() > 0) {
+        ProgressTracker tracker = ProgressTracker.get(name);
+        ctx.reply((tracker == null) ? "i'm not tracking anything called " + name
+                  : tracker.toHumanReadableString());
+        return;
+      }
+
+      List<ProgressTracker> trackers = ProgressTracker.getAll();
+      if (trackers.isEmpty()) {
+        ctx.reply("i'm not tracking the progress of anything right now");
+        return;
+      }
+      StringBuilder sb = new StringBuilder();
+      for (ProgressTracker tracker : trackers) {
+        if (sb.length() > 0) sb.append('\n');
+        sb.append(tracker.toHumanReadableString());
+      }
+      ctx.reply(sb.toString());
+    }
+
+  }
+
+  /**
+   * Sets up a watchdog that IMs you when a logger goes quiet.
+   */
+  public static class Alert extends SimpleCommand {
+
+    private static final String I_DONT_UNDERSTAND = "I don't understand.  Say \"alert if status.etl silent 10 m\", for example, and i'll IM you if nothing's logged from status.etl for 10 minutes.  \"alert off\" stops.";
+
+    public Alert() {
+      super("alert if <logger> silent N s|m, alert off [<logger>]", "alert", "alerts");
+    }
+
+    public void execute(CommandContext ctx) {
+      Conversation convo = ctx.getConversation();
+      Watchdogs watchdogs = ctx.getAppender().getWatchdogs();
+      String arg = ctx.getArguments();
+      if (arg.length() == 0) {
+        List<Watchdogs.Watchdog> yours = watchdogs.getWatchdogs(convo);
+        if (yours.isEmpty()) {
+          ctx.reply("you don't have any alerts.  Say \"alert if status.etl silent 10 m\", for example, and i'll IM you if nothing's logged from status.etl for 10 minutes.");
+          return;
+        }
+        StringBuilder sb = new StringBuilder("i'll IM you if any of these go quiet:");
+        for (Watchdogs.Watchdog watchdog : yours) {
+          sb.append('\n').append(watchdog.toHumanReadableString());
+        }
+        ctx.reply(sb.toString());
+        return;
+      }
+
+      String[] words = arg.split("\\s+", 2);
+      if (words[0].equalsIgnoreCase("off")) {
+        String pattern = (words.length > 1) ? words[1] : "";
+        try {
+          if (!watchdogs.unsubscribe(convo, pattern)) {
+            ctx.reply((pattern.length() == 0) ? "you didn't have any alerts"
+                      : "you didn't have any alerts on " + pattern);
+            return;
+          }
+        }
+        catch (IllegalArgumentException e) {
+          ctx.reply(I_DONT_UNDERSTAND);
+          return;
+        }
+        ctx.reply((pattern.length() == 0) ? "ok, no more alerts" : "ok, no more alerts on " + pattern);
+        return;
+      }
+
+      Matcher matcher = ALERT_PATTERN.matcher(ctx.getText());
+      long silence = matcher.matches() ? parsePeriod(matcher.group(2), matcher.group(3)) : -1L;
+      if (silence < 0) {
+        ctx.reply(I_DONT_UNDERSTAND);
+        return;
+      }
+
+      Watchdogs.Watchdog watchdog;
+      try {
+        watchdog = watchdogs.subscribe(convo, matcher.group(1), silence);
+      }
+      catch (IllegalArgumentException e) {
+        ctx.reply(I_DONT_UNDERSTAND);
+        return;
+      }
+      String prefix = watchdog.getPrefix();
+      ctx.reply("ok, i'll IM you if nothing's logged from " + ((prefix.length() == 0) ? "anywhere" : prefix)
+                + " for " + formatPeriod(silence));
+    }
+
+  }
+
+  public static class SystemCommand extends SimpleCommand {
+
+    public SystemCommand() {
+      super("system", "system", "top");
+    }
+
+    public void execute(CommandContext ctx) {
+      SystemSnapshot snapshot = SystemStats.getSnapshot();
+      String hostname = snapshot.getHostname();
+      String stats = snapshot.getSummary();
+      if (stats == null) {
+        if (hostname == null) {
+          hostname = "this machine";
+        }
+        ctx.reply("sorry... I'm having trouble getting system stats on " + hostname);
+      }
+      else {
+        String prelude = (hostname == null) ? ""
+                         : "System stats for " + hostname + ".\n";
+        ctx.reply(prelude + stats);
+      }
+    }
+
+  }
+
+  public static class Who extends SimpleCommand {
+
+    public Who() {
+      super("who", "who");
+    }
+
+    public void execute(CommandContext ctx) {
+      List<String> ps = ctx.getAppender().getParticipants();
+      if (ps.size() == 1 && ps.get(0).equals(ctx.getParticipant())) {
+        ctx.reply("I'm only IMing you -- " + ps.get(0));
+      }
+      else {
+        ctx.reply("I'm IMing these people:\n" + StringUtils.join(ps.iterator(), "\n"));
+      }
+    }
+
+  }
+
+  public static class Bye extends SimpleCommand {
+
+    public Bye() {
+      super(null, "bye");
+    }
+
+    public void execute(CommandContext ctx) {
+      ctx.getAppender().removeConversation(ctx.getParticipant());
+      ctx.reply("bye");
+    }
+
+  }
+
+  public static class Echo extends SimpleCommand {
+
+    public Echo() {
+      super(null, "echo");
+    }
+
+    public void execute(CommandContext ctx) {
+      ctx.reply(ctx.getText());
+    }
+
+  }
+
+}
@@ -0,0 +1,32 @@
+package com.plpatterns.status;
+
+/**
+ * Something people can tell the appender to do over IM, like "stop" or
+ * "every 5 minutes".  The first word of an IM picks the command.
+ * <p>
+ * Apps can add their own, like "progress" or "queue-depth", with
+ * {@link XmppAppender#registerCommand(Command)}, the appender's Commands
+ * parameter, or by listing the class in a
+ * META-INF/services/com.plpatterns.status.Command file.  Those need a public
+ * no-arg constructor.  Commands run on the command executor, one at a time
+ * per person, but different people's commands can run at the same time.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public interface Command {
+
+  /**
+   * The words that start this command, like "stop" and "pause".  Matched
+   * without regard to case.
+   */
+  String[] getNames();
+
+  /**
+   * How to use it, for the list of commands people see when we don't
+   * understand them, like "every N s[econds]".  Null to leave it out.
+   */
+  String getUsage();
+
+  void execute(CommandContext ctx);
+
+}
@@ -0,0 +1,74 @@
+package com.plpatterns.status;
+
+import org.jivesoftware.smack.packet.Message;
+
+/**
+ * One IM being handled by a {@link Command}.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class CommandContext {
+
+  private final Conversation _conversation;
+  private final XmppAppender _appender;
+  private final Message _message;
+  private final String _text;
+  private final String _name;
+  private final String _arguments;
+  private final boolean _newConversation;
+
+  public CommandContext(Conversation conversation, XmppAppender appender,
+                        Message message, boolean newConversation) {
+    _conversation = conversation;
+    _appender = appender;
+    _message = message;
+    _newConversation = newConversation;
+
+    _text = message.getBody().trim();
+    int end = 0;
+    while (end < _text.length() && !Character.isWhitespace(_text.charAt(end))) end++;
+    _name = _text.substring(0, end).toLowerCase();
+    _arguments = _text.substring(end).trim();
+  }
+
+  public Conversation getConversation() {
+    return _conversation;
+  }
+
+  public XmppAppender getAppender() {
+    return _appender;
+  }
+
+  public Message getMessage() {
+    return _message;
+  }
+
+  /** The whole IM, trimmed. */
+  public String getText() {
+    return _text;
+  }
+
+  /** The first word, lower-cased. */
+  public String getName() {
+    return _name;
+  }
+
+  /** Everything after the first word, trimmed.  Never null. */
+  public String getArguments() {
+    return _arguments;
+  }
+
+  /** Whether this is the first IM we've gotten from this person. */
+  public boolean isNewConversation() {
+    return _newConversation;
+  }
+
+  public String getParticipant() {
+    return _conversation.getChat().getParticipant();
+  }
+
+  public void reply(String msg) {
+    _conversation.sendIm(msg);
+  }
+
+}
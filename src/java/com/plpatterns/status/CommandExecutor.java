@@ -0,0 +1,237 @@
+package com.plpatterns.status;
+
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs IM commands off of Smack's packet-listener thread, so one person's
+ * slow command can't hold up everyone else's IMs or the server's pings.
+ * <p>
+ * Commands from the same person run one at a time, in the order they came
+ * in.  Different people's commands run in parallel on a shared pool, which
+ * uses virtual threads when the JVM has them.  The total number of waiting
+ * commands is capped.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class CommandExecutor {
+
+  private static final Log LOG = LogFactory.getLog(CommandExecutor.class);
+
+  private final ExecutorService _executor;
+  private final int _maxQueued;
+  private final ConcurrentHashMap<String, SerialQueue> _queues =
+    new ConcurrentHashMap<String, SerialQueue>();
+
+  private final AtomicInteger _queued = new AtomicInteger();
+  private final AtomicLong _executed = new AtomicLong();
+  private final AtomicLong _rejected = new AtomicLong();
+  private final AtomicLong _failed = new AtomicLong();
+  private final LatencyHistogram _waitLatency = new LatencyHistogram();
+  private final LatencyHistogram _runLatency = new LatencyHistogram();
+
+  /**
+   * @param threads size of the pool, if virtual threads aren't available.
+   * @param maxQueued how many commands may be waiting at once.
+   */
+  public CommandExecutor(int threads, int maxQueued) {
+    _maxQueued = maxQueued;
+
+    ExecutorService executor = newVirtualThreadExecutor();
+    if (executor == null) {
+      final AtomicInteger threadNumber = new AtomicInteger();
+      executor = new ThreadPoolExecutor(threads, threads,
+              60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+              new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "status-command-" + threadNumber.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    _executor = executor;
+  }
+
+  /**
+   * Queues a command from the given person.
+   *
+   * @return false if too many commands are already waiting, in which case
+   *         the command won't run.
+   */
+  public boolean submit(String participant, Runnable command) {
+    if (_queued.incrementAndGet() > _maxQueued) {
+      _queued.decrementAndGet();
+      _rejected.incrementAndGet();
+      return false;
+    }
+
+    Task task = new Task(command);
+    while (true) {
+      SerialQueue queue = _queues.get(participant);
+      if (queue == null) {
+        SerialQueue created = new SerialQueue(participant);
+        queue = _queues.putIfAbsent(participant, created);
+        if (queue == null) queue = created;
+      }
+      if (queue.add(task)) return true;
+      // That queue just retired itself; make a new one.
+    }
+  }
+
+  /**
+   * Stops taking commands.  Ones already running finish.
+   */
+  public void shutdown() {
+    _executor.shutdown();
+  }
+
+  /** Commands waiting to run, across everyone. */
+  public int getQueueDepth() {
+    return _queued.get();
+  }
+
+  public int getMaxQueued() {
+    return _maxQueued;
+  }
+
+  public long getExecuted() {
+    return _executed.get();
+  }
+
+  public long getRejected() {
+    return _rejected.get();
+  }
+
+  public long getFailed() {
+    return _failed.get();
+  }
+
+  /** Time commands spend waiting for their turn. */
+  public LatencyHistogram getWaitLatency() {
+    return _waitLatency;
+  }
+
+  /** Time commands take to run. */
+  public LatencyHistogram getRunLatency() {
+    return _runLatency;
+  }
+
+  /**
+   * Uses Executors.newVirtualThreadPerTaskExecutor() if it's there.  Looked
+   * up reflectively since we build for much older JVMs.
+   */
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Method m = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService)m.invoke(null);
+    }
+    catch (Throwable t) {
+      return null;
+    }
+  }
+
+  private class Task {
+
+    private final Runnable _command;
+    private final long _submittedNanos = System.nanoTime();
+
+    Task(Runnable command) {
+      _command = command;
+    }
+
+    void run() {
+      long start = System.nanoTime();
+      _queued.decrementAndGet();
+      _waitLatency.recordNanos(start - _submittedNanos);
+      try {
+        _command.run();
+      }
+      catch (Throwable t) {
+        _failed.incrementAndGet();
+        LOG.error("command failed", t);
+      }
+      finally {
+        _runLatency.recordSince(start);
+        _executed.incrementAndGet();
+      }
+    }
+
+  }
+
+  /**
+   * One person's commands.  At most one drainer runs per queue, which is
+   * what keeps their commands in order.
+   */
+  private class SerialQueue implements Runnable {
+
+    private final String _participant;
+
+    // Guarded by this.
+    private final LinkedList<Task> _tasks = new LinkedList<Task>();
+    private boolean _draining;
+    private boolean _retired;
+
+    SerialQueue(String participant) {
+      _participant = participant;
+    }
+
+    /**
+     * @return false if this queue has retired and can't take more.
+     */
+    boolean add(Task task) {
+      synchronized (this) {
+        if (_retired) return false;
+
+        _tasks.add(task);
+        if (_draining) return true;
+        _draining = true;
+      }
+
+      try {
+        _executor.execute(this);
+      }
+      catch (RejectedExecutionException e) {
+        // Shutting down.  Drop what we have.
+        synchronized (this) {
+          _queued.addAndGet(-_tasks.size());
+          _rejected.addAndGet(_tasks.size());
+          _tasks.clear();
+          _draining = false;
+        }
+      }
+      return true;
+    }
+
+    public void run() {
+      while (true) {
+        Task task;
+        synchronized (this) {
+          task = _tasks.poll();
+          if (task == null) {
+            // Nothing left; get out of the map so idle people cost nothing.
+            _draining = false;
+            _retired = true;
+            _queues.remove(_participant, this);
+            return;
+          }
+        }
+        task.run();
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,176 @@
+package com.plpatterns.status;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Finds the {@link Command} for an IM by its first word, with one hash
+ * lookup no matter how many commands there are.
+ * <p>
+ * Lookups don't lock.  Registering copies the table, which is fine since it
+ * happens a handful of times at start-up.  Registering a name that's already
+ * taken replaces the old command, so apps can override the built-in ones.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class CommandRegistry {
+
+  private static final Log LOG = LogFactory.getLog(CommandRegistry.class);
+
+  private static final String SERVICES_FILE =
+    "META-INF/services/" + Command.class.getName();
+
+  /** Guarded by this for writes. */
+  private volatile Map<String, Command> _byName = new HashMap<String, Command>();
+  private volatile List<Command> _commands = new ArrayList<Command>();
+
+  /**
+   * Makes a registry with the built-in commands plus any listed in
+   * META-INF/services files.
+   */
+  public static CommandRegistry createDefault() {
+    CommandRegistry registry = new CommandRegistry();
+    BuiltinCommands.registerAll(registry);
+    registry.loadServices(Thread.currentThread().getContextClassLoader());
+    return registry;
+  }
+
+  public synchronized void register(Command command) {
+    Map<String, Command> byName = new HashMap<String, Command>(_byName);
+    List<Command> commands = new ArrayList<Command>(_commands);
+    for (String name : command.getNames()) {
+      Command old = byName.put(name.toLowerCase(), command);
+      if (old != null && old != command) {
+        LOG.debug("command " + command + " replaces " + old + " for \"" + name + "\"");
+        removeIfUnused(commands, byName, old);
+      }
+    }
+    if (!commands.contains(command)) {
+      commands.add(command);
+    }
+    _byName = byName;
+    _commands = commands;
+  }
+
+  /**
+   * Stops answering to the given word.
+   *
+   * @return the command that answered to it, or null.
+   */
+  public synchronized Command unregister(String name) {
+    Map<String, Command> byName = new HashMap<String, Command>(_byName);
+    Command old = byName.remove(name.toLowerCase());
+    if (old == null) return null;
+
+    List<Command> commands = new ArrayList<Command>(_commands);
+    removeIfUnused(commands, byName, old);
+    _byName = byName;
+    _commands = commands;
+    return old;
+  }
+
+  private static void removeIfUnused(List<Command> commands, Map<String, Command> byName,
+                                     Command command) {
+    if (!byName.containsValue(command)) {
+      commands.remove(command);
+    }
+  }
+
+  /**
+   * @param name the first word of an IM, lower-cased.
+   * @return null if no command answers to it.
+   */
+  public Command get(String name) {
+    return _byName.get(name);
+  }
+
+  /** Every registered command, in the order they were registered. */
+  public List<Command> getCommands() {
+    return Collections.unmodifiableList(_commands);
+  }
+
+  /**
+   * The usages of all the commands, like "start, stop, status".
+   */
+  public String getUsage() {
+    StringBuilder sb = new StringBuilder();
+    for (Command command : _commands) {
+      String usage = command.getUsage();
+      if (usage == null) continue;
+      if (sb.length() > 0) sb.append(", ");
+      sb.append(usage);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Registers a command by class name.  The class needs a public no-arg
+   * constructor.
+   *
+   * @return false if it couldn't be made.
+   */
+  public boolean register(String className, ClassLoader loader) {
+    if (loader == null) loader = CommandRegistry.class.getClassLoader();
+
+    try {
+      Class<?> c = Class.forName(className.trim(), true, loader);
+      register((Command)c.newInstance());
+      return true;
+    }
+    catch (Throwable t) {
+      LOG.error("couldn't register command " + className, t);
+      return false;
+    }
+  }
+
+  /**
+   * Registers every command class listed in
+   * META-INF/services/com.plpatterns.status.Command files, the way
+   * ServiceLoader does.
+   */
+  public void loadServices(ClassLoader loader) {
+    if (loader == null) loader = CommandRegistry.class.getClassLoader();
+
+    Enumeration<URL> urls;
+    try {
+      urls = loader.getResources(SERVICES_FILE);
+    }
+    catch (IOException e) {
+      LOG.error("couldn't look for " + SERVICES_FILE, e);
+      return;
+    }
+
+    while (urls.hasMoreElements()) {
+      URL url = urls.nextElement();
+      BufferedReader reader = null;
+      try {
+        reader = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+          int comment = line.indexOf('#');
+          if (comment >= 0) line = line.substring(0, comment);
+          line = line.trim();
+          if (line.length() > 0) register(line, loader);
+        }
+      }
+      catch (IOException e) {
+        LOG.error("couldn't read " + url, e);
+      }
+      finally {
+        Utils.closeQuietly(reader);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,377 @@
+package com.plpatterns.status;
+
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.spi.LoggingEvent;
+import org.jivesoftware.smack.ConnectionListener;
+
+/**
+ * Keeps an {@link XmppAppender} connected.  When the connection drops or a
+ * connection attempt fails, it retries in the background with jittered
+ * exponential back-off until it gets back in.  Meanwhile, logged events are
+ * either dropped or held in a small buffer that is replayed on reconnect.
+ * Nothing here ever makes a logging thread wait.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class ConnectionSupervisor implements ConnectionListener {
+
+  private static final Log LOG = LogFactory.getLog(ConnectionSupervisor.class);
+
+  public enum State {
+    /** Never connected, or lost the connection and no retry is scheduled yet. */
+    DISCONNECTED,
+    /** A connection attempt is in progress. */
+    CONNECTING,
+    /** Logged in and sending. */
+    CONNECTED,
+    /** Waiting before the next connection attempt. */
+    BACKING_OFF,
+    /** The appender was closed; we won't connect again. */
+    CLOSED
+  }
+
+  private static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000L;
+  private static final long DEFAULT_MAX_BACKOFF_MILLIS = 5 * 60 * 1000L;
+
+  private final XmppAppender _appender;
+  private final ScheduledExecutorService _executor;
+  private final Random _random = new Random();
+  private final AtomicReference<State> _state =
+    new AtomicReference<State>(State.DISCONNECTED);
+
+  private volatile long _initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+  private volatile long _maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+  /** Events held while disconnected, or null to drop them. */
+  private volatile RingBuffer<LoggingEvent> _buffer;
+
+  // Guarded by this.
+  private int _failedAttempts;
+  private ScheduledFuture<?> _pendingAttempt;
+
+  /** nanoTime we lost the connection, or 0 when connected. */
+  private volatile long _disconnectedSinceNanos;
+  private volatile long _nextAttemptMillis;
+
+  private final AtomicLong _stateTransitions = new AtomicLong();
+  private final AtomicLong _reconnects = new AtomicLong();
+  private final AtomicLong _failedAttemptsTotal = new AtomicLong();
+  private final AtomicLong _bufferedEvents = new AtomicLong();
+  private final AtomicLong _droppedEvents = new AtomicLong();
+  private volatile long _lastTimeToReconnectMillis;
+  private volatile long _maxTimeToReconnectMillis;
+  private final AtomicLong _totalTimeToReconnectMillis = new AtomicLong();
+
+  public ConnectionSupervisor(XmppAppender appender) {
+    _appender = appender;
+
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "status-connection-supervisor");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    _executor = executor;
+  }
+
+  /**
+   * Tries to connect right now, on the calling thread.  If it doesn't work,
+   * retries are scheduled in the background.
+   *
+   * @return true if we're connected.
+   */
+  public synchronized boolean connectNow() {
+    if (getState() == State.CLOSED) return false;
+    if (getState() == State.CONNECTED && _appender.isLoggedIn()) return true;
+
+    cancelPendingAttempt();
+    return attempt();
+  }
+
+  /**
+   * Tells the supervisor the connection is gone, e.g. because a send blew
+   * up.  Starts the reconnect cycle if it isn't already running.  This is
+   * called from logging threads, so the retry is scheduled from our own
+   * thread; {@link #connectNow()} can hold the lock for a whole attempt.
+   */
+  public void connectionLost(Throwable cause) {
+    if (!_state.compareAndSet(State.CONNECTED, State.DISCONNECTED)) return;
+
+    _stateTransitions.incrementAndGet();
+    _disconnectedSinceNanos = System.nanoTime();
+    LOG.warn("lost connection to XMPP server; will reconnect", cause);
+
+    try {
+      _executor.execute(new Runnable() {
+        public void run() {
+          synchronized (ConnectionSupervisor.this) {
+            if (getState() == State.DISCONNECTED) scheduleRetry();
+          }
+        }
+      });
+    }
+    catch (RejectedExecutionException e) {
+      // Executor was shut down because we're closing.
+      LOG.debug("not scheduling reconnect", e);
+    }
+  }
+
+  /**
+   * Called instead of sending when we're not connected.  Holds on to the
+   * event if buffering is on, otherwise drops it.  Never blocks.
+   */
+  public void eventWhileDisconnected(LoggingEvent event) {
+    RingBuffer<LoggingEvent> buffer = _buffer;
+    if (buffer == null) {
+      _droppedEvents.incrementAndGet();
+      return;
+    }
+
+    // Make room by dropping the oldest.
+    while (!buffer.offer(event)) {
+      if (buffer.poll() != null) _droppedEvents.incrementAndGet();
+    }
+    _bufferedEvents.incrementAndGet();
+  }
+
+  /**
+   * Stops reconnecting for good.
+   */
+  public void close() {
+    State prev = _state.getAndSet(State.CLOSED);
+    if (prev != State.CLOSED) _stateTransitions.incrementAndGet();
+    _executor.shutdownNow();
+
+    RingBuffer<LoggingEvent> buffer = _buffer;
+    if (buffer != null) {
+      while (buffer.poll() != null) _droppedEvents.incrementAndGet();
+    }
+  }
+
+  /** Assumes this is locked. */
+  private boolean attempt() {
+    if (!transition(State.CONNECTING)) return false;
+
+    boolean connected = false;
+    try {
+      connected = _appender.tryConnect();
+    }
+    catch (Throwable t) {
+      LOG.warn("unexpected error connecting", t);
+    }
+
+    if (!connected) {
+      _failedAttemptsTotal.incrementAndGet();
+      scheduleRetry();
+      return false;
+    }
+
+    _failedAttempts = 0;
+    long since = _disconnectedSinceNanos;
+    if (since != 0L) {
+      long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since);
+      _lastTimeToReconnectMillis = millis;
+      if (millis > _maxTimeToReconnectMillis) _maxTimeToReconnectMillis = millis;
+      _totalTimeToReconnectMillis.addAndGet(millis);
+      _reconnects.incrementAndGet();
+      _disconnectedSinceNanos = 0L;
+      LOG.warn("reconnected to XMPP server after " + Utils.formatPeriod(Math.max(millis, 1)));
+    }
+    transition(State.CONNECTED);
+
+    // Replay anything we held on to, but not on the caller's thread.
+    RingBuffer<LoggingEvent> buffer = _buffer;
+    if (buffer != null && !buffer.isEmpty()) {
+      _executor.execute(new Runnable() {
+        public void run() {
+          replayBuffer();
+        }
+      });
+    }
+    return true;
+  }
+
+  /** Assumes this is locked. */
+  private void scheduleRetry() {
+    if (!transition(State.BACKING_OFF)) return;
+    if (_disconnectedSinceNanos == 0L) _disconnectedSinceNanos = System.nanoTime();
+
+    long delay = nextBackoffMillis(_failedAttempts++);
+    _nextAttemptMillis = System.currentTimeMillis() + delay;
+    LOG.debug("next connection attempt in " + delay + " ms");
+
+    cancelPendingAttempt();
+    try {
+      _pendingAttempt = _executor.schedule(new Runnable() {
+        public void run() {
+          synchronized (ConnectionSupervisor.this) {
+            _pendingAttempt = null;
+            if (getState() == State.BACKING_OFF) attempt();
+          }
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+    catch (RuntimeException e) {
+      // Executor was shut down because we're closing.
+      LOG.debug("not scheduling reconnect", e);
+    }
+  }
+
+  /**
+   * Exponential back-off with "equal jitter": half the delay is fixed and
+   * half is random, so a fleet of apps that lost the same server don't all
+   * come back at once.
+   */
+  private long nextBackoffMillis(int failedAttempts) {
+    long base = _initialBackoffMillis;
+    long max = Math.max(base, _maxBackoffMillis);
+    for (int i = 0; i < failedAttempts && base < max; i++) {
+      base <<= 1;
+    }
+    base = Math.min(base, max);
+
+    long half = base / 2;
+    long jitter;
+    synchronized (_random) {
+      jitter = (long)(_random.nextDouble() * (base - half));
+    }
+    return half + jitter;
+  }
+
+  private void cancelPendingAttempt() {
+    if (_pendingAttempt != null) {
+      _pendingAttempt.cancel(false);
+      _pendingAttempt = null;
+    }
+  }
+
+  private void replayBuffer() {
+    RingBuffer<LoggingEvent> buffer = _buffer;
+    if (buffer == null) return;
+
+    LoggingEvent event;
+    while (getState() == State.CONNECTED && (event = buffer.poll()) != null) {
+      _appender.dispatch(event);
+    }
+  }
+
+  private boolean transition(State to) {
+    while (true) {
+      State from = _state.get();
+      if (from == State.CLOSED) return false;
+      if (from == to) return true;
+      if (_state.compareAndSet(from, to)) {
+        _stateTransitions.incrementAndGet();
+        LOG.debug("connection state " + from + " -> " + to);
+        return true;
+      }
+    }
+  }
+
+  // ConnectionListener, called by Smack.
+
+  public void connectionClosed() {
+    // We closed it ourselves.
+  }
+
+  public void connectionClosedOnError(Exception e) {
+    connectionLost(e);
+  }
+
+  public void reconnectingIn(int seconds) {
+    // We do our own reconnecting.
+  }
+
+  public void reconnectionSuccessful() {
+    // We do our own reconnecting.
+  }
+
+  public void reconnectionFailed(Exception e) {
+    // We do our own reconnecting.
+  }
+
+  // Configuration and metrics.
+
+  public State getState() {
+    return _state.get();
+  }
+
+  public long getInitialBackoffMillis() {
+    return _initialBackoffMillis;
+  }
+
+  public void setInitialBackoffMillis(long initialBackoffMillis) {
+    _initialBackoffMillis = Math.max(1L, initialBackoffMillis);
+  }
+
+  public long getMaxBackoffMillis() {
+    return _maxBackoffMillis;
+  }
+
+  public void setMaxBackoffMillis(long maxBackoffMillis) {
+    _maxBackoffMillis = maxBackoffMillis;
+  }
+
+  public int getBufferCapacity() {
+    RingBuffer<LoggingEvent> buffer = _buffer;
+    return (buffer == null) ? 0 : buffer.capacity();
+  }
+
+  /**
+   * How many events to hold while disconnected.  0 drops them.
+   */
+  public void setBufferCapacity(int capacity) {
+    _buffer = (capacity > 0) ? new RingBuffer<LoggingEvent>(capacity) : null;
+  }
+
+  /** Wall-clock time of the next scheduled attempt, if backing off. */
+  public long getNextAttemptMillis() {
+    return (getState() == State.BACKING_OFF) ? _nextAttemptMillis : 0L;
+  }
+
+  public long getStateTransitions() {
+    return _stateTransitions.get();
+  }
+
+  public long getReconnects() {
+    return _reconnects.get();
+  }
+
+  public long getFailedAttempts() {
+    return _failedAttemptsTotal.get();
+  }
+
+  public long getBufferedEvents() {
+    return _bufferedEvents.get();
+  }
+
+  public long getDroppedEvents() {
+    return _droppedEvents.get();
+  }
+
+  public long getLastTimeToReconnectMillis() {
+    return _lastTimeToReconnectMillis;
+  }
+
+  public long getMaxTimeToReconnectMillis() {
+    return _maxTimeToReconnectMillis;
+  }
+
+  public long getMeanTimeToReconnectMillis() {
+    long n = _reconnects.get();
+    return (n == 0) ? 0L : _totalTimeToReconnectMillis.get() / n;
+  }
+
+}
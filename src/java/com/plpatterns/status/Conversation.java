@@ -3,18 +3,24 @@ package com.plpatterns.status;
 import static com.plpatterns.status.Utils.formatPeriod;
 import static org.apache.commons.lang.StringUtils.isBlank;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.builder.ReflectionToStringBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.log4j.Level;
 import org.apache.log4j.spi.LoggingEvent;
 import org.jivesoftware.smack.Chat;
+import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Message.Type;
@@ -27,19 +33,75 @@ public class Conversation {
   private static final Log LOG = LogFactory.getLog(Conversation.class);
   
   private static final long DEFAULT_MIN_MILLIS_BETWEEN_MESSAGES = 30 * 1000L;
+
+  /** Value of {@link #_lastSentToNanos} before we've sent anything. */
+  private static final long NEVER = Long.MIN_VALUE;
   
   private Chat _chat;
-  private boolean _paused;
+
+  /** Cached XML for sending {@link FanOutMessage}s through this chat. */
+  private volatile String[] _frame;
+  private volatile boolean _paused;
+
+  /** Whether the roster says they're unavailable. */
+  private volatile boolean _offline;
   private Date _lastHeardFrom;
-  private Date _lastSentTo;
-  private long _minMillisecondsBetweenMessages;
-  private Level _alwaysNotifyAtLevel;
+  private volatile long _minMillisecondsBetweenMessages;
+
+  /** When not null, this picks the interval instead, from the event rate. */
+  private volatile AdaptiveThrottle _adaptiveThrottle;
+  private volatile Level _alwaysNotifyAtLevel;
+
+  /**
+   * {@link System#nanoTime()} of the last update we sent.  This is what
+   * throttling is decided on, since it never jumps with the wall clock.
+   */
+  private final AtomicLong _lastSentToNanos = new AtomicLong(NEVER);
+
+  /**
+   * When true, the latest event dropped by throttling is held and sent as
+   * soon as the throttle interval is up, so the last word is never lost.
+   */
+  private volatile boolean _coalescing;
+  private final AtomicReference<LoggingEvent> _heldEvent = new AtomicReference<LoggingEvent>();
+  private final AtomicBoolean _flushScheduled = new AtomicBoolean();
+
+  /**
+   * When not null, every event is collected here instead of being sent, and
+   * the whole batch goes out as one IM each interval.
+   */
+  private final AtomicReference<Digest> _digest = new AtomicReference<Digest>();
+  private int _digestMaxLines = Digest.DEFAULT_MAX_LINES;
+  private int _digestMaxEvents = Digest.DEFAULT_MAX_EVENTS;
+  private final AtomicBoolean _digestFlushScheduled = new AtomicBoolean();
+
+  /**
+   * Logger name prefixes this person is watching.  Empty means everything.
+   * Changed only through {@link ConversationRegistry#watch}, which keeps its
+   * routing index in step.
+   */
+  private volatile String[] _watches = new String[0];
+
+  /** Checked against the rendered message, after the cheaper checks pass. */
+  private volatile MessageFilter _filter = MessageFilter.NONE;
   
+  private final DeliveryStats _stats;
+
+  /** Sends for us under the account's rate limit, or null to send directly. */
+  private volatile SendScheduler _sendScheduler;
+
   public Conversation(Chat chat) {
+    this(chat, null);
+  }
+
+  /**
+   * @param totals stats this conversation's count toward, or null.
+   */
+  public Conversation(Chat chat, DeliveryStats totals) {
+    _stats = new DeliveryStats(totals);
     _chat = chat;
     _paused = false;
     _lastHeardFrom = null;
-    _lastSentTo = null;
     _minMillisecondsBetweenMessages = DEFAULT_MIN_MILLIS_BETWEEN_MESSAGES;
     _alwaysNotifyAtLevel = Level.WARN;
   }
@@ -50,6 +112,19 @@ public class Conversation {
 
   public void setChat(Chat chat) {
     _chat = chat;
+    _frame = null;
+  }
+
+  public DeliveryStats getStats() {
+    return _stats;
+  }
+
+  public SendScheduler getSendScheduler() {
+    return _sendScheduler;
+  }
+
+  public void setSendScheduler(SendScheduler sendScheduler) {
+    _sendScheduler = sendScheduler;
   }
 
   public boolean isPaused() {
@@ -60,6 +135,14 @@ public class Conversation {
     _paused = paused;
   }
 
+  public boolean isOffline() {
+    return _offline;
+  }
+
+  public void setOffline(boolean offline) {
+    _offline = offline;
+  }
+
   public Date getLastHeardFrom() {
     return _lastHeardFrom;
   }
@@ -69,11 +152,21 @@ public class Conversation {
   }
 
   public Date getLastSentTo() {
-    return _lastSentTo;
+    long last = _lastSentToNanos.get();
+    if (last == NEVER) return null;
+
+    long agoMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - last);
+    return new Date(System.currentTimeMillis() - agoMillis);
   }
 
   public void setLastSentTo(Date lastSentTo) {
-    _lastSentTo = lastSentTo;
+    if (lastSentTo == null) {
+      _lastSentToNanos.set(NEVER);
+      return;
+    }
+
+    long agoMillis = System.currentTimeMillis() - lastSentTo.getTime();
+    _lastSentToNanos.set(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(agoMillis));
   }
 
   public long getMinMillisecondsBetweenMessages() {
@@ -85,6 +178,123 @@ public class Conversation {
     _minMillisecondsBetweenMessages = minMillisecondsBetweenMessages;
   }
 
+  public AdaptiveThrottle getAdaptiveThrottle() {
+    return _adaptiveThrottle;
+  }
+
+  /**
+   * Turns on "every auto", or off with null, going back to the fixed
+   * interval.
+   */
+  public void setAdaptiveThrottle(AdaptiveThrottle adaptiveThrottle) {
+    _adaptiveThrottle = adaptiveThrottle;
+  }
+
+  /**
+   * The interval we're throttling to right now, which only moves on its
+   * own in "every auto".
+   */
+  public long getThrottleMillis() {
+    AdaptiveThrottle adaptive = _adaptiveThrottle;
+    return (adaptive != null) ? adaptive.getIntervalMillis() : _minMillisecondsBetweenMessages;
+  }
+
+  /**
+   * Tells the adaptive throttle, if there is one, about an event routed
+   * to us.  Called for every event before deciding whether to send it.
+   *
+   * @param nowNanos {@link System#nanoTime()} read once for the event.
+   */
+  public void recordArrival(LoggingEvent event, long nowNanos) {
+    AdaptiveThrottle adaptive = _adaptiveThrottle;
+    if (adaptive != null) adaptive.record(event.getLevel(), nowNanos);
+  }
+
+  /**
+   * Like "30 seconds", or "auto, 10 seconds to 10 minutes, now 45 seconds".
+   */
+  public String formatThrottle() {
+    AdaptiveThrottle adaptive = _adaptiveThrottle;
+    return (adaptive != null) ? adaptive.toHumanReadableString()
+                              : formatPeriod(_minMillisecondsBetweenMessages);
+  }
+
+  public boolean isCoalescing() {
+    return _coalescing;
+  }
+
+  public void setCoalescing(boolean coalescing) {
+    _coalescing = coalescing;
+    if (!coalescing) _heldEvent.set(null);
+  }
+
+  public boolean isDigesting() {
+    return _digest.get() != null;
+  }
+
+  /**
+   * Turns digest mode on or off.  Turning it off sends whatever has been
+   * collected so far.
+   */
+  public void setDigesting(boolean digesting) {
+    if (digesting) {
+      _digest.compareAndSet(null, new Digest(_digestMaxLines, _digestMaxEvents));
+      return;
+    }
+
+    Digest old = _digest.getAndSet(null);
+    if (old != null) sendDigest(old);
+  }
+
+  /**
+   * Sets how many events a digest shows, and how many it collects before
+   * being sent early.  Takes effect the next time digest mode is turned on.
+   */
+  public void setDigestLimits(int maxLines, int maxEvents) {
+    _digestMaxLines = maxLines;
+    _digestMaxEvents = maxEvents;
+  }
+
+  /**
+   * Logger name prefixes this person is watching, or empty if they get
+   * everything.
+   */
+  public List<String> getWatches() {
+    return Collections.unmodifiableList(Arrays.asList(_watches));
+  }
+
+  void addWatch(String prefix) {
+    List<String> watches = new ArrayList<String>(Arrays.asList(_watches));
+    watches.add(prefix);
+    _watches = watches.toArray(new String[watches.size()]);
+  }
+
+  void removeWatch(String prefix) {
+    List<String> watches = new ArrayList<String>(Arrays.asList(_watches));
+    watches.remove(prefix);
+    _watches = watches.toArray(new String[watches.size()]);
+  }
+
+  public MessageFilter getFilter() {
+    return _filter;
+  }
+
+  /**
+   * @param filter null for none.
+   */
+  public void setFilter(MessageFilter filter) {
+    _filter = (filter == null) ? MessageFilter.NONE : filter;
+  }
+
+  /**
+   * Whether this person wants the event's message.  Only renders the
+   * message if they have a filter.
+   */
+  boolean accepts(RenderedEvent rendered) {
+    MessageFilter filter = _filter;
+    return filter.isEmpty() || filter.accepts(rendered.getMessage());
+  }
+
   public Level getAlwaysNotifyAtLevel() {
     return _alwaysNotifyAtLevel;
   }
@@ -93,14 +303,177 @@ public class Conversation {
     _alwaysNotifyAtLevel = alwaysNotifyAtLevel;
   }
 
+  /**
+   * Whether this person wants the event right now.  This doesn't change
+   * anything, so another thread may still win the chance to send; use
+   * {@link #claimNotification(LoggingEvent)} to actually take it.
+   */
   public boolean shouldNotify(LoggingEvent event) {
     return !isPaused() &&
       (// Level is high enough that we don't use throttling.
        event.getLevel().isGreaterOrEqual(getAlwaysNotifyAtLevel()) ||
-       // We never sent to this user before.
-       getLastSentTo() == null ||
        // It has been long enough since the last time we sent an IM to this user.
-       getLastSentTo().getTime() + getMinMillisecondsBetweenMessages() <= new Date().getTime());
+       isThrottleOpen(_lastSentToNanos.get(), System.nanoTime()));
+  }
+
+  /**
+   * Like {@link #shouldNotify(LoggingEvent)}, but if the event should be sent,
+   * atomically records it as sent.  When many threads race for the same
+   * throttle interval, exactly one of them gets a claim, which should go
+   * along with the message so the interval is given back if it's shed.
+   * Losing allocates nothing.
+   *
+   * @return null if the event shouldn't be sent.
+   */
+  public ThrottleClaim claimNotification(LoggingEvent event) {
+    if (isPaused()) return null;
+
+    boolean bypassThrottle = event.getLevel().isGreaterOrEqual(getAlwaysNotifyAtLevel());
+    while (true) {
+      long last = _lastSentToNanos.get();
+      long now = System.nanoTime();
+      if (!bypassThrottle && !isThrottleOpen(last, now)) return null;
+
+      if (_lastSentToNanos.compareAndSet(last, now)) {
+        return new ThrottleClaim(_lastSentToNanos, last, now);
+      }
+      // Someone else sent in the meantime; look again.
+    }
+  }
+
+  private boolean isThrottleOpen(long lastSentToNanos, long nowNanos) {
+    return lastSentToNanos == NEVER ||
+           nowNanos - lastSentToNanos >= TimeUnit.MILLISECONDS.toNanos(getThrottleMillis());
+  }
+
+  /**
+   * How long until throttling would let an ordinary event through.
+   */
+  public long getMillisUntilThrottleOpens() {
+    long last = _lastSentToNanos.get();
+    if (last == NEVER) return 0L;
+
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - last);
+    return Math.max(0L, getThrottleMillis() - elapsedMillis);
+  }
+
+  /**
+   * In coalescing mode, holds on to an event that throttling dropped and
+   * makes sure it gets sent when the interval is up.  Only the latest held
+   * event is kept, replacing any older one.
+   *
+   * @param sender where the held event is rendered and sent, since that's
+   *               too slow for the timer's thread.
+   * @return true if the event was held.
+   */
+  public boolean holdForLater(LoggingEvent event, TimerWheel wheel, Executor sender) {
+    if (!isCoalescing() || isPaused()) return false;
+
+    _heldEvent.set(event);
+    scheduleFlush(wheel, sender);
+    return true;
+  }
+
+  /**
+   * In digest mode, adds the event to the current batch, which is sent
+   * when the interval is up or it gets full.
+   *
+   * @param sender where the batch is rendered and sent, since that's too
+   *               slow for the logging thread or the timer's.
+   * @return true if the event was taken.
+   */
+  public boolean addToDigest(LoggingEvent event, TimerWheel wheel, Executor sender) {
+    while (true) {
+      final Digest digest = _digest.get();
+      if (digest == null || isPaused()) return false;
+
+      boolean full;
+      // Digest locks on itself, so holding it here means digest mode can't
+      // be turned off and the batch sent between our check and the add.
+      synchronized (digest) {
+        if (_digest.get() != digest) continue;
+        full = digest.add(event);
+      }
+
+      if (full) {
+        // Don't wait for the interval.
+        wheel.schedule(new Runnable() {
+          public void run() {
+            sendDigest(digest);
+          }
+        }, 0L, sender);
+      }
+      else if (_digestFlushScheduled.compareAndSet(false, true)) {
+        wheel.schedule(new Runnable() {
+          public void run() {
+            _digestFlushScheduled.set(false);
+            Digest current = _digest.get();
+            if (current != null) sendDigest(current);
+          }
+        }, getThrottleMillis(), sender);
+      }
+      return true;
+    }
+  }
+
+  private void sendDigest(Digest digest) {
+    Summary summary = digest.drain();
+    if (summary == null) return;
+
+    sendUpdate(summary.getBody(), summary.getLevel());
+  }
+
+  /**
+   * Forgets a held event that is no newer than one just sent, since the
+   * person already has fresher news.
+   */
+  public void discardHeldEventsUpTo(LoggingEvent sent) {
+    LoggingEvent held = _heldEvent.get();
+    if (held != null && held.timeStamp <= sent.timeStamp) {
+      _heldEvent.compareAndSet(held, null);
+    }
+  }
+
+  public LoggingEvent getHeldEvent() {
+    return _heldEvent.get();
+  }
+
+  private void scheduleFlush(final TimerWheel wheel, final Executor sender) {
+    if (!_flushScheduled.compareAndSet(false, true)) return;
+
+    wheel.schedule(new Runnable() {
+      public void run() {
+        _flushScheduled.set(false);
+        flushHeldEvent(wheel, sender);
+      }
+    }, getMillisUntilThrottleOpens(), sender);
+  }
+
+  private void flushHeldEvent(TimerWheel wheel, Executor sender) {
+    LoggingEvent held = _heldEvent.getAndSet(null);
+    if (held == null || isPaused()) return;
+
+    // A blank message isn't worth restarting the interval for.
+    String msg = XmppAppender.getMessage(held);
+    if (isBlank(msg)) return;
+
+    ThrottleClaim claim = claimNotification(held);
+    if (claim == null) {
+      // Something else was sent in the meantime and restarted the interval.
+      // Put it back unless something newer has been held since.
+      if (_heldEvent.compareAndSet(null, held)) scheduleFlush(wheel, sender);
+      return;
+    }
+
+    send(msg, held.getLevel(), claim);
+  }
+
+  /**
+   * Records that we just sent an update, restarting the throttle interval.
+   */
+  private ThrottleClaim markSent() {
+    long now = System.nanoTime();
+    return new ThrottleClaim(_lastSentToNanos, _lastSentToNanos.getAndSet(now), now);
   }
 
   /**
@@ -111,30 +484,121 @@ public class Conversation {
   }
   
   /**
-   * Sends an IM, ignoring any errors.  Optionally updates
-   * last-sent-to timestamp used for throttling.
-   *
-   * TODO: Track errors.
+   * Sends an IM, counting but otherwise ignoring any errors.  Optionally
+   * updates last-sent-to timestamp used for throttling, which also counts
+   * it as an update sent, rather than a reply.
    */
   public void sendIm(String msg, boolean updateLastSentToTime) {
+    send(msg, null, updateLastSentToTime ? markSent() : null);
+  }
+
+  /**
+   * Sends an update about events up to the given level, which decides how
+   * urgently it goes out when we're near the send rate, and restarts the
+   * throttle interval.
+   *
+   * @param level null if it's not about any event in particular.
+   */
+  public void sendUpdate(String msg, Level level) {
+    send(msg, level, markSent());
+  }
+
+  /**
+   * @param claim the throttle interval taken for this update, or null if
+   *              it's a reply.
+   */
+  private void send(String msg, Level level, ThrottleClaim claim) {
+    boolean update = claim != null;
+    long start = System.nanoTime();
     try {
       LOG.info("trying to send IM to " + getChat().getParticipant() + ": " + msg);
-      if (updateLastSentToTime) {
-        setLastSentTo(new Date());
+
+      SendScheduler scheduler = _sendScheduler;
+      if (scheduler != null) {
+        Message packet = new Message(getChat().getParticipant(), Type.chat);
+        packet.setThread(getChat().getThreadID());
+        packet.setBody(msg);
+        // If it's shed, the scheduler counts it and gives back the interval
+        // we took for an update they'll never get.
+        scheduler.submit(SendScheduler.Lane.of(level), packet,
+                update ? _stats : null, 0L, claim);
+        return;
       }
       getChat().sendMessage(msg);
     }
     catch (XMPPException e) {
-      // ignore
+      _stats.failed();
+      LOG.debug("failed sending IM to " + getChat().getParticipant(), e);
+      return;
+    }
+    catch (RuntimeException e) {
+      _stats.failed();
+      throw e;
     }
+    if (update) _stats.sent(start, 0L);
+  }
+  
+  /**
+   * Sends a message that's going out to many people at once, reusing its
+   * pre-serialized body.  Errors are left to the caller, since they mean
+   * the connection is in trouble.
+   *
+   * @param claim the throttle interval taken for it, given back if it's
+   *              shed, or null.
+   */
+  public void sendIm(FanOutMessage msg, XMPPConnection con, ThrottleClaim claim) {
+    String[] frame = _frame;
+    if (frame == null) {
+      frame = FanOutMessage.frameFor(getChat());
+      _frame = frame;
+    }
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("trying to send IM to " + getChat().getParticipant() + ": " + msg.getBody());
+    }
+    SendScheduler scheduler = _sendScheduler;
+    if (scheduler != null) {
+      scheduler.submit(SendScheduler.Lane.of(msg.getLevel()), msg.packetFor(getChat(), frame),
+              _stats, msg.getEventMillis(), claim);
+      return;
+    }
+
+    long start = System.nanoTime();
+    try {
+      con.sendPacket(msg.packetFor(getChat(), frame));
+    }
+    catch (RuntimeException e) {
+      _stats.failed();
+      throw e;
+    }
+    _stats.sent(start, msg.getEventMillis());
   }
   
   public String toHumanReadableString() {
-    return String.format("paused: %s, lastSentTo: %s, minInterval: %s, alwaysNotifyAtLevel: %s",
+    return String.format("paused: %s, lastSentTo: %s, minInterval: %s, alwaysNotifyAtLevel: %s, coalesce: %s, digest: %s, watching: %s, filter: %s",
             isPaused(),
             getLastSentTo(),
-            Utils.formatPeriod(getMinMillisecondsBetweenMessages()),
-            getAlwaysNotifyAtLevel());
+            formatThrottle(),
+            getAlwaysNotifyAtLevel(),
+            isCoalescing() ? "on" : "off",
+            isDigesting() ? "on" : "off",
+            formatWatches(),
+            getFilter().toHumanReadableString());
+  }
+  
+  /**
+   * Like "status.billing.*, status.jobs.*", or "everything".
+   */
+  public String formatWatches() {
+    String[] watches = _watches;
+    if (watches.length == 0) return "everything";
+
+    StringBuilder sb = new StringBuilder();
+    for (String prefix : watches) {
+      if (sb.length() > 0) sb.append(", ");
+      sb.append(prefix.length() == 0 ? "*" : prefix + ".*");
+    }
+    return sb.toString();
   }
   
   @Override
@@ -152,10 +616,8 @@ public class Conversation {
   }
 
   /**
-   * This function processes commands in an incoming message. The responses are
-   * purposely lower-case and casual form to mimic the way people usually type
-   * IMs. To a user, it shouldn't feel like they are talking to a bot, but
-   * rather someone on the other end helping them.
+   * This function processes commands in an incoming message, looking up the
+   * {@link Command} by the message's first word.
    */
   public void reactToIm(boolean newConvo, Message message, XmppAppender appender) {
     // Track when we've heard from this person.
@@ -166,129 +628,27 @@ public class Conversation {
     LOG.debug("reacting to IM... convo: " + this + " newConvo: " + newConvo + ", type: " + message.getType() + " msg: " + msg);
     if (!shouldReactToMessage(message)) return;
     
-    if (msg.equalsIgnoreCase("pause") || msg.equalsIgnoreCase("stop")) {
-      setPaused(true);
-    }
-    else if (msg.equalsIgnoreCase("resume") || msg.equalsIgnoreCase("start")) {
-      sendIm("i'll start sending updates every " +
-              formatPeriod(getMinMillisecondsBetweenMessages()));
-      setPaused(false);
-    }
-    else if (msg.startsWith("every ")) {
-      // Change the period at which IMs are sent.
-      final String iDontUnderstand = "I don't understand.  If you'd rather I sent you IMs more often or less often, just let me know by saying \"every 5 minutes\", for example.";
-      final Pattern everyPattern = Pattern.compile("every\\s+([\\w\\.]+)\\s+(\\w+)\\s*");
-      
-      // Try to match the basic format.
-      LOG.debug("Trying to parse change in interval.");
-      Matcher matcher = everyPattern.matcher(msg);
-      if (!matcher.matches()) {
-        sendIm(iDontUnderstand);
-        return;
+    CommandContext ctx = new CommandContext(this, appender, message, newConvo);
+    CommandRegistry commands = appender.getCommandRegistry();
+    Command command = commands.get(ctx.getName());
+    if (command != null) {
+      try {
+        command.execute(ctx);
       }
-      
-      // Try to parse the number and units.
-      LOG.debug("Basic structure found.  Trying to parse number and unit.");
-      String strNumber = matcher.group(1).toLowerCase();
-      String strUnits  = matcher.group(2).toLowerCase();
-      Double num = Double.valueOf(strNumber);
-      if (num == null || !strUnits.startsWith("s") && !strUnits.startsWith("m")) {
-        sendIm(iDontUnderstand);
-        return;
-      }
-      
-      // Convert to milliseconds.
-      LOG.debug("Interval found: " + num + " " + strUnits);
-      if (strUnits.startsWith("m")) {
-        num *= 60d;
-      }
-      num *= 1000d;
-      long period = Math.round(num);
-      
-      // Prevent people from setting this too low.
-      period = Math.max(period, 500);
-
-      // Set new period.
-      sendIm("ok, i'll send updates every " + formatPeriod(period));
-      setMinMillisecondsBetweenMessages(period);
-    }
-    else if (msg.startsWith("set ")) {
-      // Change the period at which IMs are sent.
-      final String iDontUnderstand = "I don't understand.  If you'd rather I only sent you IMs above a certain log level, just let me know by saying \"set level info\", for example.";
-      final Pattern setLevelPattern = Pattern.compile("set\\s+level\\s+(\\w+)\\s*");
-      
-      // Try to match the basic format.
-      LOG.debug("Trying to parse log level.");
-      Matcher matcher = setLevelPattern.matcher(msg);
-      if (!matcher.matches()) {
-        sendIm(iDontUnderstand);
-        return;
+      catch (RuntimeException e) {
+        LOG.error("command " + command + " failed on: " + msg, e);
+        sendIm("sorry, something went wrong with that.");
       }
-      
-      // Try to parse the level.
-      LOG.debug("Basic structure found.  Trying to parse the level.");
-      String strLevel = matcher.group(1).toUpperCase();
-      Level level = Level.toLevel(strLevel, getAlwaysNotifyAtLevel());
-      if (level == null) {
-        sendIm(iDontUnderstand);
-        return;
-      }
-
-      // Set new log level.
-      sendIm("ok, i'll send " + level + " updates");
-      setAlwaysNotifyAtLevel(level);
-    }
-    else if (msg.equalsIgnoreCase("status") || msg.equalsIgnoreCase("st")) {
-      sendIm(toHumanReadableString());
-    }
-    else if (msg.equalsIgnoreCase("system") || msg.equalsIgnoreCase("top")) {
-      String hostname = SystemStats.getHostname();
-      String top = SystemStats.getTopOutput();
-      if (top == null) {
-        if (hostname == null) {
-          hostname = "this machine";
-        }
-        sendIm("sorry... I'm having trouble running top on " + hostname);
-      }
-      else {
-        String prelude = (hostname == null) ? ""
-                         : "System stats for " + hostname + ".\n";
-        sendIm(prelude + top);
-      }
-    }
-    else if (msg.startsWith("who")) {
-      List<String> ps = appender.getParticipants();
-      if (ps.size() == 1 && ps.get(0).equals(getChat().getParticipant())) {
-        sendIm("I'm only IMing you -- " + ps.get(0));
-      }
-      else {
-        sendIm("I'm IMing these people:\n" + StringUtils.join(ps.iterator(), "\n"));
-      }
-    }
-    else if (msg.startsWith("bye")) {
-      synchronized (appender.getConversations()) {
-        appender.removeConversation(getChat().getParticipant());
-      }
-      sendIm("bye");
-    }
-    else if (msg.startsWith("echo")) {
-      sendIm(msg);
     }
     else if (newConvo) {
       sendIm("hi, i'll start sending updates every " +
-              formatPeriod(getMinMillisecondsBetweenMessages()));
+              formatPeriod(getThrottleMillis()));
     }
     else {
       LOG.debug("got message I don't understand, from: " + message.getFrom() +
               ", to: " + message.getTo() + ", thread: " + message.getThread() +
               ", type: " + message.getType() + ", msg: " + msg);
-      sendIm("huh?  the commands I understand are: " +
-      		"start, stop, " +
-      		"every N s[econds], every N m[inutes], " +
-      		"set level <log-level>, " +
-      		"status, " +
-      		"system, " +
-      		"who.");
+      sendIm("huh?  the commands I understand are: " + commands.getUsage() + ".");
     }
   }
 
@@ -0,0 +1,319 @@
+package com.plpatterns.status;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jivesoftware.smack.Chat;
+
+/**
+ * The set of people we're IMing, keyed by participant JID.
+ * <p>
+ * Lookups and updates happen when IMs come in, which is rare, so they take a
+ * short lock on a map kept in least-recently-heard-from order; the oldest
+ * conversations are evicted when there are too many.  Sending happens on
+ * every logged event, so senders instead read an immutable snapshot array
+ * that is republished whenever someone joins or leaves.  Iterating never
+ * locks and never sees a half-made change.
+ * <p>
+ * People can watch just some loggers, like "status.billing".  Anyone who
+ * isn't watching anything gets everything.  Who gets an event is looked up
+ * by logger name in a {@link SubscriptionIndex} and cached, so routing an
+ * event usually costs one hash lookup, however many people and loggers
+ * there are.  The cache is thrown out whenever anyone's watches change.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class ConversationRegistry {
+
+  private static final Conversation[] EMPTY = new Conversation[0];
+
+  /** Routes cached before the cache is thrown out, so odd loggers can't fill memory. */
+  private static final int MAX_CACHED_ROUTES = 10000;
+
+  /** Guarded by this.  Iterates from least to most recently heard from. */
+  private final LinkedHashMap<String, Conversation> _conversations =
+    new LinkedHashMap<String, Conversation>(16, 0.75f, true);
+
+  /** Same contents as the map above, for lock-free lookups. */
+  private final ConcurrentHashMap<String, Conversation> _index =
+    new ConcurrentHashMap<String, Conversation>();
+
+  private volatile Conversation[] _snapshot = EMPTY;
+
+  /** Guarded by this. */
+  private final SubscriptionIndex _subscriptions = new SubscriptionIndex();
+
+  /** Conversations not watching anything, which get every event. */
+  private volatile Conversation[] _unfiltered = EMPTY;
+
+  /**
+   * Recipients by logger name.  Replaced, never cleared, so a lookup racing
+   * a change can't cache a stale route.
+   */
+  private volatile ConcurrentHashMap<String, Conversation[]> _routes =
+    new ConcurrentHashMap<String, Conversation[]>();
+  private volatile int _maxConversations;
+
+  /** What every conversation's {@link DeliveryStats} add up to. */
+  private final DeliveryStats _totals = new DeliveryStats();
+
+  public ConversationRegistry(int maxConversations) {
+    _maxConversations = maxConversations;
+  }
+
+  /**
+   * Result of {@link ConversationRegistry#register(Chat)}.
+   */
+  public static class Registration {
+
+    private final Conversation _conversation;
+    private final boolean _newConversation;
+    private final List<Conversation> _evicted;
+
+    Registration(Conversation conversation, boolean newConversation,
+            List<Conversation> evicted) {
+      _conversation = conversation;
+      _newConversation = newConversation;
+      _evicted = evicted;
+    }
+
+    public Conversation getConversation() {
+      return _conversation;
+    }
+
+    public boolean isNewConversation() {
+      return _newConversation;
+    }
+
+    /** Conversations pushed out to make room; usually empty. */
+    public List<Conversation> getEvicted() {
+      return _evicted;
+    }
+
+  }
+
+  /**
+   * Finds the conversation for the chat's participant, creating it if
+   * needed, and marks it as the most recently heard from.
+   */
+  public synchronized Registration register(Chat chat) {
+    String participant = chat.getParticipant();
+    Conversation convo = _conversations.get(participant);
+    if (convo != null) {
+      return new Registration(convo, false, Collections.<Conversation>emptyList());
+    }
+
+    convo = new Conversation(chat, _totals);
+    _conversations.put(participant, convo);
+    _index.put(participant, convo);
+    List<Conversation> evicted = evictOverflow();
+    publish();
+    return new Registration(convo, true, evicted);
+  }
+
+  /**
+   * Adds a conversation, replacing any existing one with the same
+   * participant.
+   *
+   * @return conversations evicted to make room.
+   */
+  public synchronized List<Conversation> add(Conversation convo) {
+    String participant = convo.getChat().getParticipant();
+    _conversations.put(participant, convo);
+    _index.put(participant, convo);
+    List<Conversation> evicted = evictOverflow();
+    publish();
+    return evicted;
+  }
+
+  /**
+   * @return the removed conversation, or null if there wasn't one.
+   */
+  public synchronized Conversation remove(String participant) {
+    Conversation convo = _conversations.remove(participant);
+    if (convo != null) {
+      _index.remove(participant);
+      unwatchAllLocked(convo);
+      publish();
+    }
+    return convo;
+  }
+
+  /**
+   * Looks up a conversation without changing its recency.
+   */
+  public Conversation get(String participant) {
+    return _index.get(participant);
+  }
+
+  public DeliveryStats getTotals() {
+    return _totals;
+  }
+
+  public int size() {
+    return _snapshot.length;
+  }
+
+  public int getMaxConversations() {
+    return _maxConversations;
+  }
+
+  /**
+   * Changes the cap.  If there are now too many conversations, the
+   * least recently heard from are evicted and returned.
+   */
+  public synchronized List<Conversation> setMaxConversations(int maxConversations) {
+    _maxConversations = maxConversations;
+    List<Conversation> evicted = evictOverflow();
+    if (!evicted.isEmpty()) publish();
+    return evicted;
+  }
+
+  /**
+   * Point-in-time view of all conversations, safe to iterate while others
+   * come and go.  Callers must not modify the array.
+   */
+  Conversation[] snapshot() {
+    return _snapshot;
+  }
+
+  /**
+   * Everyone who should get events from the given logger: people watching
+   * it or one of its ancestors, and people not watching anything.  Callers
+   * must not modify the array.
+   */
+  Conversation[] recipientsFor(String loggerName) {
+    Conversation[] unfiltered = _unfiltered;
+    if (unfiltered == _snapshot) return unfiltered;
+    if (loggerName == null) loggerName = "";
+
+    ConcurrentHashMap<String, Conversation[]> routes = _routes;
+    Conversation[] recipients = routes.get(loggerName);
+    if (recipients != null) return recipients;
+
+    synchronized (this) {
+      Set<Conversation> watchers = new LinkedHashSet<Conversation>(Arrays.asList(_unfiltered));
+      _subscriptions.collect(loggerName, watchers);
+      recipients = watchers.toArray(new Conversation[watchers.size()]);
+
+      // Only cache it if nothing changed since we looked at the cache.
+      if (routes == _routes) {
+        if (routes.size() >= MAX_CACHED_ROUTES) {
+          _routes = new ConcurrentHashMap<String, Conversation[]>();
+        }
+        _routes.put(loggerName, recipients);
+      }
+    }
+    return recipients;
+  }
+
+  /**
+   * Has the conversation get events only from the given logger and the
+   * loggers under it, plus anything else it's watching.
+   *
+   * @param pattern a logger name or prefix, like "status.billing" or
+   *                "status.billing.*".
+   * @throws IllegalArgumentException if the pattern isn't a logger name.
+   * @return false if it was already watching that, or the conversation
+   *         has been removed.
+   */
+  public synchronized boolean watch(Conversation convo, String pattern) {
+    String prefix = SubscriptionIndex.normalize(pattern);
+    if (prefix == null) throw new IllegalArgumentException("not a logger name: " + pattern);
+    if (!isRegistered(convo)) return false;
+    if (!_subscriptions.add(prefix, convo)) return false;
+
+    convo.addWatch(prefix);
+    publish();
+    return true;
+  }
+
+  /**
+   * @return false if the conversation wasn't watching that.
+   */
+  public synchronized boolean unwatch(Conversation convo, String pattern) {
+    String prefix = SubscriptionIndex.normalize(pattern);
+    if (prefix == null || !_subscriptions.remove(prefix, convo)) return false;
+
+    convo.removeWatch(prefix);
+    publish();
+    return true;
+  }
+
+  /**
+   * Goes back to getting every event.
+   */
+  public synchronized void unwatchAll(Conversation convo) {
+    if (unwatchAllLocked(convo)) publish();
+  }
+
+  /** Assumes this is locked. */
+  private boolean unwatchAllLocked(Conversation convo) {
+    List<String> watches = convo.getWatches();
+    for (String prefix : watches) {
+      _subscriptions.remove(prefix, convo);
+      convo.removeWatch(prefix);
+    }
+    return !watches.isEmpty();
+  }
+
+  /** Assumes this is locked. */
+  private boolean isRegistered(Conversation convo) {
+    return _index.get(convo.getChat().getParticipant()) == convo;
+  }
+
+  public List<Conversation> getConversations() {
+    return Collections.unmodifiableList(Arrays.asList(_snapshot));
+  }
+
+  /**
+   * Participants, most recently heard from first.
+   */
+  public synchronized List<String> getParticipants() {
+    List<String> participants = new ArrayList<String>(_conversations.keySet());
+    Collections.reverse(participants);
+    return participants;
+  }
+
+  /** Assumes this is locked. */
+  private List<Conversation> evictOverflow() {
+    int overflow = _conversations.size() - _maxConversations;
+    if (overflow <= 0) return Collections.emptyList();
+
+    List<Conversation> evicted = new ArrayList<Conversation>(overflow);
+    Iterator<Conversation> it = _conversations.values().iterator();
+    while (overflow-- > 0 && it.hasNext()) {
+      Conversation convo = it.next();
+      it.remove();
+      _index.remove(convo.getChat().getParticipant());
+      unwatchAllLocked(convo);
+      evicted.add(convo);
+    }
+    return evicted;
+  }
+
+  /** Assumes this is locked. */
+  private void publish() {
+    Conversation[] snapshot = _conversations.values().toArray(new Conversation[_conversations.size()]);
+    if (_subscriptions.isEmpty()) {
+      _unfiltered = snapshot;
+    }
+    else {
+      List<Conversation> unfiltered = new ArrayList<Conversation>(snapshot.length);
+      for (Conversation convo : snapshot) {
+        if (convo.getWatches().isEmpty()) unfiltered.add(convo);
+      }
+      _unfiltered = unfiltered.toArray(new Conversation[unfiltered.size()]);
+    }
+    _routes = new ConcurrentHashMap<String, Conversation[]>();
+    _snapshot = snapshot;
+  }
+
+}
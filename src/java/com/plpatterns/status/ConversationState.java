@@ -0,0 +1,226 @@
+package com.plpatterns.status;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Level;
+
+/**
+ * The settings of one {@link Conversation} that are worth keeping across
+ * restarts, copied out so they can be written on another thread.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class ConversationState {
+
+  private final String _participant;
+  private final String _threadId;
+  private final boolean _paused;
+  private final long _minMillisecondsBetweenMessages;
+  private final int _alwaysNotifyAtLevel;
+  private final boolean _coalescing;
+  private final boolean _digesting;
+  private final long _lastHeardFromMillis;
+  private final List<String> _watches;
+  private final String _filterMatching;
+  private final List<String> _filterIgnoring;
+  /** Bounds for "every auto", or 0 if it's off. */
+  private final long _autoMinMillis;
+  private final long _autoMaxMillis;
+
+  private ConversationState(String participant, String threadId, boolean paused,
+          long minMillisecondsBetweenMessages, int alwaysNotifyAtLevel,
+          boolean coalescing, boolean digesting, long lastHeardFromMillis,
+          List<String> watches, String filterMatching, List<String> filterIgnoring,
+          long autoMinMillis, long autoMaxMillis) {
+    _participant = participant;
+    _threadId = threadId;
+    _paused = paused;
+    _minMillisecondsBetweenMessages = minMillisecondsBetweenMessages;
+    _alwaysNotifyAtLevel = alwaysNotifyAtLevel;
+    _coalescing = coalescing;
+    _digesting = digesting;
+    _lastHeardFromMillis = lastHeardFromMillis;
+    _watches = watches;
+    _filterMatching = filterMatching;
+    _filterIgnoring = filterIgnoring;
+    _autoMinMillis = autoMinMillis;
+    _autoMaxMillis = autoMaxMillis;
+  }
+
+  public static ConversationState of(Conversation convo) {
+    Date lastHeardFrom = convo.getLastHeardFrom();
+    MessageFilter filter = convo.getFilter();
+    AdaptiveThrottle auto = convo.getAdaptiveThrottle();
+    return new ConversationState(
+            convo.getChat().getParticipant(),
+            convo.getChat().getThreadID(),
+            convo.isPaused(),
+            convo.getMinMillisecondsBetweenMessages(),
+            convo.getAlwaysNotifyAtLevel().toInt(),
+            convo.isCoalescing(),
+            convo.isDigesting(),
+            (lastHeardFrom == null) ? -1L : lastHeardFrom.getTime(),
+            new ArrayList<String>(convo.getWatches()),
+            filter.getMatchingTerm(),
+            filter.getIgnoredTerms(),
+            (auto == null) ? 0L : auto.getMinMillis(),
+            (auto == null) ? 0L : auto.getMaxMillis());
+  }
+
+  public String getParticipant() {
+    return _participant;
+  }
+
+  /** May be null. */
+  public String getThreadId() {
+    return _threadId;
+  }
+
+  public boolean isPaused() {
+    return _paused;
+  }
+
+  public long getMinMillisecondsBetweenMessages() {
+    return _minMillisecondsBetweenMessages;
+  }
+
+  /** Whether "every auto" was on. */
+  public boolean isAdaptive() {
+    return _autoMinMillis > 0;
+  }
+
+  public Level getAlwaysNotifyAtLevel() {
+    return Level.toLevel(_alwaysNotifyAtLevel, Level.WARN);
+  }
+
+  public boolean isCoalescing() {
+    return _coalescing;
+  }
+
+  public boolean isDigesting() {
+    return _digesting;
+  }
+
+  /** May be null. */
+  public Date getLastHeardFrom() {
+    return (_lastHeardFromMillis < 0) ? null : new Date(_lastHeardFromMillis);
+  }
+
+  public List<String> getWatches() {
+    return Collections.unmodifiableList(_watches);
+  }
+
+  /**
+   * Puts these settings on a conversation.  Watches are registered with
+   * the registry, which must already have the conversation.
+   */
+  public void applyTo(Conversation convo, ConversationRegistry registry) {
+    convo.setPaused(_paused);
+    convo.setMinMillisecondsBetweenMessages(_minMillisecondsBetweenMessages);
+    convo.setAdaptiveThrottle(isAdaptive() ? new AdaptiveThrottle(_autoMinMillis, _autoMaxMillis) : null);
+    convo.setAlwaysNotifyAtLevel(getAlwaysNotifyAtLevel());
+    convo.setCoalescing(_coalescing);
+    convo.setDigesting(_digesting);
+    convo.setLastHeardFrom(getLastHeardFrom());
+
+    MessageFilter filter = MessageFilter.NONE;
+    try {
+      if (_filterMatching != null) filter = filter.matching(_filterMatching);
+      for (String term : _filterIgnoring) {
+        filter = filter.ignoring(term);
+      }
+    }
+    catch (IllegalArgumentException e) {
+      // Saved by a version that understood it; not much we can do.
+    }
+    convo.setFilter(filter);
+
+    for (String prefix : _watches) {
+      try {
+        registry.watch(convo, prefix);
+      }
+      catch (IllegalArgumentException e) {}
+    }
+  }
+
+  void writeTo(DataOutput out) throws IOException {
+    out.writeUTF(_participant);
+    writeNullableUTF(out, _threadId);
+    out.writeBoolean(_paused);
+    out.writeLong(_minMillisecondsBetweenMessages);
+    out.writeInt(_alwaysNotifyAtLevel);
+    out.writeBoolean(_coalescing);
+    out.writeBoolean(_digesting);
+    out.writeLong(_lastHeardFromMillis);
+    writeStrings(out, _watches);
+    writeNullableUTF(out, _filterMatching);
+    writeStrings(out, _filterIgnoring);
+    out.writeLong(_autoMinMillis);
+    out.writeLong(_autoMaxMillis);
+  }
+
+  static ConversationState readFrom(DataInput in) throws IOException {
+    String participant = in.readUTF();
+    String threadId = readNullableUTF(in);
+    boolean paused = in.readBoolean();
+    long minMillis = in.readLong();
+    int level = in.readInt();
+    boolean coalescing = in.readBoolean();
+    boolean digesting = in.readBoolean();
+    long lastHeardFromMillis = in.readLong();
+    List<String> watches = readStrings(in);
+    String filterMatching = readNullableUTF(in);
+    List<String> filterIgnoring = readStrings(in);
+
+    long autoMin = 0L;
+    long autoMax = 0L;
+    try {
+      autoMin = in.readLong();
+      autoMax = in.readLong();
+    }
+    catch (EOFException e) {
+      // Saved before "every auto"; it was off.
+    }
+    if (autoMin <= 0 || autoMax < autoMin) {
+      autoMin = 0L;
+      autoMax = 0L;
+    }
+
+    return new ConversationState(participant, threadId, paused, minMillis, level,
+            coalescing, digesting, lastHeardFromMillis, watches, filterMatching,
+            filterIgnoring, autoMin, autoMax);
+  }
+
+  private static void writeNullableUTF(DataOutput out, String s) throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null) out.writeUTF(s);
+  }
+
+  private static String readNullableUTF(DataInput in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static void writeStrings(DataOutput out, List<String> strings) throws IOException {
+    out.writeShort(strings.size());
+    for (String s : strings) {
+      out.writeUTF(s);
+    }
+  }
+
+  private static List<String> readStrings(DataInput in) throws IOException {
+    int n = in.readUnsignedShort();
+    List<String> strings = new ArrayList<String>(n);
+    for (int i = 0; i < n; i++) {
+      strings.add(in.readUTF());
+    }
+    return strings;
+  }
+
+}
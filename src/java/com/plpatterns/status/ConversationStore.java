@@ -0,0 +1,321 @@
+package com.plpatterns.status;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps conversation settings in a local file so people don't have to IM
+ * us again after a restart.
+ * <p>
+ * Changes are appended to a journal next to the file, and every so often
+ * the whole state is written to a temp file and renamed over the file, and
+ * the journal is emptied.  Each record is its length, a CRC-32, and the
+ * data, so a record torn by a crash is noticed and it and anything after it
+ * are ignored.  Records replace what came before, so replaying a journal
+ * that a snapshot already includes is harmless.
+ * <p>
+ * All writing happens on one background thread through a
+ * {@link FileChannel}; callers just hand off a copy of the state.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class ConversationStore {
+
+  private static final Log LOG = LogFactory.getLog(ConversationStore.class);
+
+  private static final byte PUT = 1;
+  private static final byte REMOVE = 2;
+
+  /** Journal records written before we take a snapshot. */
+  private static final int SNAPSHOT_AFTER_RECORDS = 1000;
+
+  private static final long CLOSE_TIMEOUT_MILLIS = 5 * 1000L;
+
+  private final File _file;
+  private final File _journalFile;
+  private final File _tempFile;
+
+  private final ExecutorService _writer;
+
+  // Only touched on the writer thread, after load().
+  private final Map<String, ConversationState> _live =
+    new LinkedHashMap<String, ConversationState>();
+  private FileChannel _journal;
+  private int _journalRecords;
+
+  public ConversationStore(File file) {
+    _file = file;
+    _journalFile = new File(file.getPath() + ".journal");
+    _tempFile = new File(file.getPath() + ".tmp");
+    _writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "status-state-writer");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  public File getFile() {
+    return _file;
+  }
+
+  /**
+   * Reads the saved state and starts a fresh journal.  Call once, before
+   * anything else.
+   *
+   * @return saved conversations by participant, oldest first.
+   */
+  public synchronized List<ConversationState> load() {
+    long start = System.nanoTime();
+    Map<String, ConversationState> states = new LinkedHashMap<String, ConversationState>();
+    int records = replay(_file, states) + replay(_journalFile, states);
+
+    // Fold the journal into a snapshot now, which also drops any torn
+    // record at its end.
+    _live.putAll(states);
+    try {
+      if (_journalFile.length() > 0 || !_file.exists()) writeSnapshot();
+      _journal = new RandomAccessFile(_journalFile, "rw").getChannel();
+      _journal.truncate(0L);
+    }
+    catch (IOException e) {
+      LOG.error("couldn't start journal " + _journalFile + "; conversations won't be saved", e);
+    }
+
+    LOG.info(String.format("loaded %d conversations from %d records in %s",
+            states.size(), records, LatencyHistogram.formatNanos(System.nanoTime() - start)));
+    return new ArrayList<ConversationState>(states.values());
+  }
+
+  /**
+   * Saves a conversation's settings, in the background.
+   */
+  public void put(Conversation convo) {
+    final ConversationState state = ConversationState.of(convo);
+    submit(new Runnable() {
+      public void run() {
+        _live.remove(state.getParticipant());
+        _live.put(state.getParticipant(), state);
+        append(PUT, state.getParticipant(), state);
+      }
+    });
+  }
+
+  /**
+   * Forgets a conversation, in the background.
+   */
+  public void remove(final String participant) {
+    submit(new Runnable() {
+      public void run() {
+        if (_live.remove(participant) != null) {
+          append(REMOVE, participant, null);
+        }
+      }
+    });
+  }
+
+  /**
+   * Writes a final snapshot and stops.
+   */
+  public void close() {
+    submit(new Runnable() {
+      public void run() {
+        try {
+          if (_journal == null) return;
+          writeSnapshot();
+          _journal.truncate(0L);
+          _journal.close();
+          _journal = null;
+        }
+        catch (IOException e) {
+          LOG.error("couldn't write " + _file, e);
+        }
+      }
+    });
+    _writer.shutdown();
+    try {
+      _writer.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void submit(Runnable r) {
+    try {
+      _writer.execute(r);
+    }
+    catch (RuntimeException e) {
+      LOG.debug("not saving conversation state since we're closed");
+    }
+  }
+
+  /** On the writer thread. */
+  private void append(byte type, String participant, ConversationState state) {
+    if (_journal == null) return;
+
+    try {
+      writeFully(_journal, encode(type, participant, state));
+      if (++_journalRecords >= SNAPSHOT_AFTER_RECORDS) {
+        writeSnapshot();
+        _journal.truncate(0L);
+        _journal.position(0L);
+        _journalRecords = 0;
+      }
+    }
+    catch (IOException e) {
+      LOG.error("couldn't write to " + _journalFile, e);
+    }
+  }
+
+  /**
+   * Writes everything to a temp file and renames it into place, so the
+   * file is always either the old snapshot or the new one.
+   */
+  private void writeSnapshot() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for (ConversationState state : _live.values()) {
+      ByteBuffer record = encode(PUT, state.getParticipant(), state);
+      bytes.write(record.array(), 0, record.limit());
+    }
+
+    RandomAccessFile temp = new RandomAccessFile(_tempFile, "rw");
+    try {
+      FileChannel channel = temp.getChannel();
+      channel.truncate(0L);
+      writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()));
+      channel.force(true);
+    }
+    finally {
+      Utils.closeQuietly(temp);
+    }
+
+    // Some platforms won't rename over an existing file.
+    if (!_tempFile.renameTo(_file)) {
+      _file.delete();
+      if (!_tempFile.renameTo(_file)) {
+        throw new IOException("couldn't rename " + _tempFile + " to " + _file);
+      }
+    }
+  }
+
+  private static ByteBuffer encode(byte type, String participant, ConversationState state)
+          throws IOException {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+    DataOutputStream out = new DataOutputStream(payload);
+    out.writeByte(type);
+    if (type == PUT) {
+      state.writeTo(out);
+    }
+    else {
+      out.writeUTF(participant);
+    }
+    out.flush();
+    byte[] data = payload.toByteArray();
+
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    ByteBuffer record = ByteBuffer.allocate(8 + data.length);
+    record.putInt(data.length);
+    record.putInt((int)crc.getValue());
+    record.put(data);
+    record.flip();
+    return record;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining()) {
+      channel.write(buf);
+    }
+  }
+
+  /**
+   * Applies the records in a file to the given states, stopping at the
+   * first one that's torn or corrupt.
+   *
+   * @return the number of good records.
+   */
+  private static int replay(File file, Map<String, ConversationState> states) {
+    if (!file.exists()) return 0;
+
+    ByteBuffer buf;
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(file, "r");
+      FileChannel channel = raf.getChannel();
+      buf = ByteBuffer.allocate((int)channel.size());
+      while (buf.hasRemaining() && channel.read(buf) >= 0) {}
+      buf.flip();
+    }
+    catch (IOException e) {
+      LOG.error("couldn't read " + file, e);
+      return 0;
+    }
+    finally {
+      Utils.closeQuietly(raf);
+    }
+
+    int records = 0;
+    int goodBytes = 0;
+    CRC32 crc = new CRC32();
+    while (buf.remaining() >= 8) {
+      int length = buf.getInt();
+      int expectedCrc = buf.getInt();
+      if (length < 1 || length > buf.remaining()) break;
+
+      byte[] data = new byte[length];
+      buf.get(data);
+      crc.reset();
+      crc.update(data);
+      if ((int)crc.getValue() != expectedCrc) break;
+
+      try {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        byte type = in.readByte();
+        if (type == PUT) {
+          ConversationState state = ConversationState.readFrom(in);
+          states.remove(state.getParticipant());
+          states.put(state.getParticipant(), state);
+        }
+        else if (type == REMOVE) {
+          states.remove(in.readUTF());
+        }
+        else {
+          break;
+        }
+      }
+      catch (IOException e) {
+        break;
+      }
+      records++;
+      goodBytes = buf.position();
+    }
+    if (goodBytes < buf.limit()) {
+      LOG.warn("ignoring " + (buf.limit() - goodBytes) + " bytes of torn or corrupt records at the end of " + file);
+    }
+    return records;
+  }
+
+}
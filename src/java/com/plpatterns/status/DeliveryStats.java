@@ -0,0 +1,168 @@
+package com.plpatterns.status;
+
+/**
+ * What happened to the events routed to a conversation, or to all of
+ * them.  Each conversation's stats roll up into the appender's totals,
+ * which also keep latency histograms.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class DeliveryStats {
+
+  private final DeliveryStats _parent;
+
+  private final StripedCounter _received = new StripedCounter();
+  private final StripedCounter _paused = new StripedCounter();
+  private final StripedCounter _throttled = new StripedCounter();
+  private final StripedCounter _filtered = new StripedCounter();
+  private final StripedCounter _held = new StripedCounter();
+  private final StripedCounter _sent = new StripedCounter();
+  private final StripedCounter _shed = new StripedCounter();
+  private final StripedCounter _failed = new StripedCounter();
+
+  /** Only kept by the totals, to save memory per conversation. */
+  private final LatencyHistogram _sendLatency;
+  private final LatencyHistogram _eventLag;
+
+  /**
+   * Makes totals, which keep latency histograms.
+   */
+  public DeliveryStats() {
+    _parent = null;
+    _sendLatency = new LatencyHistogram();
+    _eventLag = new LatencyHistogram();
+  }
+
+  /**
+   * Makes stats for one conversation that also count toward the given
+   * totals.
+   */
+  public DeliveryStats(DeliveryStats parent) {
+    _parent = parent;
+    _sendLatency = null;
+    _eventLag = null;
+  }
+
+  /** An event was routed to us. */
+  void received() {
+    _received.increment();
+    if (_parent != null) _parent.received();
+  }
+
+  /** Dropped since they paused. */
+  void paused() {
+    _paused.increment();
+    if (_parent != null) _parent.paused();
+  }
+
+  /** Dropped by throttling. */
+  void throttled() {
+    _throttled.increment();
+    if (_parent != null) _parent.throttled();
+  }
+
+  /** Dropped by a message filter. */
+  void filtered() {
+    _filtered.increment();
+    if (_parent != null) _parent.filtered();
+  }
+
+  /** Kept to send later, in a digest, a coalesced update, or a backlog. */
+  void held() {
+    _held.increment();
+    if (_parent != null) _parent.held();
+  }
+
+  /**
+   * An IM went out.
+   *
+   * @param startNanos when we started sending it.
+   * @param eventMillis when the event it's about was logged, or 0 if it's
+   *                    not about one event.
+   */
+  void sent(long startNanos, long eventMillis) {
+    _sent.increment();
+    if (_sendLatency != null) {
+      _sendLatency.recordSince(startNanos);
+      if (eventMillis > 0) {
+        _eventLag.recordNanos((System.currentTimeMillis() - eventMillis) * 1000000L);
+      }
+    }
+    if (_parent != null) _parent.sent(startNanos, eventMillis);
+  }
+
+  /** An IM was given up on because we were over the send rate. */
+  void shed() {
+    _shed.increment();
+    if (_parent != null) _parent.shed();
+  }
+
+  /** Sending an IM failed. */
+  void failed() {
+    _failed.increment();
+    if (_parent != null) _parent.failed();
+  }
+
+  public long getReceived() {
+    return _received.sum();
+  }
+
+  public long getPaused() {
+    return _paused.sum();
+  }
+
+  public long getThrottled() {
+    return _throttled.sum();
+  }
+
+  public long getFiltered() {
+    return _filtered.sum();
+  }
+
+  public long getHeld() {
+    return _held.sum();
+  }
+
+  public long getSent() {
+    return _sent.sum();
+  }
+
+  public long getShed() {
+    return _shed.sum();
+  }
+
+  public long getFailed() {
+    return _failed.sum();
+  }
+
+  /**
+   * Time to hand an IM to Smack.  Null except for totals.
+   */
+  public LatencyHistogram getSendLatency() {
+    return _sendLatency;
+  }
+
+  /**
+   * Time from an event being logged to its IM going out, which includes
+   * time in the async queue.  Null except for totals.
+   */
+  public LatencyHistogram getEventLag() {
+    return _eventLag;
+  }
+
+  /**
+   * Like "received 120, sent 4, throttled 110, paused 0, filtered 6,
+   * held 0, shed 0, failed 0".
+   */
+  public String toHumanReadableString() {
+    return String.format("received %d, sent %d, throttled %d, paused %d, filtered %d, held %d, shed %d, failed %d",
+            getReceived(), getSent(), getThrottled(), getPaused(),
+            getFiltered(), getHeld(), getShed(), getFailed());
+  }
+
+  @Override
+  public String toString() {
+    return toHumanReadableString();
+  }
+
+}
@@ -0,0 +1,129 @@
+package com.plpatterns.status;
+
+import static org.apache.commons.lang.StringUtils.isBlank;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Collects events to be sent together as one IM.  Memory is bounded no
+ * matter how many events come in: only the first few are kept to show, and
+ * the rest are just counted by level.  Events aren't rendered until the
+ * digest is sent, and the ones that are only counted are never rendered.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class Digest {
+
+  public static final int DEFAULT_MAX_LINES = 10;
+  public static final int DEFAULT_MAX_EVENTS = 1000;
+
+  /** Levels we count separately, highest first. */
+  private static final Level[] LEVELS = {
+    Level.FATAL, Level.ERROR, Level.WARN, Level.INFO, Level.DEBUG
+  };
+
+  private final int _maxLines;
+  private final int _maxEvents;
+
+  // Guarded by this.
+  private final List<LoggingEvent> _shown;
+  private final int[] _counts = new int[LEVELS.length + 1];
+  private int _total;
+
+  /**
+   * @param maxLines how many events to show in full.
+   * @param maxEvents how many events to collect before the digest should be
+   *                  sent early.
+   */
+  public Digest(int maxLines, int maxEvents) {
+    _maxLines = Math.max(1, maxLines);
+    _maxEvents = Math.max(1, maxEvents);
+    _shown = new ArrayList<LoggingEvent>(_maxLines);
+  }
+
+  public int getMaxLines() {
+    return _maxLines;
+  }
+
+  public int getMaxEvents() {
+    return _maxEvents;
+  }
+
+  /**
+   * @return true if this event filled the digest and it should be sent.
+   *         Only one caller gets true each time it fills.
+   */
+  public synchronized boolean add(LoggingEvent event) {
+    if (_shown.size() < _maxLines) _shown.add(event);
+    _counts[levelIndex(event.getLevel())]++;
+    _total++;
+    return _total == _maxEvents;
+  }
+
+  public synchronized int size() {
+    return _total;
+  }
+
+  /**
+   * Renders everything collected so far and starts over.
+   *
+   * @return null if there was nothing collected.
+   */
+  public Summary drain() {
+    List<LoggingEvent> shown;
+    int[] counts;
+    int total;
+    synchronized (this) {
+      if (_total == 0) return null;
+
+      shown = new ArrayList<LoggingEvent>(_shown);
+      counts = _counts.clone();
+      total = _total;
+      _shown.clear();
+      Arrays.fill(_counts, 0);
+      _total = 0;
+    }
+
+    // Render outside the lock; messages may be slow Callables.
+    Level highest = Level.ALL;
+    StringBuilder sb = new StringBuilder();
+    sb.append(total).append(total == 1 ? " update" : " updates");
+    String sep = " (";
+    for (int i = 0; i < LEVELS.length; i++) {
+      if (counts[i] == 0) continue;
+      if (highest == Level.ALL) highest = LEVELS[i];
+      sb.append(sep).append(counts[i]).append(' ').append(LEVELS[i]);
+      sep = ", ";
+    }
+    if (counts[LEVELS.length] > 0) {
+      sb.append(sep).append(counts[LEVELS.length]).append(" other");
+      sep = ", ";
+    }
+    if (!sep.equals(" (")) sb.append(')');
+    sb.append(':');
+
+    for (LoggingEvent event : shown) {
+      String msg = XmppAppender.getMessage(event);
+      if (isBlank(msg)) continue;
+      sb.append('\n').append(event.getLevel()).append(' ').append(msg);
+    }
+
+    if (total > shown.size()) {
+      sb.append("\n... and ").append(total - shown.size()).append(" more");
+    }
+    return new Summary(sb.toString(), highest);
+  }
+
+  private static int levelIndex(Level level) {
+    for (int i = 0; i < LEVELS.length; i++) {
+      if (level.isGreaterOrEqual(LEVELS[i])) return i;
+    }
+    return LEVELS.length;
+  }
+
+}
@@ -0,0 +1,126 @@
+package com.plpatterns.status;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+import org.jivesoftware.smack.Chat;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.util.StringUtils;
+
+/**
+ * One message body going out to many people.  {@link Chat#sendMessage(String)}
+ * builds a new {@link Message} per person and Smack serializes each one from
+ * scratch, escaping the same body every time.  Here the body is escaped
+ * once, each {@link Conversation} caches the XML that's specific to it, and
+ * sending to one more person is just gluing a few strings together.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class FanOutMessage {
+
+  /** Packet IDs without going through Smack's synchronized generator. */
+  private static final String ID_PREFIX = StringUtils.randomString(5) + "-";
+  private static final AtomicLong ID_COUNTER = new AtomicLong();
+
+  private final String _body;
+  private final String _bodyXml;
+  private final long _eventMillis;
+  private final Level _level;
+
+  public FanOutMessage(String body) {
+    this(body, 0L, null);
+  }
+
+  public FanOutMessage(String body, long eventMillis) {
+    this(body, eventMillis, null);
+  }
+
+  /**
+   * @param eventMillis when the event this is about was logged, for
+   *                    measuring how long it took to go out.
+   * @param level the event's level, which decides its {@link SendScheduler}
+   *              lane, or null if it's not about one event.
+   */
+  public FanOutMessage(String body, long eventMillis, Level level) {
+    _body = body;
+    _bodyXml = "<body>" + StringUtils.escapeForXML(body) + "</body>";
+    _eventMillis = eventMillis;
+    _level = level;
+  }
+
+  public String getBody() {
+    return _body;
+  }
+
+  /** When the event this is about was logged, or 0 if unknown. */
+  public long getEventMillis() {
+    return _eventMillis;
+  }
+
+  /** The level of the event this is about, or null if unknown. */
+  public Level getLevel() {
+    return _level;
+  }
+
+  /**
+   * Makes the packet for one person.
+   *
+   * @param frame from {@link #frameFor(Chat)}.
+   */
+  public Message packetFor(Chat chat, String[] frame) {
+    return new Stanza(chat.getParticipant(), chat.getThreadID(), frame, this);
+  }
+
+  /**
+   * The parts of a message stanza that depend only on the chat, to be
+   * computed once and cached: everything before the packet ID and
+   * everything after the body.
+   */
+  public static String[] frameFor(Chat chat) {
+    return frameFor(chat.getParticipant(), chat.getThreadID());
+  }
+
+  static String[] frameFor(String participant, String threadId) {
+    String head = "<message to=\"" + StringUtils.escapeForXML(participant)
+                  + "\" type=\"chat\" id=\"";
+    String tail = (threadId == null) ? "</message>"
+                  : "<thread>" + StringUtils.escapeForXML(threadId) + "</thread></message>";
+    return new String[] { head, tail };
+  }
+
+  private static String nextId() {
+    return ID_PREFIX + ID_COUNTER.incrementAndGet();
+  }
+
+  /**
+   * A chat message whose XML is pasted together from pre-escaped parts.  The
+   * usual getters still work for anyone who inspects packets on the way out.
+   */
+  private static class Stanza extends Message {
+
+    private final String[] _frame;
+    private final FanOutMessage _msg;
+
+    Stanza(String to, String threadId, String[] frame, FanOutMessage msg) {
+      super(to, Message.Type.chat);
+      setThread(threadId);
+      setBody(msg.getBody());
+      setPacketID(nextId());
+      _frame = frame;
+      _msg = msg;
+    }
+
+    @Override
+    public String toXML() {
+      String id = getPacketID();
+      StringBuilder sb = new StringBuilder(_frame[0].length() + id.length() + 2
+              + _msg._bodyXml.length() + _frame[1].length());
+      sb.append(_frame[0]).append(id).append("\">")
+        .append(_msg._bodyXml)
+        .append(_frame[1]);
+      return sb.toString();
+    }
+
+  }
+
+}
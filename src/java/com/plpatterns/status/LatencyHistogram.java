@@ -0,0 +1,143 @@
+package com.plpatterns.status;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free histogram of durations, in the spirit of
+ * HdrHistogram.  Buckets double in width, and each doubling is split into
+ * {@value #SUB_BUCKETS} sub-buckets, so any percentile is accurate to
+ * within about 12% from a nanosecond up to hours.  Recording is a couple
+ * of atomic increments and never allocates.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /** Values of 2^MAX_EXPONENT ns (about 2.5 hours) and up share the last bucket. */
+  private static final int MAX_EXPONENT = 43;
+
+  private static final int BUCKETS = (MAX_EXPONENT + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong _count = new AtomicLong();
+  private final AtomicLong _sum = new AtomicLong();
+  private final AtomicLong _max = new AtomicLong();
+
+  public void recordNanos(long nanos) {
+    if (nanos < 0) nanos = 0;
+
+    _counts.incrementAndGet(bucketFor(nanos));
+    _count.incrementAndGet();
+    _sum.addAndGet(nanos);
+
+    long max;
+    while (nanos > (max = _max.get())) {
+      if (_max.compareAndSet(max, nanos)) break;
+    }
+  }
+
+  /** Records the time since the given {@link System#nanoTime()}. */
+  public void recordSince(long startNanos) {
+    recordNanos(System.nanoTime() - startNanos);
+  }
+
+  public long getCount() {
+    return _count.get();
+  }
+
+  public long getMaxNanos() {
+    return _max.get();
+  }
+
+  public long getMeanNanos() {
+    long n = _count.get();
+    return (n == 0) ? 0L : _sum.get() / n;
+  }
+
+  /**
+   * @param percentile between 0 and 100.
+   * @return an upper bound on the given percentile, or 0 if nothing has
+   *         been recorded.
+   */
+  public long getPercentileNanos(double percentile) {
+    long total = 0;
+    long[] counts = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = _counts.get(i);
+      total += counts[i];
+    }
+    if (total == 0) return 0L;
+
+    long rank = (long)Math.ceil(total * Math.min(100d, Math.max(0d, percentile)) / 100d);
+    rank = Math.max(1L, rank);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) return Math.min(upperBoundOf(i), getMaxNanos());
+    }
+    return getMaxNanos();
+  }
+
+  /**
+   * Forgets everything recorded so far.  Not atomic with respect to
+   * concurrent recording.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      _counts.set(i, 0L);
+    }
+    _count.set(0L);
+    _sum.set(0L);
+    _max.set(0L);
+  }
+
+  /**
+   * Like "n=1234 p50=1.2ms p90=3.4ms p99=10ms max=52ms".
+   */
+  public String toHumanReadableString() {
+    return String.format("n=%d p50=%s p90=%s p99=%s max=%s",
+            getCount(),
+            formatNanos(getPercentileNanos(50)),
+            formatNanos(getPercentileNanos(90)),
+            formatNanos(getPercentileNanos(99)),
+            formatNanos(getMaxNanos()));
+  }
+
+  @Override
+  public String toString() {
+    return toHumanReadableString();
+  }
+
+  public static String formatNanos(long nanos) {
+    if (nanos < 1000L) return nanos + "ns";
+    if (nanos < 1000000L) return String.format("%.1fus", nanos / 1e3d);
+    if (nanos < 1000000000L) return String.format("%.1fms", nanos / 1e6d);
+    return String.format("%.2fs", nanos / (double)TimeUnit.SECONDS.toNanos(1));
+  }
+
+  private static int bucketFor(long nanos) {
+    if (nanos < SUB_BUCKETS) return (int)nanos;
+
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+
+    // The next SUB_BUCKET_BITS bits below the leading one pick the sub-bucket.
+    int sub = (int)(nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  private static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) return bucket;
+
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    int sub = bucket % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return (1L << exponent) + (sub + 1) * width - 1;
+  }
+
+}
@@ -0,0 +1,200 @@
+package com.plpatterns.status;
+
+import static org.apache.commons.lang.StringUtils.isBlank;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * The most recent event from each logger at each level, for the "last"
+ * IM command.  Throttling means people only see a fraction of what's
+ * logged; this lets them ask what's going on right now instead.
+ * <p>
+ * Each logger gets a slot per level that's overwritten in place, so
+ * recording an event is a hash lookup, one small allocation and one
+ * volatile write, and memory is bounded by the number of loggers, not
+ * events.  Only the logger, level, time and message object are kept, not
+ * the event, so its throwable, MDC and the like can be collected.
+ * <p>
+ * Nothing is rendered until someone asks.  A message that's a
+ * {@link java.util.concurrent.Callable} shows what it returns when the
+ * "last" command runs, not what it would have returned when it was
+ * logged, and whatever it refers to stays reachable until it's replaced.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class LatestEvents {
+
+  public static final int DEFAULT_MAX_LOGGERS = 1000;
+
+  /** How many events "last" shows at most. */
+  public static final int MAX_LINES = 10;
+
+  /** Levels we keep a slot for, highest first. */
+  private static final Level[] LEVELS = {
+    Level.FATAL, Level.ERROR, Level.WARN, Level.INFO, Level.DEBUG
+  };
+
+  private static final Comparator<Entry> NEWEST_FIRST = new Comparator<Entry>() {
+    public int compare(Entry a, Entry b) {
+      return (a._timeStamp > b._timeStamp) ? -1 : (a._timeStamp < b._timeStamp) ? 1 : 0;
+    }
+  };
+
+  private final int _maxLoggers;
+  private final ConcurrentHashMap<String, AtomicReferenceArray<Entry>> _latest =
+    new ConcurrentHashMap<String, AtomicReferenceArray<Entry>>();
+
+  /**
+   * What we keep of an event.
+   */
+  public static class Entry {
+
+    private final String _loggerName;
+    private final Level _level;
+    private final long _timeStamp;
+    private final Object _message;
+
+    Entry(LoggingEvent event) {
+      _loggerName = event.getLoggerName();
+      _level = event.getLevel();
+      _timeStamp = event.timeStamp;
+      _message = event.getMessage();
+    }
+
+    public String getLoggerName() {
+      return _loggerName;
+    }
+
+    public Level getLevel() {
+      return _level;
+    }
+
+    public long getTimeStamp() {
+      return _timeStamp;
+    }
+
+    /** The message as it was logged, which may be a Callable. */
+    public Object getMessage() {
+      return _message;
+    }
+
+  }
+
+  public LatestEvents() {
+    this(DEFAULT_MAX_LOGGERS);
+  }
+
+  /**
+   * @param maxLoggers loggers to remember; events from loggers past that
+   *                   are not kept, so odd logger names can't fill memory.
+   */
+  public LatestEvents(int maxLoggers) {
+    _maxLoggers = Math.max(1, maxLoggers);
+  }
+
+  /**
+   * Remembers an event, replacing the last one from its logger at its level.
+   */
+  public void record(LoggingEvent event) {
+    String name = event.getLoggerName();
+    AtomicReferenceArray<Entry> slots = _latest.get(name);
+    if (slots == null) {
+      // Only the first event from each logger gets here.
+      if (_latest.size() >= _maxLoggers) return;
+
+      slots = new AtomicReferenceArray<Entry>(LEVELS.length);
+      AtomicReferenceArray<Entry> raced = _latest.putIfAbsent(name, slots);
+      if (raced != null) slots = raced;
+    }
+    slots.set(levelIndex(event.getLevel()), new Entry(event));
+  }
+
+  /** Number of loggers we've seen. */
+  public int size() {
+    return _latest.size();
+  }
+
+  public void clear() {
+    _latest.clear();
+  }
+
+  /**
+   * The latest events from a logger and the loggers under it, newest first.
+   *
+   * @param prefix as returned by {@link SubscriptionIndex#normalize(String)};
+   *               empty for every logger.
+   */
+  public List<Entry> get(String prefix) {
+    List<Entry> events = new ArrayList<Entry>();
+    for (Map.Entry<String, AtomicReferenceArray<Entry>> entry : _latest.entrySet()) {
+      if (!isUnder(entry.getKey(), prefix)) continue;
+
+      AtomicReferenceArray<Entry> slots = entry.getValue();
+      for (int i = 0; i < slots.length(); i++) {
+        Entry event = slots.get(i);
+        if (event != null) events.add(event);
+      }
+    }
+    Collections.sort(events, NEWEST_FIRST);
+    return events;
+  }
+
+  /**
+   * Renders the latest events under a logger prefix for an IM, like
+   * "status.billing WARN 12 seconds ago: retrying invoice 42".
+   *
+   * @return null if there haven't been any.
+   */
+  public String toHumanReadableString(String prefix, long nowMillis) {
+    List<Entry> events = get(prefix);
+    if (events.isEmpty()) return null;
+
+    StringBuilder sb = new StringBuilder();
+    int shown = 0;
+    for (Entry event : events) {
+      if (shown == MAX_LINES) break;
+
+      // Render here, not when logged; messages may be slow Callables.
+      String msg = XmppAppender.renderMessage(event._message);
+      if (isBlank(msg)) continue;
+
+      if (shown > 0) sb.append('\n');
+      sb.append(event._loggerName).append(' ').append(event._level).append(' ')
+        .append(formatAge(nowMillis - event._timeStamp)).append(": ").append(msg);
+      shown++;
+    }
+    if (shown == 0) return null;
+    if (events.size() > shown) {
+      sb.append("\n... and ").append(events.size() - shown).append(" more");
+    }
+    return sb.toString();
+  }
+
+  private static String formatAge(long millis) {
+    return (millis < 1000L) ? "just now" : Utils.formatPeriod(millis) + " ago";
+  }
+
+  private static boolean isUnder(String name, String prefix) {
+    if (prefix.length() == 0) return true;
+    return name.startsWith(prefix)
+           && (name.length() == prefix.length() || name.charAt(prefix.length()) == '.');
+  }
+
+  private static int levelIndex(Level level) {
+    for (int i = 0; i < LEVELS.length - 1; i++) {
+      if (level.isGreaterOrEqual(LEVELS[i])) return i;
+    }
+    // DEBUG and anything lower share the last slot.
+    return LEVELS.length - 1;
+  }
+
+}
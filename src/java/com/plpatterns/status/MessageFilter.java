@@ -0,0 +1,264 @@
+package com.plpatterns.status;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Which messages a person wants, by what they say, like "only messages
+ * matching /failed|stuck/" or "nothing with heartbeat in it".  Terms are
+ * either a regular expression between slashes, optionally followed by "i"
+ * to ignore case, or plain text to look for without regard to case.  Each
+ * is compiled once, when it's set.
+ * <p>
+ * Filters run on logging threads, and the regexes come from whoever IMs
+ * us, so a regex only looks at the start of a message and gets a few
+ * milliseconds to decide.  One that runs out of time is turned off rather
+ * than left to stall logging on every message.
+ * <p>
+ * Filters never change; adding a term makes a new one.  Only the counts of
+ * what got through change.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class MessageFilter {
+
+  /** How much of a message a regex looks at. */
+  static final int MAX_REGEX_INPUT = 4096;
+
+  /** How long a regex may take on one message before it's turned off. */
+  static final long MAX_REGEX_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+  /** Lets everything through. */
+  public static final MessageFilter NONE = new MessageFilter(null, Collections.<Term>emptyList());
+
+  private final Term _include;
+  private final List<Term> _ignores;
+
+  private final AtomicLong _passed = new AtomicLong();
+  private final AtomicLong _blocked = new AtomicLong();
+
+  private MessageFilter(Term include, List<Term> ignores) {
+    _include = include;
+    _ignores = ignores;
+  }
+
+  /**
+   * A filter with the same things ignored, but only letting through
+   * messages that match the given term.
+   *
+   * @throws IllegalArgumentException if the term isn't a valid regex.
+   */
+  public MessageFilter matching(String term) {
+    return new MessageFilter(Term.parse(term), _ignores);
+  }
+
+  /**
+   * A filter that also blocks messages matching the given term.
+   *
+   * @throws IllegalArgumentException if the term isn't a valid regex.
+   */
+  public MessageFilter ignoring(String term) {
+    List<Term> ignores = new ArrayList<Term>(_ignores);
+    ignores.add(Term.parse(term));
+    return new MessageFilter(_include, ignores);
+  }
+
+  /** The term messages must match, as it was given, or null. */
+  public String getMatchingTerm() {
+    return (_include == null) ? null : _include._spec;
+  }
+
+  /** Terms that block messages, as they were given. */
+  public List<String> getIgnoredTerms() {
+    List<String> terms = new ArrayList<String>(_ignores.size());
+    for (Term ignore : _ignores) {
+      terms.add(ignore._spec);
+    }
+    return terms;
+  }
+
+  public boolean isEmpty() {
+    return _include == null && _ignores.isEmpty();
+  }
+
+  public boolean accepts(String msg) {
+    // A term that's been turned off doesn't filter anything.
+    boolean accepted = (_include == null || _include.matches(msg, true));
+    for (int i = 0; accepted && i < _ignores.size(); i++) {
+      accepted = !_ignores.get(i).matches(msg, false);
+    }
+    (accepted ? _passed : _blocked).incrementAndGet();
+    return accepted;
+  }
+
+  /** Number of messages let through since this filter was set. */
+  public long getPassed() {
+    return _passed.get();
+  }
+
+  /** Number of messages blocked since this filter was set. */
+  public long getBlocked() {
+    return _blocked.get();
+  }
+
+  /**
+   * Like "matching /failed|stuck/, ignoring heartbeat (12 passed, 340
+   * blocked)", or "off".  A regex that took too long is marked "too slow,
+   * turned off".
+   */
+  public String toHumanReadableString() {
+    if (isEmpty()) return "off";
+
+    StringBuilder sb = new StringBuilder();
+    if (_include != null) {
+      sb.append("matching ").append(_include);
+    }
+    for (Term ignore : _ignores) {
+      sb.append(sb.length() == 0 ? "ignoring " : ", ignoring ").append(ignore);
+    }
+    sb.append(" (").append(getPassed()).append(" passed, ")
+      .append(getBlocked()).append(" blocked)");
+    return sb.toString();
+  }
+
+  @Override
+  public String toString() {
+    return toHumanReadableString();
+  }
+
+  private static class Term {
+
+    private final String _spec;
+    private final Pattern _pattern;
+    private final String _text;
+
+    /** Set once the regex takes too long on a message. */
+    private volatile boolean _tooSlow;
+
+    private Term(String spec, Pattern pattern, String text) {
+      _spec = spec;
+      _pattern = pattern;
+      _text = text;
+    }
+
+    static Term parse(String spec) {
+      spec = (spec == null) ? "" : spec.trim();
+      if (spec.length() == 0) throw new IllegalArgumentException("nothing to match");
+
+      int close = spec.lastIndexOf('/');
+      boolean regex = spec.length() > 2 && spec.charAt(0) == '/' && close > 0 &&
+                      (close == spec.length() - 1 ||
+                       close == spec.length() - 2 && Character.toLowerCase(spec.charAt(close + 1)) == 'i');
+      if (!regex) return new Term(spec, null, spec);
+
+      int flags = (close == spec.length() - 1) ? 0 : Pattern.CASE_INSENSITIVE;
+      try {
+        return new Term(spec, Pattern.compile(spec.substring(1, close), flags), null);
+      }
+      catch (PatternSyntaxException e) {
+        throw new IllegalArgumentException(e.getDescription(), e);
+      }
+    }
+
+    /**
+     * @param ifTooSlow what to say if this is a regex that's been turned
+     *                  off for taking too long.
+     */
+    boolean matches(String msg, boolean ifTooSlow) {
+      if (_pattern != null) {
+        if (_tooSlow) return ifTooSlow;
+        try {
+          return _pattern.matcher(new DeadlineCharSequence(msg, MAX_REGEX_INPUT, MAX_REGEX_NANOS)).find();
+        }
+        catch (DeadlineCharSequence.TimeUp e) {
+          _tooSlow = true;
+          return ifTooSlow;
+        }
+      }
+
+      int length = _text.length();
+      int max = msg.length() - length;
+      for (int i = 0; i <= max; i++) {
+        if (msg.regionMatches(true, i, _text, 0, length)) return true;
+      }
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      return _tooSlow ? _spec + " (too slow, turned off)" : _spec;
+    }
+
+  }
+
+  /**
+   * The start of a string, which gives up partway through a regex match
+   * once its time is up.  The matcher reads every character through
+   * {@link #charAt(int)}, so that's where the clock is checked.
+   */
+  private static class DeadlineCharSequence implements CharSequence {
+
+    /** How many characters to read between looks at the clock. */
+    private static final int CHECK_EVERY = 256;
+
+    private final String _s;
+    private final int _start;
+    private final int _end;
+    private final long _deadlineNanos;
+    private int _reads;
+
+    DeadlineCharSequence(String s, int maxLength, long maxNanos) {
+      this(s, 0, Math.min(s.length(), maxLength), System.nanoTime() + maxNanos);
+    }
+
+    private DeadlineCharSequence(String s, int start, int end, long deadlineNanos) {
+      _s = s;
+      _start = start;
+      _end = end;
+      _deadlineNanos = deadlineNanos;
+    }
+
+    public char charAt(int index) {
+      if (++_reads % CHECK_EVERY == 0 && System.nanoTime() - _deadlineNanos > 0) {
+        throw new TimeUp();
+      }
+      return _s.charAt(_start + index);
+    }
+
+    public int length() {
+      return _end - _start;
+    }
+
+    public CharSequence subSequence(int start, int end) {
+      return new DeadlineCharSequence(_s, _start + start, _start + end, _deadlineNanos);
+    }
+
+    @Override
+    public String toString() {
+      return _s.substring(_start, _end);
+    }
+
+    private static class TimeUp extends RuntimeException {
+
+      private static final long serialVersionUID = 1L;
+
+      TimeUp() {
+        // Thrown once per slow regex, so skip the stack trace.
+        super(null, null);
+      }
+
+      @Override
+      public synchronized Throwable fillInStackTrace() {
+        return this;
+      }
+
+    }
+
+  }
+
+}
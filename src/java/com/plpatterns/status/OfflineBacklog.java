@@ -0,0 +1,200 @@
+package com.plpatterns.status;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Holds on to the latest events for people who are offline, so they can
+ * get a summary when they come back instead of nothing, or everything.
+ * <p>
+ * Each person keeps at most a set number of events, and all of them
+ * together at most a set total; past either limit the oldest are dropped.
+ * Every event is on two linked lists, its person's and one across everyone
+ * in arrival order, so dropping the oldest overall is as cheap as dropping
+ * someone's oldest.  Like {@link Digest}, events aren't rendered until
+ * they're sent.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class OfflineBacklog {
+
+  private final int _maxPerPerson;
+  private final int _maxTotal;
+
+  // Guarded by this.
+  private final Map<Conversation, Backlog> _backlogs = new HashMap<Conversation, Backlog>();
+  private Node _oldest;
+  private Node _newest;
+  private int _size;
+  private long _dropped;
+
+  /**
+   * @param maxPerPerson events to keep for each offline person.
+   * @param maxTotal events to keep across everyone.
+   */
+  public OfflineBacklog(int maxPerPerson, int maxTotal) {
+    _maxPerPerson = Math.max(1, maxPerPerson);
+    _maxTotal = Math.max(1, maxTotal);
+  }
+
+  public synchronized void add(Conversation convo, LoggingEvent event) {
+    Backlog backlog = _backlogs.get(convo);
+    if (backlog == null) {
+      backlog = new Backlog();
+      _backlogs.put(convo, backlog);
+    }
+
+    Node node = new Node(backlog, event);
+    if (backlog._newest == null) {
+      backlog._oldest = node;
+    }
+    else {
+      backlog._newest._nextForPerson = node;
+    }
+    backlog._newest = node;
+    backlog._size++;
+
+    node._prev = _newest;
+    if (_newest == null) {
+      _oldest = node;
+    }
+    else {
+      _newest._next = node;
+    }
+    _newest = node;
+    _size++;
+
+    if (backlog._size > _maxPerPerson) dropOldest(backlog);
+    while (_size > _maxTotal) dropOldest(_oldest._backlog);
+  }
+
+  /**
+   * Takes everything held for the person, rendered as one summary.
+   *
+   * @return null if nothing was held.
+   */
+  public Summary drain(Conversation convo) {
+    List<LoggingEvent> events = new ArrayList<LoggingEvent>();
+    int dropped;
+    synchronized (this) {
+      Backlog backlog = _backlogs.remove(convo);
+      if (backlog == null) return null;
+
+      for (Node node = backlog._oldest; node != null; node = node._nextForPerson) {
+        events.add(node._event);
+        unlink(node);
+      }
+      dropped = backlog._dropped;
+    }
+    if (events.isEmpty()) {
+      if (dropped == 0) return null;
+      return new Summary("while you were away, " + dropped + (dropped == 1 ? " update" : " updates")
+                         + " came in, but i couldn't hold on to them", null);
+    }
+
+    // Render outside the lock; messages may be slow Callables.
+    Digest digest = new Digest(events.size(), Integer.MAX_VALUE);
+    for (LoggingEvent event : events) {
+      digest.add(event);
+    }
+    Summary summary = digest.drain();
+    StringBuilder sb = new StringBuilder("while you were away, ").append(summary.getBody());
+    if (dropped > 0) {
+      sb.append("\n(").append(dropped).append(dropped == 1 ? " older update" : " older updates")
+        .append(" didn't fit)");
+    }
+    return new Summary(sb.toString(), summary.getLevel());
+  }
+
+  /**
+   * Forgets everything held for the person.
+   */
+  public synchronized void discard(Conversation convo) {
+    Backlog backlog = _backlogs.remove(convo);
+    if (backlog == null) return;
+
+    for (Node node = backlog._oldest; node != null; node = node._nextForPerson) {
+      unlink(node);
+    }
+  }
+
+  /** Events held across everyone. */
+  public synchronized int size() {
+    return _size;
+  }
+
+  /** Events dropped to stay under the limits. */
+  public synchronized long getDropped() {
+    return _dropped;
+  }
+
+  public int getMaxPerPerson() {
+    return _maxPerPerson;
+  }
+
+  public int getMaxTotal() {
+    return _maxTotal;
+  }
+
+  /** Assumes this is locked. */
+  private void dropOldest(Backlog backlog) {
+    Node node = backlog._oldest;
+    backlog._oldest = node._nextForPerson;
+    if (backlog._oldest == null) {
+      // Keep the empty backlog so they still hear that updates were dropped.
+      backlog._newest = null;
+    }
+    backlog._size--;
+    backlog._dropped++;
+    _dropped++;
+    unlink(node);
+  }
+
+  /** Takes the node off the list across everyone.  Assumes this is locked. */
+  private void unlink(Node node) {
+    if (node._prev == null) {
+      _oldest = node._next;
+    }
+    else {
+      node._prev._next = node._next;
+    }
+    if (node._next == null) {
+      _newest = node._prev;
+    }
+    else {
+      node._next._prev = node._prev;
+    }
+    node._prev = null;
+    node._next = null;
+    _size--;
+  }
+
+  private static class Backlog {
+
+    private Node _oldest;
+    private Node _newest;
+    private int _size;
+    private int _dropped;
+
+  }
+
+  private static class Node {
+
+    private final Backlog _backlog;
+    private final LoggingEvent _event;
+    private Node _nextForPerson;
+    private Node _prev;
+    private Node _next;
+
+    Node(Backlog backlog, LoggingEvent event) {
+      _backlog = backlog;
+      _event = event;
+    }
+
+  }
+
+}
@@ -0,0 +1,39 @@
+package com.plpatterns.status;
+
+/**
+ * What to do with a logged event when the async queue is full.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public enum OverflowPolicy {
+
+  /** Throw away the oldest queued event to make room for the new one. */
+  DROP_OLDEST,
+
+  /** Throw away the new event. */
+  DROP_NEWEST,
+
+  /**
+   * Wait for room, up to a timeout, then throw away the new event.  This is
+   * the only policy that can make a logging thread wait.
+   */
+  BLOCK;
+
+  /**
+   * Parses a policy name from a config file, being lenient about case and
+   * dashes.
+   *
+   * @return defaultPolicy if the name isn't recognized.
+   */
+  public static OverflowPolicy toPolicy(String name, OverflowPolicy defaultPolicy) {
+    if (name == null) return defaultPolicy;
+
+    try {
+      return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+    catch (IllegalArgumentException e) {
+      return defaultPolicy;
+    }
+  }
+
+}
@@ -0,0 +1,261 @@
+package com.plpatterns.status;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Reads system stats straight out of Linux's /proc instead of running a
+ * program like top.  CPU usage needs two readings to compare, so a daemon
+ * thread reads /proc/stat every second into a small ring, and questions are
+ * answered from what's already there without waiting.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class ProcSampler {
+
+  private static final Log LOG = LogFactory.getLog(ProcSampler.class);
+
+  private static final File PROC_STAT = new File("/proc/stat");
+  private static final File PROC_MEMINFO = new File("/proc/meminfo");
+  private static final File PROC_LOADAVG = new File("/proc/loadavg");
+  private static final File PROC_SELF_STATUS = new File("/proc/self/status");
+
+  private static final long SAMPLE_INTERVAL_MILLIS = 1000L;
+
+  /** Enough samples to look back a minute. */
+  private static final int RING_SIZE = 61;
+
+  // Indexes of the columns on the "cpu" line of /proc/stat.
+  public static final int USER = 0;
+  public static final int NICE = 1;
+  public static final int SYSTEM = 2;
+  public static final int IDLE = 3;
+  public static final int IOWAIT = 4;
+  public static final int IRQ = 5;
+  public static final int SOFTIRQ = 6;
+  public static final int STEAL = 7;
+  private static final int CPU_FIELDS = 8;
+
+  private static ProcSampler _instance;
+  private static Thread _thread;
+
+  /** Guarded by this.  Each entry is the cpu line's jiffies, or null. */
+  private final long[][] _ring = new long[RING_SIZE][];
+  private int _next;
+  private int _count;
+
+  private ProcSampler() {}
+
+  /**
+   * Whether this looks like Linux with /proc mounted.
+   */
+  public static boolean isAvailable() {
+    return PROC_STAT.canRead();
+  }
+
+  /**
+   * Gets the sampler, starting its thread the first time.
+   */
+  public static synchronized ProcSampler getInstance() {
+    if (_instance == null) {
+      final ProcSampler sampler = new ProcSampler();
+      sampler.sample();
+
+      Thread t = new Thread(new Runnable() {
+        public void run() {
+          while (true) {
+            try {
+              Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+            }
+            catch (InterruptedException e) {
+              return;
+            }
+            sampler.sample();
+          }
+        }
+      }, "status-proc-sampler");
+      t.setDaemon(true);
+      t.start();
+
+      _instance = sampler;
+      _thread = t;
+    }
+    return _instance;
+  }
+
+  /**
+   * Stops the sampler's thread, so an undeployed app doesn't leave it
+   * reading /proc forever.  The next {@link #getInstance()} starts over.
+   */
+  public static synchronized void shutdown() {
+    if (_thread == null) return;
+
+    _thread.interrupt();
+    _thread = null;
+    _instance = null;
+  }
+
+  private void sample() {
+    long[] cpu = readCpuJiffies();
+    if (cpu == null) return;
+
+    synchronized (this) {
+      _ring[_next] = cpu;
+      _next = (_next + 1) % RING_SIZE;
+      if (_count < RING_SIZE) _count++;
+    }
+  }
+
+  /**
+   * Percent of CPU time spent in each state over roughly the last given
+   * number of seconds, indexed by {@link #USER}, {@link #IDLE}, etc.  With
+   * only one sample so far, this is the average since boot.
+   *
+   * @return null if we couldn't read /proc/stat.
+   */
+  public double[] getCpuPercentages(int seconds) {
+    long[] newest;
+    long[] oldest;
+    synchronized (this) {
+      if (_count == 0) return null;
+
+      int back = Math.min(Math.max(seconds, 1), _count - 1);
+      newest = _ring[(_next - 1 + RING_SIZE) % RING_SIZE];
+      oldest = (back == 0) ? new long[CPU_FIELDS]
+               : _ring[(_next - 1 - back + RING_SIZE) % RING_SIZE];
+    }
+
+    long total = 0;
+    long[] delta = new long[CPU_FIELDS];
+    for (int i = 0; i < CPU_FIELDS; i++) {
+      delta[i] = Math.max(0L, newest[i] - oldest[i]);
+      total += delta[i];
+    }
+
+    double[] pct = new double[CPU_FIELDS];
+    if (total == 0) {
+      pct[IDLE] = 100d;
+      return pct;
+    }
+    for (int i = 0; i < CPU_FIELDS; i++) {
+      pct[i] = 100d * delta[i] / total;
+    }
+    return pct;
+  }
+
+  /**
+   * Percent of CPU time not idle or waiting on I/O.
+   */
+  public static double busy(double[] pct) {
+    return 100d - pct[IDLE] - pct[IOWAIT];
+  }
+
+  /**
+   * @return 1, 5 and 15 minute load averages, or null if unavailable.
+   */
+  public static double[] readLoadAverages() {
+    String line = readFirstLine(PROC_LOADAVG);
+    if (line == null) return null;
+
+    String[] parts = line.trim().split("\\s+");
+    if (parts.length < 3) return null;
+
+    try {
+      return new double[] {
+        Double.parseDouble(parts[0]),
+        Double.parseDouble(parts[1]),
+        Double.parseDouble(parts[2])
+      };
+    }
+    catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return /proc/meminfo as a map from name to kilobytes.
+   */
+  public static Map<String, Long> readMemInfo() {
+    return readKilobyteFields(PROC_MEMINFO);
+  }
+
+  /**
+   * @return /proc/self/status's numeric fields, e.g. VmRSS in kilobytes and
+   *         Threads as a count.
+   */
+  public static Map<String, Long> readSelfStatus() {
+    return readKilobyteFields(PROC_SELF_STATUS);
+  }
+
+  private static long[] readCpuJiffies() {
+    String line = readFirstLine(PROC_STAT);
+    if (line == null || !line.startsWith("cpu ")) return null;
+
+    String[] parts = line.trim().split("\\s+");
+    long[] cpu = new long[CPU_FIELDS];
+    for (int i = 0; i < CPU_FIELDS && i + 1 < parts.length; i++) {
+      try {
+        cpu[i] = Long.parseLong(parts[i + 1]);
+      }
+      catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    return cpu;
+  }
+
+  /**
+   * Parses lines like "MemTotal:    8058696 kB" or "Threads:  12".
+   */
+  private static Map<String, Long> readKilobyteFields(File file) {
+    Map<String, Long> fields = new HashMap<String, Long>();
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new FileReader(file));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int colon = line.indexOf(':');
+        if (colon < 0) continue;
+
+        String[] value = line.substring(colon + 1).trim().split("\\s+");
+        if (value.length == 0) continue;
+        try {
+          fields.put(line.substring(0, colon).trim(), Long.valueOf(value[0]));
+        }
+        catch (NumberFormatException e) {
+          // Not a number, like State or Name.
+        }
+      }
+    }
+    catch (IOException e) {
+      LOG.debug("couldn't read " + file, e);
+    }
+    finally {
+      Utils.closeQuietly(reader);
+    }
+    return fields;
+  }
+
+  private static String readFirstLine(File file) {
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new FileReader(file));
+      return reader.readLine();
+    }
+    catch (IOException e) {
+      LOG.debug("couldn't read " + file, e);
+      return null;
+    }
+    finally {
+      Utils.closeQuietly(reader);
+    }
+  }
+
+}
@@ -0,0 +1,250 @@
+package com.plpatterns.status;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress through a long job, for the "progress" IM command.  Logging
+ * "Done 41%" after every item builds a string and goes through log4j each
+ * time, just to have almost all of them thrown away by throttling.
+ * Instead, workers call {@link #increment()}, which is an atomic add on a
+ * {@link StripedCounter} and allocates nothing, and the appender samples
+ * every tracker every few seconds to work out how fast things are going.
+ * <p>
+ * Trackers are looked up by name, like loggers:
+ * <pre>
+ * ProgressTracker progress = ProgressTracker.start("import", items.size());
+ * for (Item item : items) {
+ *   doWork(item);
+ *   progress.increment();
+ * }
+ * progress.finish();
+ * </pre>
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class ProgressTracker {
+
+  /** How often appenders sample trackers. */
+  public static final long SAMPLE_MILLIS = 5000L;
+
+  /** How long a finished job is still shown before it's forgotten. */
+  public static final long FINISHED_TTL_MILLIS = 60 * 60 * 1000L;
+
+  /** How long it takes an old rate's weight in the moving average to decay to 1/e. */
+  private static final double AVERAGE_SECONDS = 60d;
+
+  private static final ConcurrentHashMap<String, ProgressTracker> TRACKERS =
+    new ConcurrentHashMap<String, ProgressTracker>();
+
+  private static final Comparator<ProgressTracker> BY_NAME = new Comparator<ProgressTracker>() {
+    public int compare(ProgressTracker a, ProgressTracker b) {
+      return a._name.compareTo(b._name);
+    }
+  };
+
+  private final String _name;
+  private final StripedCounter _done = new StripedCounter();
+  private final long _startNanos;
+  private volatile long _total;
+  /** Only meaningful once _finished is set, which is written after it. */
+  private long _finishNanos;
+  private volatile boolean _finished;
+
+  // Guarded by this.
+  private long _lastSampleNanos;
+  private long _lastSampleDone;
+
+  private volatile double _rate = Double.NaN;
+  private volatile double _averageRate = Double.NaN;
+
+  private ProgressTracker(String name, long total) {
+    _name = name;
+    _total = Math.max(0L, total);
+    _startNanos = System.nanoTime();
+    _lastSampleNanos = _startNanos;
+  }
+
+  /**
+   * Starts tracking a job, replacing any earlier one with the same name.
+   *
+   * @param total how many items there are, or 0 if we don't know.
+   */
+  public static ProgressTracker start(String name, long total) {
+    ProgressTracker tracker = new ProgressTracker(name, total);
+    TRACKERS.put(name, tracker);
+    return tracker;
+  }
+
+  /**
+   * @return null if nothing by that name has been started.
+   */
+  public static ProgressTracker get(String name) {
+    return TRACKERS.get(name);
+  }
+
+  /** Everything being tracked, by name. */
+  public static List<ProgressTracker> getAll() {
+    List<ProgressTracker> trackers = new ArrayList<ProgressTracker>(TRACKERS.values());
+    Collections.sort(trackers, BY_NAME);
+    return trackers;
+  }
+
+  /**
+   * Samples every tracker, and forgets ones that finished more than
+   * {@link #FINISHED_TTL_MILLIS} ago.  Appenders call this every
+   * {@link #SAMPLE_MILLIS} from their timer thread.
+   */
+  static void sampleAll(long nowNanos) {
+    long ttlNanos = TimeUnit.MILLISECONDS.toNanos(FINISHED_TTL_MILLIS);
+    for (ProgressTracker tracker : TRACKERS.values()) {
+      if (tracker.isFinished() && nowNanos - tracker._finishNanos >= ttlNanos) {
+        tracker.remove();
+      }
+      else {
+        tracker.sample(nowNanos);
+      }
+    }
+  }
+
+  public String getName() {
+    return _name;
+  }
+
+  public void increment() {
+    _done.increment();
+  }
+
+  public void add(long items) {
+    _done.add(items);
+  }
+
+  public long getDone() {
+    return _done.sum();
+  }
+
+  /** How many items there are, or 0 if we don't know. */
+  public long getTotal() {
+    return _total;
+  }
+
+  /** For when the total isn't known up front, or changes. */
+  public void setTotal(long total) {
+    _total = Math.max(0L, total);
+  }
+
+  /**
+   * Marks the job done.  It's still shown, with how long it took, for
+   * {@link #FINISHED_TTL_MILLIS}, or until another with the same name is
+   * started or it's removed.
+   */
+  public synchronized void finish() {
+    if (_finished) return;
+    _finishNanos = System.nanoTime();
+    _finished = true;
+  }
+
+  public boolean isFinished() {
+    return _finished;
+  }
+
+  /** Stops tracking it. */
+  public void remove() {
+    TRACKERS.remove(_name, this);
+  }
+
+  /** Items per second over the last sample, or NaN before the first. */
+  public double getRate() {
+    return _rate;
+  }
+
+  /** Exponential moving average of items per second, or NaN before the first sample. */
+  public double getAverageRate() {
+    return _averageRate;
+  }
+
+  /**
+   * Milliseconds until done at the average rate, or -1 if we can't tell.
+   */
+  public long getEtaMillis() {
+    long total = _total;
+    double rate = _averageRate;
+    if (total <= 0L || isFinished() || !(rate > 0d)) return -1L;
+
+    long left = total - getDone();
+    return (left <= 0L) ? 0L : (long)(left / rate * 1000d);
+  }
+
+  /**
+   * Updates the rates.  Samples closer together than half the sample period
+   * are ignored, so several appenders sampling the same tracker don't skew
+   * the average.
+   */
+  synchronized void sample(long nowNanos) {
+    if (isFinished()) return;
+
+    long elapsed = nowNanos - _lastSampleNanos;
+    if (elapsed < TimeUnit.MILLISECONDS.toNanos(SAMPLE_MILLIS / 2)) return;
+
+    long done = getDone();
+    double seconds = elapsed / 1e9d;
+    double rate = Math.max(0L, done - _lastSampleDone) / seconds;
+    double average = _averageRate;
+    if (Double.isNaN(average)) {
+      average = rate;
+    }
+    else {
+      double weight = 1d - Math.exp(-seconds / AVERAGE_SECONDS);
+      average += weight * (rate - average);
+    }
+
+    _lastSampleNanos = nowNanos;
+    _lastSampleDone = done;
+    _rate = rate;
+    _averageRate = average;
+  }
+
+  /**
+   * Like "import: 412345 of 1000000 (41%), 5120/s now, 4980/s average,
+   * about 2 minutes left".
+   */
+  public String toHumanReadableString() {
+    long done = getDone();
+    long total = _total;
+    StringBuilder sb = new StringBuilder(_name).append(": ");
+
+    if (isFinished()) {
+      long millis = TimeUnit.NANOSECONDS.toMillis(_finishNanos - _startNanos);
+      sb.append("finished ").append(done).append(" in ").append(Utils.formatPeriod(Math.max(1L, millis)));
+      if (millis > 0L) sb.append(String.format(" (%.0f/s)", done * 1000d / millis));
+      return sb.toString();
+    }
+
+    sb.append(done);
+    if (total > 0L) {
+      sb.append(" of ").append(total).append(String.format(" (%.0f%%)", Math.min(100d, done * 100d / total)));
+    }
+    double rate = _rate;
+    if (Double.isNaN(rate)) return sb.toString();
+
+    sb.append(String.format(", %.0f/s now, %.0f/s average", rate, _averageRate));
+    long eta = getEtaMillis();
+    if (eta > 0L) {
+      sb.append(", about ").append(Utils.formatPeriod(eta)).append(" left");
+    }
+    else if (total > 0L && !(_averageRate > 0d)) {
+      sb.append(", stalled");
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public String toString() {
+    return _name;
+  }
+
+}
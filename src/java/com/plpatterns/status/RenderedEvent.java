@@ -0,0 +1,41 @@
+package com.plpatterns.status;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * An event whose message is rendered the first time someone asks for it,
+ * then shared.  Lives only as long as one event's delivery, on one thread.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+class RenderedEvent {
+
+  private final LoggingEvent _event;
+  private String _message;
+
+  RenderedEvent(LoggingEvent event) {
+    _event = event;
+  }
+
+  LoggingEvent getEvent() {
+    return _event;
+  }
+
+  String getMessage() {
+    if (_message == null) {
+      _message = XmppAppender.getMessage(_event);
+    }
+    return _message;
+  }
+
+  /** Whether there's nothing to send, which renders it if need be. */
+  boolean isBlank() {
+    return StringUtils.isBlank(getMessage());
+  }
+
+  boolean isRendered() {
+    return _message != null;
+  }
+
+}
@@ -0,0 +1,113 @@
+package com.plpatterns.status;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free, multi-producer multi-consumer queue backed by a ring
+ * of slots.  Each slot carries a sequence number that tells producers and
+ * consumers whose turn it is, so neither side ever takes a lock.  The
+ * capacity is rounded up to a power of two.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class RingBuffer<E> {
+
+  private final int _mask;
+  private final AtomicReferenceArray<E> _elements;
+  private final AtomicLongArray _sequences;
+  private final AtomicLong _head = new AtomicLong();
+  private final AtomicLong _tail = new AtomicLong();
+
+  public RingBuffer(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+
+    int size = 1;
+    while (size < capacity) size <<= 1;
+
+    _mask = size - 1;
+    _elements = new AtomicReferenceArray<E>(size);
+    _sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      _sequences.set(i, i);
+    }
+  }
+
+  public int capacity() {
+    return _mask + 1;
+  }
+
+  /**
+   * Adds an element if there is room.
+   *
+   * @return false if the buffer is full.
+   */
+  public boolean offer(E e) {
+    if (e == null) throw new NullPointerException();
+
+    while (true) {
+      long tail = _tail.get();
+      int index = (int)tail & _mask;
+      long seq = _sequences.get(index);
+
+      if (seq == tail) {
+        // The slot is free; try to claim it.
+        if (_tail.compareAndSet(tail, tail + 1)) {
+          _elements.lazySet(index, e);
+          _sequences.set(index, tail + 1);
+          return true;
+        }
+      }
+      else if (seq < tail) {
+        // The consumer hasn't freed this slot yet, so we're full.
+        return false;
+      }
+      // Otherwise another producer beat us to it; retry.
+    }
+  }
+
+  /**
+   * Removes the oldest element.
+   *
+   * @return null if the buffer is empty.
+   */
+  public E poll() {
+    while (true) {
+      long head = _head.get();
+      int index = (int)head & _mask;
+      long seq = _sequences.get(index);
+
+      if (seq == head + 1) {
+        // The slot is full; try to claim it.
+        if (_head.compareAndSet(head, head + 1)) {
+          E e = _elements.get(index);
+          _elements.lazySet(index, null);
+          _sequences.set(index, head + _mask + 1);
+          return e;
+        }
+      }
+      else if (seq < head + 1) {
+        // The producer hasn't filled this slot yet, so we're empty.
+        return null;
+      }
+      // Otherwise another consumer beat us to it; retry.
+    }
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Approximate number of elements; exact when there is no concurrent access.
+   */
+  public int size() {
+    long size = _tail.get() - _head.get();
+    if (size < 0) return 0;
+    return (int)Math.min(size, capacity());
+  }
+
+}
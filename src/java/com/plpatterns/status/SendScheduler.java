@@ -0,0 +1,378 @@
+package com.plpatterns.status;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.Level;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * Keeps everything the appender sends under the account's rate limit.
+ * XMPP servers throttle each account, and past the limit they delay or
+ * drop whatever comes next, errors included.  Here every outgoing stanza
+ * waits in one of three lanes, errors first, then warnings and replies to
+ * people, then everything else, and one thread sends them as a token
+ * bucket allows: a burst of a few, then a steady rate.
+ * <p>
+ * When the lanes fill up, the oldest message in the lowest lane is shed to
+ * make room, and low-lane messages that have waited too long are shed
+ * rather than sent late.  An error never waits behind a heartbeat.  A shed
+ * message gives back the throttle interval it took, if any.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class SendScheduler {
+
+  private static final Log LOG = LogFactory.getLog(SendScheduler.class);
+
+  public static final int DEFAULT_BURST = 10;
+  public static final int DEFAULT_CAPACITY = 1000;
+  public static final long DEFAULT_MAX_LOW_WAIT_MILLIS = 60 * 1000L;
+
+  /** How long the sender waits for a connection before looking again. */
+  private static final long DISCONNECTED_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  /**
+   * Where a message waits, highest priority first.
+   */
+  public enum Lane {
+    /** ERROR and FATAL. */
+    URGENT,
+    /** WARN, and replies and alerts that aren't about one event. */
+    NORMAL,
+    /** INFO and below, including heartbeats, digests and summaries. */
+    LOW;
+
+    public static Lane of(Level level) {
+      if (level == null) return NORMAL;
+      if (level.isGreaterOrEqual(Level.ERROR)) return URGENT;
+      if (level.isGreaterOrEqual(Level.WARN)) return NORMAL;
+      return LOW;
+    }
+  }
+
+  private static final Lane[] LANES = Lane.values();
+
+  private final XmppAppender _appender;
+  private final double _tokensPerNano;
+  private final double _burst;
+  private final int _capacity;
+  private final long _maxLowWaitNanos;
+  private final Thread _thread;
+
+  private final ReentrantLock _lock = new ReentrantLock();
+  private final Condition _notEmpty = _lock.newCondition();
+
+  // Guarded by _lock.
+  private final LinkedList<Outgoing>[] _lanes;
+  private int _size;
+  private boolean _running = true;
+
+  // Only touched by the sender thread.
+  private double _tokens;
+  private long _lastRefillNanos;
+
+  private final AtomicLong[] _sent = new AtomicLong[LANES.length];
+  private final AtomicLong[] _shed = new AtomicLong[LANES.length];
+  private final AtomicLong _failed = new AtomicLong();
+
+  /**
+   * @param ratePerSecond messages per second to send at, on average.
+   * @param burst how many can go out at once after a quiet spell.
+   * @param capacity how many can wait across all lanes.
+   * @param maxLowWaitMillis how long a low-lane message may wait before
+   *                         it's shed instead of sent.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public SendScheduler(XmppAppender appender, double ratePerSecond, int burst,
+                       int capacity, long maxLowWaitMillis) {
+    if (!(ratePerSecond > 0d)) throw new IllegalArgumentException("rate must be positive: " + ratePerSecond);
+
+    _appender = appender;
+    _tokensPerNano = ratePerSecond / 1e9d;
+    _burst = Math.max(1, burst);
+    _capacity = Math.max(1, capacity);
+    _maxLowWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, maxLowWaitMillis));
+    _tokens = _burst;
+    _lastRefillNanos = System.nanoTime();
+
+    _lanes = new LinkedList[LANES.length];
+    for (int i = 0; i < LANES.length; i++) {
+      _lanes[i] = new LinkedList<Outgoing>();
+      _sent[i] = new AtomicLong();
+      _shed[i] = new AtomicLong();
+    }
+
+    _thread = new Thread(new Runnable() {
+      public void run() {
+        drain();
+      }
+    }, "status-send-scheduler");
+    _thread.setDaemon(true);
+    _thread.start();
+  }
+
+  /**
+   * Queues a stanza to go out on whatever connection we have when its turn
+   * comes.
+   *
+   * @param stats counts it as sent, shed or failed, or null if it isn't
+   *              counted.
+   * @param eventMillis when the event it's about was logged, or 0.
+   * @param claim the throttle interval taken for it, given back if it's
+   *              shed, or null.
+   * @return false if it was shed to make room for something else, or we've
+   *         been shut down.
+   */
+  public boolean submit(Lane lane, Packet packet, DeliveryStats stats, long eventMillis,
+                        ThrottleClaim claim) {
+    Outgoing out = new Outgoing(lane, packet, stats, eventMillis, claim);
+    _lock.lock();
+    try {
+      if (!_running) {
+        shed(out);
+        return false;
+      }
+
+      if (_size >= _capacity) {
+        // Make room by shedding the oldest of the least important, unless
+        // everything waiting matters more than this.
+        int lowest = LANES.length - 1;
+        while (lowest > lane.ordinal() && _lanes[lowest].isEmpty()) lowest--;
+        if (_lanes[lowest].isEmpty() || lowest < lane.ordinal()) {
+          shed(out);
+          return false;
+        }
+        shed(_lanes[lowest].removeFirst());
+        _size--;
+      }
+
+      _lanes[lane.ordinal()].addLast(out);
+      _size++;
+      _notEmpty.signal();
+      return true;
+    }
+    finally {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Stops taking new messages and gives the sender up to the given time to
+   * send what's waiting, at the usual rate.  Anything left is shed.
+   */
+  public void shutdown(long timeoutMillis) {
+    _lock.lock();
+    try {
+      _running = false;
+      _notEmpty.signal();
+    }
+    finally {
+      _lock.unlock();
+    }
+
+    try {
+      _thread.join(timeoutMillis);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    _thread.interrupt();
+
+    _lock.lock();
+    try {
+      for (LinkedList<Outgoing> lane : _lanes) {
+        for (Outgoing out : lane) {
+          shed(out);
+        }
+        lane.clear();
+      }
+      _size = 0;
+    }
+    finally {
+      _lock.unlock();
+    }
+  }
+
+  private void drain() {
+    try {
+      while (true) {
+        Outgoing out = take();
+        if (out == null) return;
+
+        XMPPConnection con = _appender.getConnection();
+        long start = System.nanoTime();
+        try {
+          con.sendPacket(out._packet);
+        }
+        catch (RuntimeException e) {
+          _failed.incrementAndGet();
+          if (out._stats != null) out._stats.failed();
+          if (!_appender.isLoggedIn()) _appender.getConnectionSupervisor().connectionLost(e);
+          LOG.debug("failed sending " + out._packet.getPacketID(), e);
+          continue;
+        }
+        _sent[out._lane.ordinal()].incrementAndGet();
+        if (out._stats != null) out._stats.sent(start, out._eventMillis);
+      }
+    }
+    catch (InterruptedException e) {
+      // Shut down.
+    }
+  }
+
+  /**
+   * Waits for something to send, a token to send it with, and a connection
+   * to send it on, then takes the most important thing waiting.
+   *
+   * @return null once we're shut down and there's nothing left.
+   */
+  private Outgoing take() throws InterruptedException {
+    while (true) {
+      long waitNanos;
+      _lock.lockInterruptibly();
+      try {
+        shedStale();
+        if (_size == 0) {
+          if (!_running) return null;
+          _notEmpty.await();
+          continue;
+        }
+
+        waitNanos = nanosUntilToken();
+        if (waitNanos == 0L && !_appender.isLoggedIn()) waitNanos = DISCONNECTED_WAIT_NANOS;
+        if (waitNanos == 0L) {
+          _tokens -= 1d;
+          for (LinkedList<Outgoing> lane : _lanes) {
+            if (lane.isEmpty()) continue;
+            _size--;
+            return lane.removeFirst();
+          }
+        }
+      }
+      finally {
+        _lock.unlock();
+      }
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+
+  /** Assumes _lock is held. */
+  private long nanosUntilToken() {
+    long now = System.nanoTime();
+    _tokens = Math.min(_burst, _tokens + (now - _lastRefillNanos) * _tokensPerNano);
+    _lastRefillNanos = now;
+    if (_tokens >= 1d) return 0L;
+    return Math.max(1L, (long)Math.ceil((1d - _tokens) / _tokensPerNano));
+  }
+
+  /** Assumes _lock is held. */
+  private void shedStale() {
+    LinkedList<Outgoing> low = _lanes[Lane.LOW.ordinal()];
+    long now = System.nanoTime();
+    while (!low.isEmpty() && now - low.getFirst()._queuedNanos > _maxLowWaitNanos) {
+      shed(low.removeFirst());
+      _size--;
+    }
+  }
+
+  private void shed(Outgoing out) {
+    _shed[out._lane.ordinal()].incrementAndGet();
+    if (out._stats != null) out._stats.shed();
+    if (out._claim != null) out._claim.release();
+  }
+
+  public int getDepth(Lane lane) {
+    _lock.lock();
+    try {
+      return _lanes[lane.ordinal()].size();
+    }
+    finally {
+      _lock.unlock();
+    }
+  }
+
+  public long getSent(Lane lane) {
+    return _sent[lane.ordinal()].get();
+  }
+
+  public long getShed(Lane lane) {
+    return _shed[lane.ordinal()].get();
+  }
+
+  /** Messages waiting in every lane. */
+  public int getDepth() {
+    _lock.lock();
+    try {
+      return _size;
+    }
+    finally {
+      _lock.unlock();
+    }
+  }
+
+  /** Messages shed from every lane. */
+  public long getShed() {
+    long shed = 0;
+    for (AtomicLong count : _shed) {
+      shed += count.get();
+    }
+    return shed;
+  }
+
+  public long getFailed() {
+    return _failed.get();
+  }
+
+  public double getRatePerSecond() {
+    return _tokensPerNano * 1e9d;
+  }
+
+  /**
+   * Like "urgent: 0 waiting, 12 sent, 0 shed".
+   */
+  public String toHumanReadableString(Lane lane) {
+    return String.format("%s: %d waiting, %d sent, %d shed",
+            lane.name().toLowerCase(), getDepth(lane), getSent(lane), getShed(lane));
+  }
+
+  /**
+   * Like "5/s, burst 10; urgent: 0 waiting, 12 sent, 0 shed; normal: ...".
+   */
+  public String toHumanReadableString() {
+    double rate = getRatePerSecond();
+    String formattedRate = (rate == Math.rint(rate)) ? String.valueOf((long)rate) : String.format("%.2f", rate);
+    StringBuilder sb = new StringBuilder(formattedRate).append("/s, burst ").append((int)_burst);
+    for (Lane lane : LANES) {
+      sb.append("; ").append(toHumanReadableString(lane));
+    }
+    return sb.toString();
+  }
+
+  private static class Outgoing {
+
+    private final Lane _lane;
+    private final Packet _packet;
+    private final DeliveryStats _stats;
+    private final long _eventMillis;
+    private final ThrottleClaim _claim;
+    private final long _queuedNanos = System.nanoTime();
+
+    Outgoing(Lane lane, Packet packet, DeliveryStats stats, long eventMillis,
+             ThrottleClaim claim) {
+      _lane = lane;
+      _packet = packet;
+      _stats = stats;
+      _eventMillis = eventMillis;
+      _claim = claim;
+    }
+
+  }
+
+}
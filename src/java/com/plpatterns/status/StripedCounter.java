@@ -0,0 +1,91 @@
+package com.plpatterns.status;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for hot paths, like java.util.concurrent.atomic.LongAdder,
+ * which we can't use since we build for Java 5.  It starts out as a single
+ * {@link AtomicLong}.  The first time two threads collide on it, it grows
+ * a set of cells, each on its own cache line, and threads spread their
+ * increments across them by thread ID.  Reading adds everything up, so
+ * it's slower than writing and only roughly consistent while writes are
+ * happening.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class StripedCounter {
+
+  /** Longs per cell, so cells don't share a 64-byte cache line. */
+  private static final int PAD = 8;
+
+  private static final int CELLS;
+  static {
+    int cells = 1;
+    int cpus = Runtime.getRuntime().availableProcessors();
+    while (cells < cpus * 2 && cells < 64) cells <<= 1;
+    CELLS = cells;
+  }
+
+  private final AtomicLong _base = new AtomicLong();
+  private volatile AtomicLongArray _cells;
+
+  public void increment() {
+    add(1L);
+  }
+
+  public void add(long x) {
+    AtomicLongArray cells = _cells;
+    if (cells == null) {
+      long base = _base.get();
+      if (_base.compareAndSet(base, base + x)) return;
+      cells = growCells();
+    }
+    cells.addAndGet(cellIndex(), x);
+  }
+
+  public long sum() {
+    long sum = _base.get();
+    AtomicLongArray cells = _cells;
+    if (cells != null) {
+      for (int i = 0; i < CELLS; i++) {
+        sum += cells.get(i * PAD);
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Sets it back to zero.  Increments happening at the same time may or
+   * may not be lost.
+   */
+  public void reset() {
+    _base.set(0L);
+    AtomicLongArray cells = _cells;
+    if (cells != null) {
+      for (int i = 0; i < CELLS; i++) {
+        cells.set(i * PAD, 0L);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return Long.toString(sum());
+  }
+
+  private synchronized AtomicLongArray growCells() {
+    if (_cells == null) {
+      _cells = new AtomicLongArray(CELLS * PAD);
+    }
+    return _cells;
+  }
+
+  private static int cellIndex() {
+    // Fibonacci hashing spreads sequential thread IDs across cells.
+    long id = Thread.currentThread().getId();
+    int hash = (int)((id * 0x9E3779B97F4A7C15L) >>> 32);
+    return (hash & (CELLS - 1)) * PAD;
+  }
+
+}
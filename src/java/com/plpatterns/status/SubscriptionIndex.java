@@ -0,0 +1,144 @@
+package com.plpatterns.status;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Who is watching which logger names, as a trie keyed on the dot-separated
+ * parts of the name.  Watching "status.billing" gets events from that
+ * logger and everything under it, like "status.billing.invoices", the same
+ * way log4j's category hierarchy works.  Finding the watchers of a logger
+ * name walks one node per part of the name, no matter how many watches
+ * there are.
+ * <p>
+ * Not thread-safe; {@link ConversationRegistry} guards it.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+class SubscriptionIndex {
+
+  private final Node _root = new Node(null, null);
+  private int _size;
+
+  /**
+   * Cleans up a watch pattern like "status.billing.*" into the logger
+   * name prefix it means, "status.billing".  "*" means every logger, which
+   * is the empty prefix.
+   *
+   * @return null if it isn't a logger name or prefix.
+   */
+  static String normalize(String pattern) {
+    if (pattern == null) return null;
+
+    String prefix = pattern.trim();
+    if (prefix.endsWith("*")) prefix = prefix.substring(0, prefix.length() - 1);
+    if (prefix.endsWith(".")) prefix = prefix.substring(0, prefix.length() - 1);
+    if (prefix.length() == 0) return prefix;
+
+    if (prefix.startsWith(".") || prefix.indexOf("..") >= 0 || prefix.indexOf('*') >= 0) {
+      return null;
+    }
+    for (int i = 0; i < prefix.length(); i++) {
+      if (Character.isWhitespace(prefix.charAt(i))) return null;
+    }
+    return prefix;
+  }
+
+  /**
+   * @param prefix as returned by {@link #normalize(String)}.
+   * @return false if the conversation was already watching it.
+   */
+  boolean add(String prefix, Conversation convo) {
+    Node node = _root;
+    for (String part : parts(prefix)) {
+      node = node.child(part, true);
+    }
+    if (node._watchers.contains(convo)) return false;
+
+    node._watchers.add(convo);
+    _size++;
+    return true;
+  }
+
+  /**
+   * @return false if the conversation wasn't watching it.
+   */
+  boolean remove(String prefix, Conversation convo) {
+    Node node = _root;
+    for (String part : parts(prefix)) {
+      node = node.child(part, false);
+      if (node == null) return false;
+    }
+    if (!node._watchers.remove(convo)) return false;
+
+    _size--;
+    node.prune();
+    return true;
+  }
+
+  boolean isEmpty() {
+    return _size == 0;
+  }
+
+  /**
+   * Adds everyone watching the given logger or any of its ancestors.
+   */
+  void collect(String loggerName, Set<Conversation> watchers) {
+    Node node = _root;
+    watchers.addAll(node._watchers);
+    if (loggerName == null) return;
+
+    int start = 0;
+    while (start <= loggerName.length()) {
+      int dot = loggerName.indexOf('.', start);
+      if (dot < 0) dot = loggerName.length();
+
+      node = node.child(loggerName.substring(start, dot), false);
+      if (node == null) return;
+      watchers.addAll(node._watchers);
+      start = dot + 1;
+    }
+  }
+
+  private static String[] parts(String prefix) {
+    return (prefix.length() == 0) ? new String[0] : prefix.split("\\.");
+  }
+
+  private static class Node {
+
+    private final String _part;
+    private final Node _parent;
+    private Map<String, Node> _children;
+    private final List<Conversation> _watchers = new ArrayList<Conversation>(1);
+
+    Node(String part, Node parent) {
+      _part = part;
+      _parent = parent;
+    }
+
+    Node child(String part, boolean create) {
+      Node child = (_children == null) ? null : _children.get(part);
+      if (child == null && create) {
+        if (_children == null) _children = new HashMap<String, Node>();
+        child = new Node(part, this);
+        _children.put(part, child);
+      }
+      return child;
+    }
+
+    /** Removes this node and any ancestors that are no longer needed. */
+    void prune() {
+      Node node = this;
+      while (node._parent != null && node._watchers.isEmpty() &&
+             (node._children == null || node._children.isEmpty())) {
+        node._parent._children.remove(node._part);
+        node = node._parent;
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,39 @@
+package com.plpatterns.status;
+
+import org.apache.log4j.Level;
+
+/**
+ * One IM that sums up several events, like a digest or what someone
+ * missed while they were away.  It carries the highest level among them,
+ * so a summary with an error in it is sent as urgently as the error.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class Summary {
+
+  private final String _body;
+  private final Level _level;
+
+  /**
+   * @param level the highest level summed up, or null if it's not about
+   *              any event in particular.
+   */
+  public Summary(String body, Level level) {
+    _body = body;
+    _level = level;
+  }
+
+  public String getBody() {
+    return _body;
+  }
+
+  public Level getLevel() {
+    return _level;
+  }
+
+  @Override
+  public String toString() {
+    return _body;
+  }
+
+}
@@ -0,0 +1,142 @@
+package com.plpatterns.status;
+
+import java.util.Date;
+
+/**
+ * What the machine and JVM looked like at one moment, as gathered by
+ * {@link SystemStats#getSnapshot()}.  Numbers that couldn't be read are
+ * negative (or NaN for fractions).  Apps can use this in their own status
+ * messages.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class SystemSnapshot {
+
+  private final long _takenAtMillis;
+  private String _hostname;
+  private String _hostAddress;
+  private String _summary;
+  private double _loadAverage = Double.NaN;
+  private double _cpuBusyPercent = Double.NaN;
+  private long _memUsedBytes = -1L;
+  private long _memTotalBytes = -1L;
+  private long _residentBytes = -1L;
+  private long _heapUsedBytes = -1L;
+  private long _heapMaxBytes = -1L;
+  private int _jvmThreads = -1;
+
+  SystemSnapshot(long takenAtMillis) {
+    _takenAtMillis = takenAtMillis;
+  }
+
+  public long getTakenAtMillis() {
+    return _takenAtMillis;
+  }
+
+  public Date getTakenAt() {
+    return new Date(_takenAtMillis);
+  }
+
+  public long getAgeMillis() {
+    return System.currentTimeMillis() - _takenAtMillis;
+  }
+
+  /** May be null if it hasn't been looked up yet or the lookup failed. */
+  public String getHostname() {
+    return _hostname;
+  }
+
+  void setHostname(String hostname) {
+    _hostname = hostname;
+  }
+
+  public String getHostAddress() {
+    return _hostAddress;
+  }
+
+  void setHostAddress(String hostAddress) {
+    _hostAddress = hostAddress;
+  }
+
+  /** Multi-line human-readable stats, without the hostname. */
+  public String getSummary() {
+    return _summary;
+  }
+
+  void setSummary(String summary) {
+    _summary = summary;
+  }
+
+  /** One-minute load average. */
+  public double getLoadAverage() {
+    return _loadAverage;
+  }
+
+  void setLoadAverage(double loadAverage) {
+    _loadAverage = loadAverage;
+  }
+
+  /** Percent of CPU not idle over the last minute. */
+  public double getCpuBusyPercent() {
+    return _cpuBusyPercent;
+  }
+
+  void setCpuBusyPercent(double cpuBusyPercent) {
+    _cpuBusyPercent = cpuBusyPercent;
+  }
+
+  public long getMemUsedBytes() {
+    return _memUsedBytes;
+  }
+
+  void setMemUsedBytes(long memUsedBytes) {
+    _memUsedBytes = memUsedBytes;
+  }
+
+  public long getMemTotalBytes() {
+    return _memTotalBytes;
+  }
+
+  void setMemTotalBytes(long memTotalBytes) {
+    _memTotalBytes = memTotalBytes;
+  }
+
+  /** Resident set size of this process. */
+  public long getResidentBytes() {
+    return _residentBytes;
+  }
+
+  void setResidentBytes(long residentBytes) {
+    _residentBytes = residentBytes;
+  }
+
+  public long getHeapUsedBytes() {
+    return _heapUsedBytes;
+  }
+
+  void setHeapUsedBytes(long heapUsedBytes) {
+    _heapUsedBytes = heapUsedBytes;
+  }
+
+  public long getHeapMaxBytes() {
+    return _heapMaxBytes;
+  }
+
+  void setHeapMaxBytes(long heapMaxBytes) {
+    _heapMaxBytes = heapMaxBytes;
+  }
+
+  public int getJvmThreads() {
+    return _jvmThreads;
+  }
+
+  void setJvmThreads(int jvmThreads) {
+    _jvmThreads = jvmThreads;
+  }
+
+  @Override
+  public String toString() {
+    return (_hostname == null) ? _summary : _hostname + "\n" + _summary;
+  }
+
+}
@@ -2,17 +2,255 @@ package com.plpatterns.status;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * System and JVM stats for the "system" command, or for apps to put in
+ * their own status messages.
+ * <p>
+ * Gathering stats can be slow: looking up the hostname can wait on DNS, and
+ * without /proc we have to run top.  So callers always get a cached
+ * {@link SystemSnapshot}, and a background thread takes a fresh one when
+ * the cached one is getting old.
+ */
 public class SystemStats {
+
+  private static final Log LOG = LogFactory.getLog(SystemStats.class);
   
   private static final String TOP_CMD = "top -n 2 -b -d 0.2";
   private static final int DEFAULT_LINES = 12;
+
+  /** How far back the longer CPU average looks. */
+  private static final int CPU_WINDOW_SECONDS = 60;
+
+  private static final long DEFAULT_TTL_MILLIS = 10 * 1000L;
+
+  /** How often to look up the hostname again. */
+  private static final long HOSTNAME_TTL_MILLIS = 10 * 60 * 1000L;
+
+  /**
+   * Refresh once a snapshot is this fraction of the TTL old, so that
+   * callers rarely see one that's actually expired.
+   */
+  private static final double REFRESH_AHEAD_FRACTION = 0.75d;
+
+  private static volatile long _ttlMillis = DEFAULT_TTL_MILLIS;
+  private static volatile SystemSnapshot _snapshot;
+  private static volatile String _hostname;
+  private static volatile String _hostAddress;
+  private static volatile long _hostnameResolvedAtMillis;
+  private static final AtomicBoolean _refreshing = new AtomicBoolean();
+
+  private static final ExecutorService REFRESHER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "status-system-stats");
+      t.setDaemon(true);
+      return t;
+    }
+  });
   
   private SystemStats() {}
 
   public static void main(String[] args) {
-    System.out.println(getTopOutput());
+    resolveHostname();
+    System.out.println(takeSnapshot(true));
+  }
+
+  /**
+   * Gets the latest system stats without waiting on anything slow.  If the
+   * cached snapshot is getting old, a fresh one is taken in the background
+   * for next time.  The very first call takes a quick snapshot on the spot,
+   * without the hostname or anything that needs a child process.
+   */
+  public static SystemSnapshot getSnapshot() {
+    SystemSnapshot snapshot = _snapshot;
+    if (snapshot == null) {
+      snapshot = takeSnapshot(false);
+      _snapshot = snapshot;
+      refreshInBackground();
+      return snapshot;
+    }
+
+    if (snapshot.getAgeMillis() >= (long)(_ttlMillis * REFRESH_AHEAD_FRACTION)) {
+      refreshInBackground();
+    }
+    return snapshot;
+  }
+
+  /**
+   * Human-readable system and JVM stats, from {@link #getSnapshot()}.
+   *
+   * @return null if we couldn't get anything.
+   */
+  public static String getSummary() {
+    return getSnapshot().getSummary();
+  }
+
+  public static long getTtlMillis() {
+    return _ttlMillis;
+  }
+
+  /**
+   * How long a snapshot is good for.  Fresh ones are taken in the
+   * background a bit before this.
+   */
+  public static void setTtlMillis(long ttlMillis) {
+    _ttlMillis = Math.max(1L, ttlMillis);
+  }
+
+  private static void refreshInBackground() {
+    if (!_refreshing.compareAndSet(false, true)) return;
+
+    try {
+      REFRESHER.execute(new Runnable() {
+        public void run() {
+          try {
+            if (System.currentTimeMillis() - _hostnameResolvedAtMillis >= HOSTNAME_TTL_MILLIS) {
+              resolveHostname();
+            }
+            _snapshot = takeSnapshot(true);
+          }
+          catch (Throwable t) {
+            LOG.warn("failed taking system stats snapshot", t);
+          }
+          finally {
+            _refreshing.set(false);
+          }
+        }
+      });
+    }
+    catch (RuntimeException e) {
+      _refreshing.set(false);
+      throw e;
+    }
+  }
+
+  /**
+   * Gathers stats right now.
+   *
+   * @param allowSlow whether we may run top if /proc isn't available.
+   */
+  private static SystemSnapshot takeSnapshot(boolean allowSlow) {
+    SystemSnapshot snapshot = new SystemSnapshot(System.currentTimeMillis());
+    snapshot.setHostname(_hostname);
+    snapshot.setHostAddress(_hostAddress);
+
+    StringBuilder sb = new StringBuilder();
+    if (ProcSampler.isAvailable()) {
+      appendProcStats(sb, snapshot);
+    }
+    else if (allowSlow) {
+      String top = getTopOutput();
+      if (top != null) sb.append(top).append("\n");
+    }
+
+    appendJvmStats(sb, snapshot);
+    snapshot.setSummary((sb.length() == 0) ? null : sb.toString().trim());
+    return snapshot;
+  }
+
+  private static void appendProcStats(StringBuilder sb, SystemSnapshot snapshot) {
+    ProcSampler sampler = ProcSampler.getInstance();
+
+    double[] load = ProcSampler.readLoadAverages();
+    if (load != null) {
+      sb.append(String.format("load average: %.2f %.2f %.2f (%d cpus)\n",
+              load[0], load[1], load[2], Runtime.getRuntime().availableProcessors()));
+      snapshot.setLoadAverage(load[0]);
+    }
+
+    double[] now = sampler.getCpuPercentages(1);
+    double[] window = sampler.getCpuPercentages(CPU_WINDOW_SECONDS);
+    if (now != null) {
+      sb.append(String.format("cpu: %.1f%% user, %.1f%% system, %.1f%% iowait, %.1f%% idle; %.1f%% busy over the last minute\n",
+              now[ProcSampler.USER] + now[ProcSampler.NICE],
+              now[ProcSampler.SYSTEM] + now[ProcSampler.IRQ] + now[ProcSampler.SOFTIRQ],
+              now[ProcSampler.IOWAIT],
+              now[ProcSampler.IDLE],
+              ProcSampler.busy(window)));
+      snapshot.setCpuBusyPercent(ProcSampler.busy(window));
+    }
+
+    Map<String, Long> mem = ProcSampler.readMemInfo();
+    Long total = mem.get("MemTotal");
+    if (total != null) {
+      Long available = mem.get("MemAvailable");
+      if (available == null) {
+        // Older kernels.
+        available = value(mem, "MemFree") + value(mem, "Buffers") + value(mem, "Cached");
+      }
+      sb.append(String.format("mem: %s used of %s, %s available; swap: %s used of %s\n",
+              Utils.formatBytes(1024L * (total - available)),
+              Utils.formatBytes(1024L * total),
+              Utils.formatBytes(1024L * available),
+              Utils.formatBytes(1024L * (value(mem, "SwapTotal") - value(mem, "SwapFree"))),
+              Utils.formatBytes(1024L * value(mem, "SwapTotal"))));
+      snapshot.setMemUsedBytes(1024L * (total - available));
+      snapshot.setMemTotalBytes(1024L * total);
+    }
+
+    Map<String, Long> self = ProcSampler.readSelfStatus();
+    if (self.containsKey("VmRSS")) {
+      sb.append(String.format("process: %s resident, %s virtual, %d threads\n",
+              Utils.formatBytes(1024L * value(self, "VmRSS")),
+              Utils.formatBytes(1024L * value(self, "VmSize")),
+              value(self, "Threads")));
+      snapshot.setResidentBytes(1024L * value(self, "VmRSS"));
+    }
+  }
+
+  private static void appendJvmStats(StringBuilder sb, SystemSnapshot snapshot) {
+    try {
+      MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+      MemoryUsage heap = memory.getHeapMemoryUsage();
+      MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+      sb.append(String.format("jvm heap: %s used, %s committed, %s max; non-heap: %s used\n",
+              Utils.formatBytes(heap.getUsed()),
+              Utils.formatBytes(heap.getCommitted()),
+              (heap.getMax() < 0) ? "no" : Utils.formatBytes(heap.getMax()),
+              Utils.formatBytes(nonHeap.getUsed())));
+      snapshot.setHeapUsedBytes(heap.getUsed());
+      snapshot.setHeapMaxBytes(heap.getMax());
+
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      sb.append(String.format("jvm threads: %d live, %d daemon, %d peak\n",
+              threads.getThreadCount(),
+              threads.getDaemonThreadCount(),
+              threads.getPeakThreadCount()));
+      snapshot.setJvmThreads(threads.getThreadCount());
+
+      sb.append("jvm gc:");
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+        sb.append(String.format(" %s %d in %d ms;",
+                gc.getName(),
+                gc.getCollectionCount(),
+                gc.getCollectionTime()));
+      }
+      sb.append(String.format(" uptime %s\n",
+              Utils.formatPeriod(Math.max(1L, ManagementFactory.getRuntimeMXBean().getUptime()))));
+    }
+    catch (Throwable t) {
+      // Management beans aren't available everywhere.
+    }
+  }
+
+  private static long value(Map<String, Long> fields, String name) {
+    Long value = fields.get(name);
+    return (value == null) ? 0L : value;
   }
 
   /**
@@ -24,11 +262,14 @@ public class SystemStats {
   }
 
   public static String getTopOutput(int numLines) {
+    Process child = null;
     InputStreamReader in = null;
     BufferedReader reader = null;
 
     try {
-      Process child = Runtime.getRuntime().exec(TOP_CMD);
+      child = Runtime.getRuntime().exec(TOP_CMD);
+      child.getOutputStream().close();
+      child.getErrorStream().close();
 
       in = new InputStreamReader(child.getInputStream());
       reader = new BufferedReader(in);
@@ -38,6 +279,7 @@ public class SystemStats {
       int emptyLines = 0;
       while (emptyLines < 3) {
         line = reader.readLine();
+        if (line == null) return null;
         if (line.length() < 1) emptyLines++;
       }
       
@@ -58,19 +300,45 @@ public class SystemStats {
     }
     finally {
       Utils.closeQuietly(reader, in);
+
+      // Reap the child so it doesn't linger as a zombie.
+      if (child != null) {
+        child.destroy();
+        try {
+          child.waitFor();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
     }
   }
   
   /**
-   * Get the hostname of the machine this thread is running on.
+   * Get the hostname of the machine this thread is running on.  This never
+   * waits on DNS; it returns what the background thread last looked up.
+   *
+   * @return null if it hasn't been looked up yet or the lookup failed.
    */
   public static String getHostname() {
+    if (_hostnameResolvedAtMillis == 0L) getSnapshot();
+    return _hostname;
+  }
+
+  /**
+   * Looks up the hostname, which can take seconds with broken reverse DNS.
+   * Only called on the background thread.
+   */
+  private static void resolveHostname() {
     try {
-      return java.net.InetAddress.getLocalHost().getHostName();
+      InetAddress local = InetAddress.getLocalHost();
+      _hostname = local.getHostName();
+      _hostAddress = local.getHostAddress();
     }
     catch (UnknownHostException e) {
-      return null;
+      LOG.debug("couldn't look up hostname", e);
     }
+    _hostnameResolvedAtMillis = System.currentTimeMillis();
   }
 
 }
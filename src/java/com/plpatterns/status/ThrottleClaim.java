@@ -0,0 +1,40 @@
+package com.plpatterns.status;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One taking of a throttle interval, by a {@link Conversation} or the
+ * {@link BroadcastRoom}.  If the message it was taken for is shed before
+ * it's sent, the interval is given back, so an update nobody got doesn't
+ * hold up the next one.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class ThrottleClaim {
+
+  private final AtomicLong _lastSentNanos;
+  private final long _previousNanos;
+  private final long _claimedNanos;
+
+  /**
+   * @param lastSentNanos the throttle's last-sent time, which now holds
+   *                      claimedNanos.
+   * @param previousNanos what it held before.
+   */
+  ThrottleClaim(AtomicLong lastSentNanos, long previousNanos, long claimedNanos) {
+    _lastSentNanos = lastSentNanos;
+    _previousNanos = previousNanos;
+    _claimedNanos = claimedNanos;
+  }
+
+  /**
+   * Puts the throttle back how it was, unless it has been taken again
+   * since.
+   *
+   * @return true if the interval was given back.
+   */
+  public boolean release() {
+    return _lastSentNanos.compareAndSet(_claimedNanos, _previousNanos);
+  }
+
+}
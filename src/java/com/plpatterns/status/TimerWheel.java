@@ -0,0 +1,221 @@
+package com.plpatterns.status;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A hashed timer wheel: one thread runs every delayed task for the appender,
+ * no matter how many conversations have something scheduled.  Scheduling
+ * and cancelling are O(1) and don't lock.  The price is precision: tasks run
+ * on the first tick at or after their deadline.
+ * <p>
+ * Tasks run on the wheel's thread, so they should be quick.  Anything slower,
+ * like rendering a message or sending it, should be handed to an executor
+ * with {@link #schedule(Runnable, long, Executor)}.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class TimerWheel {
+
+  private static final Log LOG = LogFactory.getLog(TimerWheel.class);
+
+  private final long _tickNanos;
+  private final int _mask;
+  private final LinkedList<Timeout>[] _buckets;
+  private final ConcurrentLinkedQueue<Timeout> _newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+  private final AtomicInteger _pending = new AtomicInteger();
+  private final Thread _thread;
+  private final long _startNanos;
+
+  private volatile boolean _running = true;
+  private volatile boolean _idle = false;
+
+  /** Only touched by the wheel's thread. */
+  private long _tick;
+
+  /**
+   * A scheduled task.
+   */
+  public static class Timeout {
+
+    private final Runnable _task;
+    private final long _deadlineNanos;
+    private long _remainingRounds;
+    private volatile boolean _cancelled;
+    private volatile boolean _expired;
+
+    Timeout(Runnable task, long deadlineNanos) {
+      _task = task;
+      _deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * @return false if the task already ran.
+     */
+    public boolean cancel() {
+      _cancelled = true;
+      return !_expired;
+    }
+
+    public boolean isCancelled() {
+      return _cancelled;
+    }
+
+    public boolean isExpired() {
+      return _expired;
+    }
+
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public TimerWheel(String name, long tickMillis, int ticksPerWheel) {
+    int size = 1;
+    while (size < ticksPerWheel) size <<= 1;
+
+    _tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, tickMillis));
+    _mask = size - 1;
+    _buckets = new LinkedList[size];
+    for (int i = 0; i < size; i++) {
+      _buckets[i] = new LinkedList<Timeout>();
+    }
+    _startNanos = System.nanoTime();
+
+    _thread = new Thread(new Runnable() {
+      public void run() {
+        work();
+      }
+    }, name);
+    _thread.setDaemon(true);
+    _thread.start();
+  }
+
+  /**
+   * Runs the task once, after at least the given delay.
+   */
+  public Timeout schedule(Runnable task, long delayMillis) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0L, delayMillis));
+    Timeout timeout = new Timeout(task, deadline);
+    if (!_running) {
+      timeout._cancelled = true;
+      return timeout;
+    }
+
+    _newTimeouts.add(timeout);
+    _pending.incrementAndGet();
+    if (_idle) LockSupport.unpark(_thread);
+    return timeout;
+  }
+
+  /**
+   * Runs the task once on the given executor, after at least the given
+   * delay.  If the executor has been shut down by then, the task is
+   * dropped.
+   */
+  public Timeout schedule(final Runnable task, long delayMillis, final Executor executor) {
+    return schedule(new Runnable() {
+      public void run() {
+        try {
+          executor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+          LOG.debug("not running timer task; executor is shut down", e);
+        }
+      }
+    }, delayMillis);
+  }
+
+  /** Number of tasks scheduled but not yet run or reaped. */
+  public int size() {
+    return _pending.get();
+  }
+
+  /**
+   * Stops the thread.  Tasks that haven't run yet never will.
+   */
+  public void stop() {
+    _running = false;
+    LockSupport.unpark(_thread);
+  }
+
+  private void work() {
+    long nextTickNanos = _startNanos + _tickNanos;
+    while (_running) {
+      // Sleep until the next tick, or indefinitely if there's nothing to do.
+      long now = System.nanoTime();
+      if (_pending.get() == 0) {
+        _idle = true;
+        if (_pending.get() == 0 && _running) LockSupport.park(this);
+        _idle = false;
+
+        // Don't try to catch up on ticks we slept through with nothing to do.
+        now = System.nanoTime();
+        long skipped = (now - nextTickNanos) / _tickNanos;
+        if (skipped > 0) {
+          _tick += skipped;
+          nextTickNanos += skipped * _tickNanos;
+        }
+        continue;
+      }
+      if (now - nextTickNanos < 0) {
+        LockSupport.parkNanos(this, nextTickNanos - now);
+        continue;
+      }
+
+      transferNewTimeouts();
+      expire(_buckets[(int)(_tick & _mask)], now);
+      _tick++;
+      nextTickNanos += _tickNanos;
+    }
+  }
+
+  private void transferNewTimeouts() {
+    Timeout timeout;
+    while ((timeout = _newTimeouts.poll()) != null) {
+      if (timeout._cancelled) {
+        _pending.decrementAndGet();
+        continue;
+      }
+
+      // Figure out which tick this belongs in, never one in the past.
+      long ticksAway = (timeout._deadlineNanos - _startNanos + _tickNanos - 1) / _tickNanos - _tick;
+      ticksAway = Math.max(ticksAway, 0L);
+      timeout._remainingRounds = ticksAway / (_mask + 1);
+      _buckets[(int)((_tick + ticksAway) & _mask)].add(timeout);
+    }
+  }
+
+  private void expire(LinkedList<Timeout> bucket, long now) {
+    Iterator<Timeout> it = bucket.iterator();
+    while (it.hasNext()) {
+      Timeout timeout = it.next();
+      if (timeout._cancelled) {
+        it.remove();
+        _pending.decrementAndGet();
+      }
+      else if (timeout._remainingRounds > 0) {
+        timeout._remainingRounds--;
+      }
+      else {
+        it.remove();
+        _pending.decrementAndGet();
+        timeout._expired = true;
+        try {
+          timeout._task.run();
+        }
+        catch (Throwable t) {
+          LOG.warn("timer task failed", t);
+        }
+      }
+    }
+  }
+
+}
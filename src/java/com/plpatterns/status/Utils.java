@@ -29,6 +29,23 @@ public class Utils {
     return "millisecond";
   }
   
+  /**
+   * Formats a number of bytes into a human-readable amount, like "1.5 GB".
+   */
+  public static String formatBytes(long bytes) {
+    if (bytes < 1024L) return bytes + " B";
+
+    double amount = bytes;
+    String[] units = { "KB", "MB", "GB", "TB", "PB" };
+    int unit = -1;
+    while (amount >= 1024d && unit < units.length - 1) {
+      amount /= 1024d;
+      unit++;
+    }
+    return (amount >= 10d) ? String.format("%d %s", Math.round(amount), units[unit])
+                           : String.format("%.1f %s", amount, units[unit]);
+  }
+  
   public static void closeQuietly(Closeable... cs) {
     if (cs == null) return;
     
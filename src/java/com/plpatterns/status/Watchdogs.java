@@ -0,0 +1,400 @@
+package com.plpatterns.status;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Dead man's switches on loggers.  If a job hangs it just stops logging,
+ * and nobody hears about it; a watchdog on "status.etl" for 10 minutes
+ * IMs people when nothing has been logged from status.etl or the loggers
+ * under it for that long, and again when it starts back up.
+ * <p>
+ * Logging only writes the event's time into each matching watchdog, which
+ * is found by logger name in a cache like {@link ConversationRegistry}'s
+ * routes, so it costs one hash lookup however many watchdogs there are.
+ * Each watchdog has one check on the appender's {@link TimerWheel} that
+ * looks at that time when it comes due and, if there's been something
+ * since, just puts itself back for when the silence would next be up.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class Watchdogs {
+
+  private static final Log LOG = LogFactory.getLog(Watchdogs.class);
+
+  /** Watchdogs people can set up, so IMs can't fill memory. */
+  public static final int MAX_WATCHDOGS = 10000;
+
+  /** Routes cached before the cache is thrown out. */
+  private static final int MAX_CACHED_ROUTES = 10000;
+
+  private static final Watchdog[] NONE = new Watchdog[0];
+
+  /** One "status.etl=10m" from the Watchdogs param. */
+  private static final Pattern CONFIG_PATTERN =
+    Pattern.compile("\\s*([^\\s=]+)\\s*=\\s*([\\d\\.]+)\\s*([a-z]+)\\s*", Pattern.CASE_INSENSITIVE);
+
+  private final XmppAppender _appender;
+
+  /** Guarded by this.  Keyed by {@link #key(String, long)}. */
+  private final Map<String, Watchdog> _watchdogs = new LinkedHashMap<String, Watchdog>();
+
+  /** Same contents as the map above. */
+  private volatile Watchdog[] _all = NONE;
+
+  /** Watchdogs by logger name.  Replaced, never cleared, like the routes in ConversationRegistry. */
+  private volatile ConcurrentHashMap<String, Watchdog[]> _routes =
+    new ConcurrentHashMap<String, Watchdog[]>();
+
+  Watchdogs(XmppAppender appender) {
+    _appender = appender;
+  }
+
+  /**
+   * Something was logged.  Called on the logging thread for every event.
+   */
+  void seen(LoggingEvent event) {
+    if (_all.length == 0) return;
+
+    for (Watchdog watchdog : watchdogsFor(event.getLoggerName())) {
+      watchdog.seen(event.timeStamp);
+    }
+  }
+
+  /**
+   * Watches a logger for everyone, like the Watchdogs param does.
+   *
+   * @param pattern a logger name or prefix, like "status.etl" or "status.etl.*".
+   * @throws IllegalArgumentException if the pattern isn't a logger name.
+   */
+  public synchronized Watchdog add(String pattern, long silenceMillis) {
+    Watchdog watchdog = getOrCreate(pattern, silenceMillis);
+    watchdog._everyone = true;
+    return watchdog;
+  }
+
+  /**
+   * Has a conversation hear about it when a logger goes quiet.
+   *
+   * @throws IllegalArgumentException if the pattern isn't a logger name,
+   *         or there are already too many watchdogs.
+   */
+  public synchronized Watchdog subscribe(Conversation convo, String pattern, long silenceMillis) {
+    Watchdog watchdog = getOrCreate(pattern, silenceMillis);
+    watchdog._subscribers.add(convo);
+    return watchdog;
+  }
+
+  /**
+   * Stops a conversation hearing about a logger, or any logger if the
+   * pattern is empty.  Watchdogs nobody is listening to anymore go away.
+   *
+   * @return false if they weren't listening to anything that matched.
+   */
+  public synchronized boolean unsubscribe(Conversation convo, String pattern) {
+    String prefix = SubscriptionIndex.normalize(pattern);
+    if (prefix == null) throw new IllegalArgumentException("not a logger name: " + pattern);
+
+    boolean removed = false;
+    for (Watchdog watchdog : new ArrayList<Watchdog>(_watchdogs.values())) {
+      if (prefix.length() > 0 && !watchdog._prefix.equals(prefix)) continue;
+      if (!watchdog._subscribers.remove(convo)) continue;
+
+      removed = true;
+      if (watchdog.isUnused()) removeLocked(watchdog);
+    }
+    return removed;
+  }
+
+  /** Everything being watched, in the order it was set up. */
+  public List<Watchdog> getWatchdogs() {
+    List<Watchdog> watchdogs = new ArrayList<Watchdog>();
+    for (Watchdog watchdog : _all) {
+      watchdogs.add(watchdog);
+    }
+    return watchdogs;
+  }
+
+  /** The watchdogs a conversation hears from, including everyone's. */
+  public List<Watchdog> getWatchdogs(Conversation convo) {
+    List<Watchdog> watchdogs = new ArrayList<Watchdog>();
+    for (Watchdog watchdog : _all) {
+      if (watchdog._everyone || watchdog._subscribers.contains(convo)) watchdogs.add(watchdog);
+    }
+    return watchdogs;
+  }
+
+  public int size() {
+    return _all.length;
+  }
+
+  /**
+   * Sets up everyone's watchdogs from something like
+   * "status.etl=10m, status.import=30 s".
+   *
+   * @throws IllegalArgumentException if it can't be parsed.
+   */
+  public void configure(String spec) {
+    for (String one : spec.split(",")) {
+      if (one.trim().length() == 0) continue;
+
+      Matcher matcher = CONFIG_PATTERN.matcher(one);
+      long silence = matcher.matches() ? BuiltinCommands.parsePeriod(matcher.group(2), matcher.group(3)) : -1L;
+      if (silence < 0) {
+        throw new IllegalArgumentException("expected logger=period, like status.etl=10m: " + one.trim());
+      }
+      add(matcher.group(1), silence);
+    }
+  }
+
+  /**
+   * Puts every watchdog's check on the current timer, after we connect or
+   * reconnect with a new timer.  Silence is counted from now.
+   */
+  void start() {
+    long now = System.currentTimeMillis();
+    for (Watchdog watchdog : _all) {
+      watchdog._lastSeenMillis = Math.max(watchdog._lastSeenMillis, now);
+      watchdog.scheduleCheck(watchdog._silenceMillis);
+    }
+  }
+
+  /** Assumes this is locked. */
+  private Watchdog getOrCreate(String pattern, long silenceMillis) {
+    String prefix = SubscriptionIndex.normalize(pattern);
+    if (prefix == null) throw new IllegalArgumentException("not a logger name: " + pattern);
+
+    String key = key(prefix, silenceMillis);
+    Watchdog watchdog = _watchdogs.get(key);
+    if (watchdog != null) return watchdog;
+
+    if (_watchdogs.size() >= MAX_WATCHDOGS) {
+      throw new IllegalArgumentException("too many watchdogs");
+    }
+    watchdog = new Watchdog(prefix, silenceMillis);
+    _watchdogs.put(key, watchdog);
+    publish();
+    watchdog.scheduleCheck(silenceMillis);
+    return watchdog;
+  }
+
+  /** Assumes this is locked. */
+  private void removeLocked(Watchdog watchdog) {
+    if (_watchdogs.remove(key(watchdog._prefix, watchdog._silenceMillis)) == null) return;
+
+    watchdog.cancel();
+    publish();
+  }
+
+  private synchronized void removeIfUnused(Watchdog watchdog) {
+    if (watchdog.isUnused()) removeLocked(watchdog);
+  }
+
+  /** Assumes this is locked. */
+  private void publish() {
+    _routes = new ConcurrentHashMap<String, Watchdog[]>();
+    _all = _watchdogs.values().toArray(new Watchdog[_watchdogs.size()]);
+  }
+
+  private Watchdog[] watchdogsFor(String loggerName) {
+    if (loggerName == null) loggerName = "";
+
+    ConcurrentHashMap<String, Watchdog[]> routes = _routes;
+    Watchdog[] watchdogs = routes.get(loggerName);
+    if (watchdogs != null) return watchdogs;
+
+    synchronized (this) {
+      List<Watchdog> matching = new ArrayList<Watchdog>();
+      for (Watchdog watchdog : _watchdogs.values()) {
+        if (watchdog.covers(loggerName)) matching.add(watchdog);
+      }
+      watchdogs = matching.isEmpty() ? NONE : matching.toArray(new Watchdog[matching.size()]);
+
+      // Only cache it if nothing changed since we looked at the cache.
+      if (routes == _routes) {
+        if (routes.size() >= MAX_CACHED_ROUTES) {
+          _routes = new ConcurrentHashMap<String, Watchdog[]>();
+        }
+        _routes.put(loggerName, watchdogs);
+      }
+    }
+    return watchdogs;
+  }
+
+  private static String key(String prefix, long silenceMillis) {
+    return prefix + " " + silenceMillis;
+  }
+
+  /**
+   * One logger prefix and how long it may go quiet.
+   */
+  public class Watchdog {
+
+    private final String _prefix;
+    private final long _silenceMillis;
+
+    /** Whether it's from the Watchdogs param, so everyone hears about it. */
+    private volatile boolean _everyone;
+    private final Set<Conversation> _subscribers = new CopyOnWriteArraySet<Conversation>();
+
+    private volatile long _lastSeenMillis = System.currentTimeMillis();
+    private final AtomicBoolean _alerted = new AtomicBoolean();
+    /** When the silence we alerted about started. */
+    private volatile long _quietSinceMillis;
+    private volatile boolean _cancelled;
+
+    // Guarded by this.
+    private TimerWheel.Timeout _check;
+
+    Watchdog(String prefix, long silenceMillis) {
+      _prefix = prefix;
+      _silenceMillis = silenceMillis;
+    }
+
+    public String getPrefix() {
+      return _prefix;
+    }
+
+    public long getSilenceMillis() {
+      return _silenceMillis;
+    }
+
+    public long getLastSeenMillis() {
+      return _lastSeenMillis;
+    }
+
+    /** Whether it's gone quiet and we've told people. */
+    public boolean isAlerted() {
+      return _alerted.get();
+    }
+
+    boolean covers(String loggerName) {
+      return _prefix.length() == 0
+             || loggerName.startsWith(_prefix)
+                && (loggerName.length() == _prefix.length() || loggerName.charAt(_prefix.length()) == '.');
+    }
+
+    private boolean isUnused() {
+      return !_everyone && _subscribers.isEmpty();
+    }
+
+    private void seen(long timeMillis) {
+      // Skip the write when lots of threads log in the same millisecond.
+      if (_lastSeenMillis != timeMillis) _lastSeenMillis = timeMillis;
+      if (_alerted.get()) recovered();
+    }
+
+    private void recovered() {
+      if (!_alerted.compareAndSet(true, false)) return;
+
+      // Don't hold up the logging thread, or the timer's, with sending.
+      final long quietMillis = System.currentTimeMillis() - _quietSinceMillis;
+      _appender.getTimerWheel().schedule(new Runnable() {
+        public void run() {
+          tell(_prefix + " is logging again after " + Utils.formatPeriod(Math.max(1L, quietMillis)));
+        }
+      }, 0L, _appender.getFlushExecutor());
+      scheduleCheck(_silenceMillis);
+    }
+
+    private void check() {
+      if (_cancelled || _alerted.get()) return;
+
+      long lastSeen = _lastSeenMillis;
+      long quiet = System.currentTimeMillis() - lastSeen;
+      if (quiet < _silenceMillis) {
+        scheduleCheck(_silenceMillis - quiet);
+        return;
+      }
+
+      _quietSinceMillis = lastSeen;
+      if (!_alerted.compareAndSet(false, true)) return;
+      tell("heads up: nothing from " + describe() + " in " + Utils.formatPeriod(quiet));
+
+      // Something may have been logged between our look and setting the flag.
+      if (_lastSeenMillis != lastSeen) recovered();
+    }
+
+    private synchronized void scheduleCheck(long delayMillis) {
+      if (_cancelled) return;
+      if (_check != null) _check.cancel();
+      // Checking may IM people, so it's done off the timer thread.
+      _check = _appender.getTimerWheel().schedule(new Runnable() {
+        public void run() {
+          check();
+        }
+      }, delayMillis, _appender.getFlushExecutor());
+    }
+
+    private synchronized void cancel() {
+      _cancelled = true;
+      if (_check != null) _check.cancel();
+      _check = null;
+    }
+
+    /**
+     * IMs everyone who should hear from this watchdog.  Subscribers who
+     * have left are dropped.
+     */
+    private void tell(String msg) {
+      Set<Conversation> recipients = new LinkedHashSet<Conversation>();
+      if (_everyone) recipients.addAll(_appender.getConversations());
+      for (Conversation convo : _subscribers) {
+        if (_appender.getConversationRegistry().get(convo.getChat().getParticipant()) == convo) {
+          recipients.add(convo);
+        }
+        else {
+          _subscribers.remove(convo);
+        }
+      }
+      if (isUnused()) removeIfUnused(this);
+
+      LOG.info(msg);
+      for (Conversation convo : recipients) {
+        if (convo.isPaused()) continue;
+        try {
+          convo.sendIm(msg);
+        }
+        catch (RuntimeException e) {
+          LOG.warn("couldn't send watchdog alert to " + convo.getChat().getParticipant(), e);
+        }
+      }
+    }
+
+    private String describe() {
+      return (_prefix.length() == 0) ? "any logger" : _prefix;
+    }
+
+    /**
+     * Like "status.etl silent 10 minutes (last heard from 3 minutes ago)".
+     */
+    public String toHumanReadableString() {
+      long ago = System.currentTimeMillis() - _lastSeenMillis;
+      String silence = Utils.formatPeriod(_silenceMillis);
+      if (!Character.isDigit(silence.charAt(0))) silence = "a " + silence;
+      return describe() + " silent " + silence
+             + (isAlerted() ? " (quiet for " : " (last heard from ")
+             + Utils.formatPeriod(Math.max(1L, ago)) + (isAlerted() ? ")" : " ago)");
+    }
+
+    @Override
+    public String toString() {
+      return key(_prefix, _silenceMillis);
+    }
+
+  }
+
+}
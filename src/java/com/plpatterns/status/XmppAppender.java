@@ -2,12 +2,18 @@ package com.plpatterns.status;
 
 import static org.apache.commons.lang.StringUtils.isBlank;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.logging.Log;
@@ -15,12 +21,16 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.log4j.AppenderSkeleton;
 import org.apache.log4j.spi.LoggingEvent;
 import org.jivesoftware.smack.Chat;
+import org.jivesoftware.smack.ChatManager;
 import org.jivesoftware.smack.ChatManagerListener;
 import org.jivesoftware.smack.ConnectionConfiguration;
 import org.jivesoftware.smack.MessageListener;
+import org.jivesoftware.smack.RosterListener;
 import org.jivesoftware.smack.SASLAuthentication;
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.util.StringUtils;
 
 /**
  * @author Jonathan Tran
@@ -29,11 +39,33 @@ public class XmppAppender extends AppenderSkeleton {
 
   private static final Log LOG = LogFactory.getLog(XmppAppender.class);
   
-  private static final int MAX_CONVERSATIONS = 50;
+  private static final int DEFAULT_MAX_CONVERSATIONS = 50;
 
-  // TODO: {change this to a timestamp, and retry after a while. Ideally,
-  // exponential back-off.}
-  private boolean _notificationFailedRecently;
+  /** I wanted this to last over a long weekend, so it is {@value} */
+  private static final int MAX_DAYS_TO_NOTIFY_OF_EVICTION = 4;
+
+  private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+  private static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 100L;
+  private static final long ASYNC_SHUTDOWN_TIMEOUT_MILLIS = 5 * 1000L;
+
+  private static final int DEFAULT_COMMAND_THREADS = 4;
+  private static final int DEFAULT_MAX_QUEUED_COMMANDS = 1000;
+
+  private static final int DEFAULT_OFFLINE_BACKLOG_SIZE = 20;
+  private static final int DEFAULT_OFFLINE_BACKLOG_TOTAL = 5000;
+
+  private static final long TIMER_TICK_MILLIS = 100L;
+  private static final int TIMER_TICKS_PER_WHEEL = 512;
+
+  /** Keeps us connected, reconnecting with back-off when we're not. */
+  private final ConnectionSupervisor _supervisor = new ConnectionSupervisor(this);
+
+  /** Guards connecting and the fields below. */
+  private final Object _connectLock = new Object();
+  private boolean _listenersAdded;
+  /** Whether we've logged in on the current connection. */
+  private boolean _loggedInOnConnection;
+  private boolean _rosterListenerAdded;
 
   private String _serverHostname;
   private int _serverPort;
@@ -43,7 +75,52 @@ public class XmppAppender extends AppenderSkeleton {
   private String _password;
   private String _resource;
   private XMPPConnection _con;
-  private LinkedList<Conversation> _conversations = new LinkedList<Conversation>();
+  private final ConversationRegistry _conversations =
+    new ConversationRegistry(DEFAULT_MAX_CONVERSATIONS);
+
+  private boolean _async = false;
+  private int _queueCapacity = DEFAULT_QUEUE_CAPACITY;
+  private OverflowPolicy _overflowPolicy = OverflowPolicy.DROP_OLDEST;
+  private long _blockTimeoutMillis = DEFAULT_BLOCK_TIMEOUT_MILLIS;
+  private volatile AsyncSender _asyncSender;
+
+  private int _commandThreads = DEFAULT_COMMAND_THREADS;
+  private int _maxQueuedCommands = DEFAULT_MAX_QUEUED_COMMANDS;
+  private volatile CommandExecutor _commandExecutor;
+  private final CommandRegistry _commands = CommandRegistry.createDefault();
+
+  private boolean _coalesce = false;
+  private boolean _digest = false;
+  private int _digestMaxLines = Digest.DEFAULT_MAX_LINES;
+  private int _digestMaxEvents = Digest.DEFAULT_MAX_EVENTS;
+  private volatile TimerWheel _timerWheel;
+  /** Sends held events and digests when the timer says they're due. */
+  private volatile ExecutorService _flushExecutor;
+  /** Guarded by this.  The timer we're sampling {@link ProgressTracker}s on. */
+  private TimerWheel _progressWheel;
+
+  private final AppenderStats _stats = new AppenderStats(this);
+  private final LatestEvents _latest = new LatestEvents();
+  private final Watchdogs _watchdogs = new Watchdogs(this);
+
+  private String _broadcastRoomJid;
+  private String _broadcastNickname;
+  private long _broadcastIntervalMillis = BroadcastRoom.DEFAULT_MIN_MILLIS_BETWEEN_MESSAGES;
+  private volatile BroadcastRoom _broadcastRoom;
+
+  private double _sendRatePerSecond = 0d;
+  private int _sendBurst = SendScheduler.DEFAULT_BURST;
+  private int _sendQueueCapacity = SendScheduler.DEFAULT_CAPACITY;
+  private long _sendMaxLowWaitMillis = SendScheduler.DEFAULT_MAX_LOW_WAIT_MILLIS;
+  private volatile SendScheduler _sendScheduler;
+
+  private int _offlineBacklogSize = DEFAULT_OFFLINE_BACKLOG_SIZE;
+  private int _offlineBacklogTotal = DEFAULT_OFFLINE_BACKLOG_TOTAL;
+  private volatile OfflineBacklog _offlineBacklog;
+
+  private String _stateFile;
+  private volatile ConversationStore _store;
+  private boolean _restored;
   
   public XmppAppender() {
     // Default constructor for log4j.
@@ -66,51 +143,236 @@ public class XmppAppender extends AppenderSkeleton {
     LOG.warn("XMPP Appender created with good constructor!");
   }
 
+  /**
+   * Connects and logs in on the calling thread.  If that fails, we keep
+   * retrying in the background with exponential back-off.
+   */
   public void connect() {
+    _stats.register(getStatsName());
+    startSamplingProgress();
+    _watchdogs.start();
+    startSendScheduler();
+    // Start resolving the hostname and taking stats now, so the first
+    // "system" command has them.
+    SystemStats.getSnapshot();
     LOG.warn("Trying to connect...");
+    _supervisor.connectNow();
+  }
 
-    // Must synchronize since this gets called from multiple threads.
-    synchronized (this) {
+  /**
+   * One attempt to connect and log in.  Only the {@link ConnectionSupervisor}
+   * should call this.
+   *
+   * @return true if we're logged in.
+   */
+  boolean tryConnect() {
+    // Must synchronize since this gets called from multiple threads.  We
+    // don't lock this, since log4j holds that while appending.
+    synchronized (_connectLock) {
       XMPPConnection con = getConnection();
+      if (con != null && _loggedInOnConnection && !con.isConnected()) {
+        // Smack's reader and writer threads can each report a dropped
+        // connection, and a late report shuts down whatever session the
+        // connection has by then.  So rather than log back in on it, start
+        // over with a new one.
+        discardConnection(con);
+        con = null;
+      }
       if (con == null) {
         LOG.debug("created new XMPPConnection object");
-        con = new XMPPConnection(getConnectionConfiguration());
+        // We do our own reconnecting.
+        getConnectionConfiguration().setReconnectionAllowed(false);
+        con = createConnection(getConnectionConfiguration());
         setConnection(con);
       }
 
       LOG.warn("Authenticated? " + con.isAuthenticated() + " con: " + _con);
-      if (con.isAuthenticated()) return;
+      if (con.isAuthenticated()) return true;
 
       try {
-        // Connect to server.
-        LOG.warn("Connecting...");
-        con.connect();
+        // Connect to server.  On a reconnect, this may log us back in too.
+        if (!con.isConnected()) {
+          LOG.warn("Connecting...");
+          con.connect();
+        }
 
-        // Add listener to capture IMs sent to us.
-        LOG.warn("Adding chat listener...");
-        con.getChatManager().addChatListener(new XmppChatManagerListener());
+        // Add listener to capture IMs sent to us, and to hear about the
+        // connection dropping.  These survive reconnects.
+        if (!_listenersAdded) {
+          LOG.warn("Adding chat listener...");
+          con.getChatManager().addChatListener(new XmppChatManagerListener());
+          con.addConnectionListener(_supervisor);
+          _listenersAdded = true;
+        }
 
         // Login.
-        LOG.warn("Logging in...");
-        SASLAuthentication.supportSASLMechanism("PLAIN", 0);
-        con.login(getFromAddress(), getPassword(), getResource());
+        if (!con.isAuthenticated()) {
+          LOG.warn("Logging in...");
+          SASLAuthentication.supportSASLMechanism("PLAIN", 0);
+          con.login(getFromAddress(), getPassword(), getResource());
+        }
 
         LOG.warn("Logged in!  Authenticated? " + con.isAuthenticated());
+        if (con.isAuthenticated() && !_loggedInOnConnection) {
+          _loggedInOnConnection = true;
+          moveChatsTo(con);
+          joinBroadcastRoom(con);
+        }
+
+        // Hear when people go offline and come back.  The roster comes
+        // with logging in.
+        if (!_rosterListenerAdded && con.isAuthenticated() && con.getRoster() != null) {
+          con.getRoster().addRosterListener(new PresenceListener());
+          _rosterListenerAdded = true;
+        }
+
+        // Pick up where we left off before the last restart.
+        if (!_restored && con.isAuthenticated()) {
+          _restored = true;
+          restoreConversations(con);
+        }
+        return con.isAuthenticated();
       }
       catch (Throwable t) {
         LOG.warn("connecting and logging in to XMPP server failed using connection configuration host: " + _conConfig.getHost()
                 + " port: " + _conConfig.getPort() + " serviceName: " + _conConfig.getServiceName(),
                 t);
-        setNotificationFailedRecently(true);
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Lets go of a dropped connection, so nothing it says later is taken to
+   * be about the next one.
+   */
+  private void discardConnection(XMPPConnection con) {
+    LOG.debug("discarding dropped XMPPConnection");
+    con.removeConnectionListener(_supervisor);
+    try {
+      con.disconnect();
+    }
+    catch (RuntimeException e) {
+      LOG.debug("error disconnecting dropped connection", e);
+    }
+    setConnection(null);
+  }
+
+  /**
+   * Points everyone's chat at a new connection's chat manager, keeping
+   * their thread IDs where we can.
+   */
+  private void moveChatsTo(XMPPConnection con) {
+    ChatManager chats = con.getChatManager();
+    for (Conversation convo : _conversations.getConversations()) {
+      Chat old = convo.getChat();
+      if (chats.getThreadChat(old.getThreadID()) == old) continue;
+
+      Chat chat;
+      try {
+        chat = chats.createChat(old.getParticipant(), old.getThreadID(), null);
+      }
+      catch (IllegalArgumentException e) {
+        // Thread ID taken; start a new thread.
+        chat = chats.createChat(old.getParticipant(), null, null);
       }
+      convo.setChat(chat);
+    }
+  }
+
+  /**
+   * Joins the broadcast room, if there is one, on a new connection.
+   * Assumes {@link #_connectLock} is held.
+   */
+  private void joinBroadcastRoom(XMPPConnection con) {
+    if (isBlank(_broadcastRoomJid)) return;
+
+    BroadcastRoom room = _broadcastRoom;
+    if (room == null) {
+      String nickname = !isBlank(_broadcastNickname) ? _broadcastNickname
+                        : !isBlank(getResource()) ? getResource() : "status";
+      room = new BroadcastRoom(_broadcastRoomJid, nickname, _broadcastIntervalMillis,
+              _conversations.getTotals());
+      room.setSendScheduler(_sendScheduler);
+      _broadcastRoom = room;
     }
+    room.join(con);
+  }
+
+  /**
+   * Makes the connection we'll log in with.  Override to use a different
+   * kind of connection, like a stub for benchmarks.
+   */
+  protected XMPPConnection createConnection(ConnectionConfiguration conConfig) {
+    return new XMPPConnection(conConfig);
+  }
+
+  /**
+   * Whether we have a connection and are logged in on it.
+   */
+  public boolean isLoggedIn() {
+    XMPPConnection con = getConnection();
+    return con != null && con.isAuthenticated();
   }
 
   @Override
   public void close() {
-    if (getConnection() != null) {
-      LOG.debug("Disconnecting...");
-      getConnection().disconnect();
+    BroadcastRoom room = _broadcastRoom;
+    if (room != null) room.leave();
+    _supervisor.close();
+
+    AsyncSender sender;
+    synchronized (this) {
+      sender = _asyncSender;
+      _asyncSender = null;
+    }
+    if (sender != null) {
+      LOG.debug("Stopping async sender...");
+      sender.shutdown(ASYNC_SHUTDOWN_TIMEOUT_MILLIS);
+    }
+
+    SendScheduler scheduler;
+    synchronized (this) {
+      scheduler = _sendScheduler;
+      _sendScheduler = null;
+    }
+    if (scheduler != null) {
+      LOG.debug("Stopping send scheduler...");
+      scheduler.shutdown(ASYNC_SHUTDOWN_TIMEOUT_MILLIS);
+    }
+
+    TimerWheel wheel;
+    ExecutorService flusher;
+    CommandExecutor commands;
+    synchronized (this) {
+      wheel = _timerWheel;
+      _timerWheel = null;
+      flusher = _flushExecutor;
+      _flushExecutor = null;
+      commands = _commandExecutor;
+      _commandExecutor = null;
+    }
+    if (wheel != null) wheel.stop();
+    if (flusher != null) flusher.shutdown();
+    if (commands != null) commands.shutdown();
+
+    ConversationStore store = _store;
+    _store = null;
+    if (store != null) store.close();
+
+    _stats.unregister();
+    // Connecting started it to warm up the "system" command's stats.
+    ProcSampler.shutdown();
+
+    disconnect();
+  }
+
+  private void disconnect() {
+    synchronized (_connectLock) {
+      if (getConnection() != null) {
+        LOG.debug("Disconnecting...");
+        getConnection().disconnect();
+      }
     }
   }
 
@@ -118,33 +380,182 @@ public class XmppAppender extends AppenderSkeleton {
   protected void append(LoggingEvent event) {
     if (!shouldNotify()) return;
 
-    String msg = getMessage(event);
-    if (isBlank(msg)) return;
+    _stats.appended();
+    _latest.record(event);
+    _watchdogs.seen(event);
+    dispatch(event);
+  }
+
+  /**
+   * Hands an event off for delivery, either directly or through the async
+   * queue.
+   */
+  void dispatch(LoggingEvent event) {
+    if (isAsync()) {
+      // Leave the network to the sender thread.
+      getAsyncSender().enqueue(event);
+      return;
+    }
+
+    deliver(event);
+  }
 
-    // Return if we have not connected or logged in yet.
-    if (getConnection() == null || !getConnection().isAuthenticated()) {
+  /**
+   * Sends an event to everyone who should get it.  This is where the network
+   * is touched, so in async mode it is only called from the
+   * {@link AsyncSender} thread.
+   *
+   * @return false if sending to someone failed.  Events that nobody wanted
+   *         count as delivered.
+   */
+  boolean deliver(LoggingEvent event) {
+    // Hold on to it or drop it if we have not connected or logged in yet.
+    if (!isLoggedIn()) {
       if (LOG.isDebugEnabled()) {
         LOG.debug(String.format(
-                "Dropping notification since we are not authenticated.  Did you remember to call connect()?  If you did call connect(), this could be a connection problem with the server.  msg: %s, conConfig",
-                msg,
+                "Not sending notification since we are not authenticated.  Did you remember to call connect()?  If you did call connect(), this could be a connection problem with the server.  event: %s, conConfig: %s",
+                event.getMessage(),
                 _conConfig));
       }
-      return;
+      _supervisor.connectionLost(null);
+      _supervisor.eventWhileDisconnected(event);
+      _stats.whileDisconnected();
+      return true;
     }
 
-    // TODO: Should the failure of one message prevent the others from being attempted?
     try {
-      // Send notification to all conversations.
-      for (Conversation conversation : getConversations()) {
-        if (!conversation.shouldNotify(event)) continue;
-        
-        // Send the IM.
-        conversation.sendIm(msg, true);
+      // Find out who wants this event before doing any work to render it.
+      // Messages are often Callables that are expensive to evaluate, and
+      // most events are dropped by throttling.  Only people with filters,
+      // or whose throttle is open, need the message to decide, and it's
+      // rendered at most once for all of them.  Claiming the send slot last
+      // means concurrent appends can't both get through one interval.
+      RenderedEvent rendered = new RenderedEvent(event);
+      List<Conversation> recipients = null;
+      List<ThrottleClaim> claims = null;
+      long nowNanos = System.nanoTime();
+      for (Conversation conversation : _conversations.recipientsFor(event.getLoggerName())) {
+        DeliveryStats stats = conversation.getStats();
+        stats.received();
+        if (conversation.isPaused()) {
+          stats.paused();
+          continue;
+        }
+        conversation.recordArrival(event, nowNanos);
+
+        // Save it for when they're back.
+        if (conversation.isOffline() && _offlineBacklogSize > 0) {
+          if (conversation.accepts(rendered)) {
+            getOfflineBacklog().add(conversation, event);
+            stats.held();
+          }
+          else {
+            stats.filtered();
+          }
+          continue;
+        }
+
+        // Digests are sent on their own schedule.
+        if (conversation.isDigesting()) {
+          if (conversation.accepts(rendered)) {
+            conversation.addToDigest(event, getTimerWheel(), getFlushExecutor());
+            stats.held();
+          }
+          else {
+            stats.filtered();
+          }
+          continue;
+        }
+
+        if (!conversation.shouldNotify(event)) {
+          // Maybe send it later instead.
+          if (conversation.isCoalescing() && conversation.accepts(rendered)) {
+            conversation.holdForLater(event, getTimerWheel(), getFlushExecutor());
+            stats.held();
+          }
+          else {
+            stats.throttled();
+          }
+          continue;
+        }
+        // Check there's something to send before taking their interval, so
+        // a blank message doesn't hide the next real one.
+        if (!conversation.accepts(rendered) || rendered.isBlank()) {
+          stats.filtered();
+          continue;
+        }
+        ThrottleClaim claim = conversation.claimNotification(event);
+        if (claim == null) {
+          // Someone beat us to this interval.
+          if (conversation.isCoalescing()) {
+            conversation.holdForLater(event, getTimerWheel(), getFlushExecutor());
+            stats.held();
+          }
+          else {
+            stats.throttled();
+          }
+          continue;
+        }
+        conversation.discardHeldEventsUpTo(event);
+
+        if (recipients == null) {
+          recipients = new ArrayList<Conversation>();
+          claims = new ArrayList<ThrottleClaim>();
+        }
+        recipients.add(conversation);
+        claims.add(claim);
+      }
+
+      // The room is one send however many people are in it.
+      BroadcastRoom room = _broadcastRoom;
+      ThrottleClaim roomClaim = (room != null) ? room.claimNotification(rendered) : null;
+
+      if (recipients == null && roomClaim == null) {
+        if (rendered.isRendered()) {
+          _stats.rendered();
+        }
+        else {
+          _stats.skippedEvaluation();
+        }
+        return true;
+      }
+
+      // Everyone left has checked that it isn't blank.
+      String msg = rendered.getMessage();
+      _stats.rendered();
+
+      // Send notification to everyone who wanted it, serializing the
+      // message body only once.
+      XMPPConnection con = getConnection();
+      if (roomClaim != null) room.send(msg, event, con, roomClaim);
+      if (recipients == null) return true;
+
+      // One failed send shouldn't keep the message from everyone after it.
+      FanOutMessage fanOut = new FanOutMessage(msg, event.timeStamp, event.getLevel());
+      boolean delivered = true;
+      for (int i = 0; i < recipients.size(); i++) {
+        Conversation conversation = recipients.get(i);
+        try {
+          conversation.sendIm(fanOut, con, claims.get(i));
+        }
+        catch (RuntimeException e) {
+          delivered = false;
+          if (!isLoggedIn()) throw e;
+          LOG.warn("failed sending notification to " + conversation.getChat().getParticipant(), e);
+        }
       }
+      return delivered;
     }
     catch (Throwable t) {
-      // We had an error in sending the message.  Don't try to send again.
-      setNotificationFailedRecently(true);
+      // We had an error in sending the message.  If the connection is gone,
+      // the supervisor will get it back.
+      if (isLoggedIn()) {
+        LOG.warn("failed sending notification", t);
+      }
+      else {
+        _supervisor.connectionLost(t);
+      }
+      return false;
     }
   }
 
@@ -154,9 +565,15 @@ public class XmppAppender extends AppenderSkeleton {
    * it and returns {@code toString()} of the result. Otherwise simply calls
    * {@code toString()} of the message.
    */
-  private static String getMessage(LoggingEvent event) {
-    Object msg = event.getMessage();
-    
+  static String getMessage(LoggingEvent event) {
+    return renderMessage(event.getMessage());
+  }
+
+  /**
+   * Renders a logged message object the way {@link #getMessage(LoggingEvent)}
+   * does.
+   */
+  static String renderMessage(Object msg) {
     if (msg instanceof Callable<?>) {
       try {
         return ObjectUtils.toString(((Callable<?>)msg).call());
@@ -206,9 +623,176 @@ public class XmppAppender extends AppenderSkeleton {
     }
   }
   
-  public LinkedList<Conversation> getConversations() {
+  /**
+   * Gets the sender for async mode, starting it the first time it is needed
+   * since log4j gives us no signal that all properties have been set.
+   */
+  private AsyncSender getAsyncSender() {
+    AsyncSender sender = _asyncSender;
+    if (sender == null) {
+      synchronized (this) {
+        sender = _asyncSender;
+        if (sender == null) {
+          sender = new AsyncSender(this, getQueueCapacity(),
+                  getOverflowPolicyValue(), getBlockTimeoutMillis());
+          _asyncSender = sender;
+        }
+      }
+    }
+    return sender;
+  }
+
+  /**
+   * Starts sending through a {@link SendScheduler}, if there's a send
+   * rate, and points everyone already here at it.
+   */
+  private void startSendScheduler() {
+    if (!(_sendRatePerSecond > 0d)) return;
+
+    SendScheduler scheduler;
+    synchronized (this) {
+      if (_sendScheduler != null) return;
+      scheduler = new SendScheduler(this, _sendRatePerSecond, _sendBurst,
+              _sendQueueCapacity, _sendMaxLowWaitMillis);
+      _sendScheduler = scheduler;
+    }
+    for (Conversation convo : _conversations.getConversations()) {
+      convo.setSendScheduler(scheduler);
+    }
+    BroadcastRoom room = _broadcastRoom;
+    if (room != null) room.setSendScheduler(scheduler);
+  }
+
+  /**
+   * Samples progress trackers every few seconds on the timer thread until
+   * we're closed, which stops the timer.
+   */
+  private void startSamplingProgress() {
+    final TimerWheel wheel = getTimerWheel();
+    synchronized (this) {
+      if (_progressWheel == wheel) return;
+      _progressWheel = wheel;
+    }
+
+    wheel.schedule(new Runnable() {
+      public void run() {
+        ProgressTracker.sampleAll(System.nanoTime());
+        wheel.schedule(this, ProgressTracker.SAMPLE_MILLIS);
+      }
+    }, ProgressTracker.SAMPLE_MILLIS);
+  }
+
+  /**
+   * Gets the one timer thread shared by all conversations, starting it the
+   * first time it's needed.
+   */
+  TimerWheel getTimerWheel() {
+    TimerWheel wheel = _timerWheel;
+    if (wheel == null) {
+      synchronized (this) {
+        wheel = _timerWheel;
+        if (wheel == null) {
+          wheel = new TimerWheel("status-timer", TIMER_TICK_MILLIS, TIMER_TICKS_PER_WHEEL);
+          _timerWheel = wheel;
+        }
+      }
+    }
+    return wheel;
+  }
+
+  /**
+   * Gets the thread that sends what the timer says is due, starting it the
+   * first time it's needed.
+   */
+  ExecutorService getFlushExecutor() {
+    ExecutorService executor = _flushExecutor;
+    if (executor == null) {
+      synchronized (this) {
+        executor = _flushExecutor;
+        if (executor == null) {
+          executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                  new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "status-flush");
+              t.setDaemon(true);
+              return t;
+            }
+          });
+          _flushExecutor = executor;
+        }
+      }
+    }
+    return executor;
+  }
+
+  /**
+   * Gets the executor that runs IM commands, starting it the first time
+   * it's needed.
+   */
+  public CommandExecutor getCommandExecutor() {
+    CommandExecutor executor = _commandExecutor;
+    if (executor == null) {
+      synchronized (this) {
+        executor = _commandExecutor;
+        if (executor == null) {
+          executor = new CommandExecutor(getCommandThreads(), getMaxQueuedCommands());
+          _commandExecutor = executor;
+        }
+      }
+    }
+    return executor;
+  }
+  /** Null until the first IM comes in. */
+  CommandExecutor getCommandExecutorIfStarted() {
+    return _commandExecutor;
+  }
+
+  /** Null until someone goes offline. */
+  OfflineBacklog getOfflineBacklogIfStarted() {
+    return _offlineBacklog;
+  }
+
+  /**
+   * Events held for people who are offline.
+   */
+  public OfflineBacklog getOfflineBacklog() {
+    OfflineBacklog backlog = _offlineBacklog;
+    if (backlog == null) {
+      synchronized (this) {
+        backlog = _offlineBacklog;
+        if (backlog == null) {
+          backlog = new OfflineBacklog(getOfflineBacklogSize(), getOfflineBacklogTotal());
+          _offlineBacklog = backlog;
+        }
+      }
+    }
+    return backlog;
+  }
+
+
+  /**
+   * A snapshot of everyone we're IMing.  It won't reflect people who come
+   * or go later.
+   */
+  public List<Conversation> getConversations() {
+    return _conversations.getConversations();
+  }
+
+  public ConversationRegistry getConversationRegistry() {
     return _conversations;
   }
+
+  public int getMaxConversations() {
+    return _conversations.getMaxConversations();
+  }
+
+  /**
+   * Max number of people to IM at once.  When someone new IMs us past this,
+   * whoever we heard from least recently is dropped.
+   */
+  public void setMaxConversations(int maxConversations) {
+    evict(_conversations.setMaxConversations(maxConversations));
+  }
   
   public XMPPConnection getConnection() {
     return _con;
@@ -216,6 +800,9 @@ public class XmppAppender extends AppenderSkeleton {
   
   private void setConnection(XMPPConnection con) {
     _con = con;
+    _listenersAdded = false;
+    _loggedInOnConnection = false;
+    _rosterListenerAdded = false;
   }
   
   public ConnectionConfiguration getConnectionConfiguration() {
@@ -226,17 +813,67 @@ public class XmppAppender extends AppenderSkeleton {
     _conConfig = conConfig;
     
     // Refresh connection.
-    close();
+    disconnect();
     setConnection(null);
     attemptToConnect();
   }
   
+  public ConnectionSupervisor getConnectionSupervisor() {
+    return _supervisor;
+  }
+
+  public ConnectionSupervisor.State getConnectionState() {
+    return _supervisor.getState();
+  }
+
+  /**
+   * @deprecated failures are now retried; use {@link #getConnectionState()}.
+   */
+  @Deprecated
   public boolean getNotificationFailedRecently() {
-    return _notificationFailedRecently;
+    return getConnectionState() != ConnectionSupervisor.State.CONNECTED;
   }
-  
+
+  /**
+   * Does nothing; kept so old configurations that set it still load.
+   *
+   * @deprecated failures are now retried by the {@link ConnectionSupervisor}.
+   */
+  @Deprecated
   public void setNotificationFailedRecently(boolean notificationFailedRecently) {
-    _notificationFailedRecently = notificationFailedRecently;
+  }
+
+  public long getReconnectInitialDelayMillis() {
+    return _supervisor.getInitialBackoffMillis();
+  }
+
+  /**
+   * How long to wait before the first reconnect attempt.  Each failure
+   * doubles it, plus or minus some randomness.
+   */
+  public void setReconnectInitialDelayMillis(long millis) {
+    _supervisor.setInitialBackoffMillis(millis);
+  }
+
+  public long getReconnectMaxDelayMillis() {
+    return _supervisor.getMaxBackoffMillis();
+  }
+
+  /** The longest we'll ever wait between reconnect attempts. */
+  public void setReconnectMaxDelayMillis(long millis) {
+    _supervisor.setMaxBackoffMillis(millis);
+  }
+
+  public int getDisconnectedBufferSize() {
+    return _supervisor.getBufferCapacity();
+  }
+
+  /**
+   * How many of the latest events to hold on to while disconnected and send
+   * once we're back.  The default, 0, drops them.
+   */
+  public void setDisconnectedBufferSize(int size) {
+    _supervisor.setBufferCapacity(size);
   }
   
   public String getServerHostname() {
@@ -293,8 +930,367 @@ public class XmppAppender extends AppenderSkeleton {
     attemptToConnect();
   }
 
+  public boolean isAsync() {
+    return _async;
+  }
+
+  /**
+   * When true, logging threads only queue events and a background thread
+   * sends the IMs, so a slow server never holds up the app.
+   */
+  public void setAsync(boolean async) {
+    _async = async;
+  }
+
+  public int getQueueCapacity() {
+    return _queueCapacity;
+  }
+
+  /**
+   * Max number of events waiting to be sent in async mode.  Rounded up to a
+   * power of two.  Only takes effect before the first event is logged.
+   */
+  public void setQueueCapacity(int queueCapacity) {
+    _queueCapacity = queueCapacity;
+  }
+
+  public String getOverflowPolicy() {
+    return _overflowPolicy.name();
+  }
+
+  public OverflowPolicy getOverflowPolicyValue() {
+    return _overflowPolicy;
+  }
+
+  /**
+   * One of {@code DROP_OLDEST}, {@code DROP_NEWEST} or {@code BLOCK}.  Only
+   * takes effect before the first event is logged.
+   */
+  public void setOverflowPolicy(String overflowPolicy) {
+    _overflowPolicy = OverflowPolicy.toPolicy(overflowPolicy, _overflowPolicy);
+  }
+
+  public long getBlockTimeoutMillis() {
+    return _blockTimeoutMillis;
+  }
+
+  /**
+   * How long a logging thread waits for room in the queue under the
+   * {@code BLOCK} policy before giving up on its event.
+   */
+  public void setBlockTimeoutMillis(long blockTimeoutMillis) {
+    _blockTimeoutMillis = blockTimeoutMillis;
+  }
+
+  public int getCommandThreads() {
+    return _commandThreads;
+  }
+
+  /**
+   * How many IM commands can run at once, when virtual threads aren't
+   * available.  Only takes effect before the first IM comes in.
+   */
+  public void setCommandThreads(int commandThreads) {
+    _commandThreads = Math.max(1, commandThreads);
+  }
+
+  public int getMaxQueuedCommands() {
+    return _maxQueuedCommands;
+  }
+
+  /**
+   * How many IM commands may wait to run before we start telling people
+   * we're too busy.  Only takes effect before the first IM comes in.
+   */
+  public void setMaxQueuedCommands(int maxQueuedCommands) {
+    _maxQueuedCommands = Math.max(1, maxQueuedCommands);
+  }
+
+  public CommandRegistry getCommandRegistry() {
+    return _commands;
+  }
+
+  /**
+   * Adds an IM command, replacing any built-in one with the same name.
+   */
+  public void registerCommand(Command command) {
+    _commands.register(command);
+  }
+
+  /**
+   * Comma-separated class names of {@link Command}s to add, for apps that
+   * configure the appender in a log4j config file.
+   */
+  public void setCommands(String classNames) {
+    if (isBlank(classNames)) return;
+
+    for (String className : classNames.split(",")) {
+      if (isBlank(className)) continue;
+      _commands.register(className, Thread.currentThread().getContextClassLoader());
+    }
+  }
+
+  public boolean isCoalesce() {
+    return _coalesce;
+  }
+
+  /**
+   * Default for new conversations: when true, the latest update dropped by
+   * throttling is sent once the interval is up instead of being lost.
+   * People can change it for themselves with "coalesce on|off".
+   */
+  public void setCoalesce(boolean coalesce) {
+    _coalesce = coalesce;
+  }
+
+  public boolean isDigest() {
+    return _digest;
+  }
+
+  /**
+   * Default for new conversations: when true, updates are collected and
+   * sent as one summary IM per interval, instead of being throttled.
+   * People can change it for themselves with "digest on|off".
+   */
+  public void setDigest(boolean digest) {
+    _digest = digest;
+  }
+
+  public int getDigestMaxLines() {
+    return _digestMaxLines;
+  }
+
+  /** How many updates a digest shows before summarizing the rest. */
+  public void setDigestMaxLines(int digestMaxLines) {
+    _digestMaxLines = digestMaxLines;
+  }
+
+  public int getDigestMaxEvents() {
+    return _digestMaxEvents;
+  }
+
+  /** How many updates a digest collects before it's sent early. */
+  public void setDigestMaxEvents(int digestMaxEvents) {
+    _digestMaxEvents = digestMaxEvents;
+  }
+
+  public int getOfflineBacklogSize() {
+    return _offlineBacklogSize;
+  }
+
+  /**
+   * How many of the latest updates to hold for each person who's offline,
+   * to send as a summary when they're back.  0 sends updates whether
+   * they're online or not.  Only takes effect before anyone goes offline.
+   */
+  public void setOfflineBacklogSize(int offlineBacklogSize) {
+    _offlineBacklogSize = Math.max(0, offlineBacklogSize);
+  }
+
+  public int getOfflineBacklogTotal() {
+    return _offlineBacklogTotal;
+  }
+
+  /**
+   * How many updates to hold across everyone who's offline.  Past this,
+   * the oldest are dropped.
+   */
+  public void setOfflineBacklogTotal(int offlineBacklogTotal) {
+    _offlineBacklogTotal = Math.max(1, offlineBacklogTotal);
+  }
+
+  public String getStateFile() {
+    return _stateFile;
+  }
+
+  /**
+   * Where to save conversations so they survive restarts.  Read the first
+   * time we connect.  A journal and a temp file are kept next to it.
+   */
+  public void setStateFile(String stateFile) {
+    _stateFile = stateFile;
+  }
+
+  /**
+   * Loggers that should never go quiet for long, and whose silence
+   * everyone hears about.  People can set up their own with "alert if".
+   */
+  public Watchdogs getWatchdogs() {
+    return _watchdogs;
+  }
+
+  /**
+   * Watchdogs for everyone, like "status.etl=10m, status.import=30s": if
+   * nothing's logged from a logger or the loggers under it for that long,
+   * everyone we're IMing is told.
+   */
+  public void setWatchdogs(String spec) {
+    if (isBlank(spec)) return;
+
+    try {
+      _watchdogs.configure(spec);
+    }
+    catch (IllegalArgumentException e) {
+      LOG.error("bad Watchdogs param: " + e.getMessage());
+    }
+  }
+
+  public String getBroadcastRoom() {
+    return _broadcastRoomJid;
+  }
+
+  /**
+   * A multi-user chat room, like "ops@conference.example.com", to join and
+   * send every update to, once for everyone in it.  People can still IM
+   * the appender privately for their own settings.
+   */
+  public void setBroadcastRoom(String room) {
+    _broadcastRoomJid = room;
+  }
+
+  public String getBroadcastNickname() {
+    return _broadcastNickname;
+  }
+
+  /** What to call ourselves in the broadcast room.  Defaults to the resource. */
+  public void setBroadcastNickname(String nickname) {
+    _broadcastNickname = nickname;
+  }
+
+  public long getBroadcastIntervalMillis() {
+    return _broadcastIntervalMillis;
+  }
+
+  /**
+   * Least time between updates to the broadcast room; WARN and above are
+   * always sent.  0 sends every update.
+   */
+  public void setBroadcastIntervalMillis(long millis) {
+    _broadcastIntervalMillis = Math.max(0L, millis);
+  }
+
+  /** The broadcast room, or null if there isn't one or we haven't logged in yet. */
+  public BroadcastRoom getBroadcastRoomIfStarted() {
+    return _broadcastRoom;
+  }
+
+  public double getSendRatePerSecond() {
+    return _sendRatePerSecond;
+  }
+
+  /**
+   * Most IMs per second to send across everyone, to stay under the
+   * server's per-account rate limit.  Past it, errors go first and
+   * ordinary updates are shed.  0, the default, sends everything right
+   * away.  Only takes effect before we connect.
+   */
+  public void setSendRatePerSecond(double ratePerSecond) {
+    _sendRatePerSecond = Math.max(0d, ratePerSecond);
+  }
+
+  public int getSendBurst() {
+    return _sendBurst;
+  }
+
+  /** How many IMs can go out at once after a quiet spell. */
+  public void setSendBurst(int burst) {
+    _sendBurst = Math.max(1, burst);
+  }
+
+  public int getSendQueueCapacity() {
+    return _sendQueueCapacity;
+  }
+
+  /** How many IMs can wait to be sent before the least important are shed. */
+  public void setSendQueueCapacity(int capacity) {
+    _sendQueueCapacity = Math.max(1, capacity);
+  }
+
+  public long getSendMaxLowWaitMillis() {
+    return _sendMaxLowWaitMillis;
+  }
+
+  /** How long an INFO-level update may wait to be sent before it's shed as stale. */
+  public void setSendMaxLowWaitMillis(long millis) {
+    _sendMaxLowWaitMillis = Math.max(0L, millis);
+  }
+
+  /** The send scheduler, or null if there's no send rate or we haven't connected. */
+  public SendScheduler getSendSchedulerIfStarted() {
+    return _sendScheduler;
+  }
+
+  public long getSystemStatsTtlMillis() {
+    return SystemStats.getTtlMillis();
+  }
+
+  /**
+   * How long cached system stats are good for.  Fresh ones are gathered in
+   * the background, so the "system" command never waits.
+   */
+  public void setSystemStatsTtlMillis(long ttlMillis) {
+    SystemStats.setTtlMillis(ttlMillis);
+  }
+
+  /**
+   * Counters and latencies, also registered with JMX when we connect.
+   */
+  public AppenderStats getStats() {
+    return _stats;
+  }
+
+  /**
+   * The latest event from each logger at each level, for the "last" command.
+   */
+  public LatestEvents getLatestEvents() {
+    return _latest;
+  }
+
+  private String getStatsName() {
+    return (getName() != null) ? getName()
+           : getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this));
+  }
+
+  /** Events waiting in the async queue. */
+  public int getAsyncQueueSize() {
+    AsyncSender sender = _asyncSender;
+    return (sender == null) ? 0 : sender.getQueueSize();
+  }
+
+  /** Number of events queued in async mode. */
+  public long getEnqueuedCount() {
+    AsyncSender sender = _asyncSender;
+    return (sender == null) ? 0 : sender.getEnqueuedCount();
+  }
+
+  /** Number of queued events the sender thread has handed to deliver. */
+  public long getProcessedCount() {
+    AsyncSender sender = _asyncSender;
+    return (sender == null) ? 0 : sender.getProcessedCount();
+  }
+
+  /** Number of queued events that failed to send to someone. */
+  public long getFailedCount() {
+    AsyncSender sender = _asyncSender;
+    return (sender == null) ? 0 : sender.getFailedCount();
+  }
+
+  /** Number of events dropped because the queue was full. */
+  public long getDroppedCount() {
+    AsyncSender sender = _asyncSender;
+    return (sender == null) ? 0 : sender.getDroppedCount();
+  }
+
+  /**
+   * Number of events whose message was never rendered, because nobody was
+   * going to get it.  Each one is a {@link Callable} that wasn't called.
+   */
+  public long getSkippedEvaluations() {
+    return _stats.getSkippedEvaluations();
+  }
+
   public boolean shouldNotify() {
-    return !getNotificationFailedRecently();
+    return getConnectionState() != ConnectionSupervisor.State.CLOSED;
   }
 
   @Override
@@ -302,35 +1298,112 @@ public class XmppAppender extends AppenderSkeleton {
     return false;
   }
   
+  public Conversation removeConversation(String participant) {
+    Conversation convo = _conversations.remove(participant);
+    if (convo != null) forgetConversation(convo);
+    return convo;
+  }
+  
+  public List<String> getParticipants() {
+    return _conversations.getParticipants();
+  }
+
   /**
-   * Assumes conversations has been locked and is safe to modify.
+   * Brings back the conversations saved in the state file, if there is
+   * one.  Assumes the connect lock is held.
    */
-  public Conversation removeConversation(String participant) {
-    Iterator<Conversation> it = getConversations().iterator();
-    while (it.hasNext()) {
-      Conversation convo = it.next();
-      if (participant.equals(convo.getChat().getParticipant())) {
-        it.remove();
-        return convo;
+  private void restoreConversations(XMPPConnection con) {
+    if (isBlank(_stateFile)) return;
+
+    ConversationStore store = new ConversationStore(new File(_stateFile));
+    for (ConversationState state : store.load()) {
+      // They may have IMed us already.
+      if (_conversations.get(state.getParticipant()) != null) continue;
+
+      Chat chat;
+      try {
+        chat = con.getChatManager().createChat(state.getParticipant(), state.getThreadId(), null);
+      }
+      catch (IllegalArgumentException e) {
+        // Thread ID taken; start a new thread.
+        chat = con.getChatManager().createChat(state.getParticipant(), null, null);
+      }
+
+      Conversation convo = new Conversation(chat, _conversations.getTotals());
+      convo.setSendScheduler(_sendScheduler);
+      convo.setDigestLimits(getDigestMaxLines(), getDigestMaxEvents());
+      for (Conversation evicted : _conversations.add(convo)) {
+        store.remove(evicted.getChat().getParticipant());
       }
+      state.applyTo(convo, _conversations);
     }
-    return null;
+    _store = store;
   }
-  
-  public List<String> getParticipants() {
-    LinkedList<Conversation> convos = getConversations();
-    List<String> participants;
-
-    // Lock conversations before iterating.
-    synchronized(convos) {
-      // Copy participants.
-      participants = new ArrayList<String>(convos.size());
-      for (Conversation c : convos) {
-        participants.add(c.getChat().getParticipant());
+
+  /**
+   * Saves the conversation's settings, or forgets them if it's gone.
+   */
+  private void saveConversation(Conversation convo) {
+    ConversationStore store = _store;
+    if (store == null) return;
+
+    String participant = convo.getChat().getParticipant();
+    Conversation current = _conversations.get(participant);
+    if (current == convo) {
+      store.put(convo);
+    }
+    else if (current == null) {
+      store.remove(participant);
+    }
+  }
+
+  private void forgetConversation(Conversation convo) {
+    ConversationStore store = _store;
+    if (store != null) store.remove(convo.getChat().getParticipant());
+
+    OfflineBacklog backlog = _offlineBacklog;
+    if (backlog != null) backlog.discard(convo);
+  }
+
+  /**
+   * Sends someone who just came back what they missed, on the command
+   * executor so it's in order with their IMs.
+   */
+  private void replayOfflineBacklog(final Conversation convo) {
+    final OfflineBacklog backlog = _offlineBacklog;
+    if (backlog == null) return;
+
+    getCommandExecutor().submit(convo.getChat().getParticipant(), new Runnable() {
+      public void run() {
+        Summary summary = backlog.drain(convo);
+        if (summary != null) convo.sendUpdate(summary.getBody(), summary.getLevel());
       }
+    });
+  }
+
+  /**
+   * Forgets people who were evicted to make room for someone new, and lets
+   * them know.
+   */
+  private void evict(List<Conversation> evicted) {
+    for (Conversation convo : evicted) {
+      forgetConversation(convo);
+      notifyEvicted(convo);
+    }
+  }
+
+  /**
+   * Lets the person know we're evicting them, unless we haven't heard from
+   * them in a long time.
+   */
+  private void notifyEvicted(Conversation convo) {
+    Calendar cal = Calendar.getInstance();
+    cal.add(Calendar.DATE, -MAX_DAYS_TO_NOTIFY_OF_EVICTION);
+    Date lastHeardFrom = convo.getLastHeardFrom();
+    if (lastHeardFrom != null && lastHeardFrom.after(cal.getTime())) {
+      convo.sendIm("I'm holding a conversation with " + getMaxConversations() +
+      " other people, so I'll talk to you later.");
     }
-    
-    return participants;
   }
   
   private class XmppChatManagerListener implements ChatManagerListener {
@@ -351,10 +1424,42 @@ public class XmppAppender extends AppenderSkeleton {
     
   }
   
-  private class XmppMessageListener implements MessageListener {
+  /**
+   * Keeps track of who's offline, from their presence.  People whose
+   * presence we never hear about are assumed to be online.
+   */
+  private class PresenceListener implements RosterListener {
+
+    public void presenceChanged(Presence presence) {
+      String from = StringUtils.parseBareAddress(presence.getFrom());
+      XMPPConnection con = getConnection();
+      if (from == null || con == null || con.getRoster() == null) return;
+
+      // Available on any resource counts.
+      boolean available = con.getRoster().getPresence(from).isAvailable();
+      for (Conversation convo : _conversations.getConversations()) {
+        if (!from.equalsIgnoreCase(StringUtils.parseBareAddress(convo.getChat().getParticipant()))) {
+          continue;
+        }
+
+        boolean wasOffline = convo.isOffline();
+        convo.setOffline(!available);
+        LOG.debug(from + " is " + (available ? "online" : "offline"));
+        if (wasOffline && available) {
+          replayOfflineBacklog(convo);
+        }
+      }
+    }
+
+    public void entriesAdded(Collection<String> addresses) {}
+
+    public void entriesUpdated(Collection<String> addresses) {}
+
+    public void entriesDeleted(Collection<String> addresses) {}
+
+  }
 
-    /** I wanted this to last over a long weekend, so it is {@value} */
-    private static final int MAX_DAYS_TO_NOTIFY_OF_EVICTION = 4;
+  private class XmppMessageListener implements MessageListener {
 
     /**
      * Event fired whenever we receive an IM.
@@ -365,46 +1470,52 @@ public class XmppAppender extends AppenderSkeleton {
               + " message.body: " + message.getBody()
               + " message.subject: " + message.getSubject()
               + " message: " + message);
-      Conversation convo;
-      boolean newConvo = false;
-      Conversation oldConvo = null;
       
       try {
-        // To allow this to be called from multiple threads, we must lock the
-        // conversations when we muck with them.
-        LOG.debug("getting lock on conversations...");
-        synchronized (getConversations()) {
-          LOG.debug("got lock on conversations");
-
-          // Get the conversation.
-          convo = removeConversation(chat.getParticipant());
-          if (convo == null) {
-            LOG.debug("new conversation with participant " + chat.getParticipant());
-            convo = new Conversation(chat);
-            newConvo = true;
-          }
-
-          // Add this conversation to the front of the list.
-          getConversations().addFirst(convo);
+        // Get the conversation, marking it as most recently heard from.
+        ConversationRegistry.Registration reg = _conversations.register(chat);
+        Conversation convo = reg.getConversation();
+        if (reg.isNewConversation()) {
+          convo.setSendScheduler(_sendScheduler);
+          convo.setCoalescing(isCoalesce());
+          convo.setDigestLimits(getDigestMaxLines(), getDigestMaxEvents());
+          convo.setDigesting(isDigest());
+          LOG.debug("new conversation with participant " + chat.getParticipant()
+                  + ", number of conversations: " + _conversations.size());
+        }
 
-          // Evict old conversations.
-          LOG.debug("number of conversations: " + getConversations().size());
-          if (getConversations().size() > MAX_CONVERSATIONS) {
-            oldConvo = getConversations().removeLast();
-          }
+        // They're obviously online.
+        if (convo.isOffline()) {
+          convo.setOffline(false);
+          replayOfflineBacklog(convo);
         }
 
-        // Process the message itself.
-        convo.reactToIm(newConvo, message, XmppAppender.this);
-
-        // Let the person know we're evicting them.
-        if (oldConvo != null) {
-          // Don't send this if we haven't heard from this person in a long time.
-          Calendar cal = Calendar.getInstance();
-          cal.add(Calendar.DATE, -MAX_DAYS_TO_NOTIFY_OF_EVICTION);
-          if (oldConvo.getLastHeardFrom().after(cal.getTime())) {
-            oldConvo.sendIm("I'm holding a conversation with " + MAX_CONVERSATIONS +
-            " other people, so I'll talk to you later.");
+        // Process the message itself, off of Smack's thread so a slow
+        // command doesn't hold up everyone else.
+        final Conversation fConvo = convo;
+        final boolean newConvo = reg.isNewConversation();
+        final List<Conversation> evicted = reg.getEvicted();
+        final Message fMessage = message;
+        boolean queued = getCommandExecutor().submit(chat.getParticipant(), new Runnable() {
+          public void run() {
+            fConvo.reactToIm(newConvo, fMessage, XmppAppender.this);
+            saveConversation(fConvo);
+            evict(evicted);
+          }
+        });
+        if (!queued) {
+          // They're registered either way, so finish what the command would
+          // have: remember them, and let go of whoever made room for them.
+          convo.setLastHeardFrom(new Date());
+          saveConversation(convo);
+          evict(evicted);
+          if (newConvo) {
+            convo.sendIm("hi, i'll start sending updates every " +
+                    Utils.formatPeriod(convo.getThrottleMillis()) +
+                    ".  i'm swamped right now, so try commands again in a bit.");
+          }
+          else {
+            convo.sendIm("sorry, i'm swamped right now.  try again in a bit.");
           }
         }
       }
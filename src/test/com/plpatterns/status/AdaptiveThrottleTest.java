@@ -0,0 +1,75 @@
+package com.plpatterns.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.junit.Test;
+
+/**
+ * @author Jonathan Tran (jtran)
+ */
+public class AdaptiveThrottleTest {
+
+  private static final long MIN = 10 * 1000L;
+  private static final long MAX = 10 * 60 * 1000L;
+
+  private final AdaptiveThrottle _throttle = new AdaptiveThrottle(MIN, MAX);
+  private final long _start = System.nanoTime();
+
+  @Test
+  public void startsAtTheMinimum() {
+    assertEquals(MIN, _throttle.getIntervalMillis());
+    _throttle.record(Level.INFO, _start);
+    assertTrue(_throttle.getIntervalMillis() > MIN);
+    assertTrue(_throttle.getIntervalMillis() < MAX / 4);
+  }
+
+  @Test
+  public void stretchesTowardTheMaximumWhenBusy() {
+    record(600, Level.INFO, _start);
+    assertEquals(10d, _throttle.getRate(), 0.01);
+    assertTrue(_throttle.getIntervalMillis() > MAX * 9 / 10);
+    assertTrue(_throttle.getIntervalMillis() <= MAX);
+  }
+
+  @Test
+  public void errorsPullItBackDown() {
+    record(300, Level.INFO, _start);
+    long quiet = _throttle.getIntervalMillis();
+    record(300, Level.ERROR, _start);
+
+    assertEquals(0.5d, _throttle.getSevereShare(), 0.001);
+    assertTrue(_throttle.getIntervalMillis() < quiet);
+  }
+
+  @Test
+  public void settlesBackWhenThingsQuietDown() {
+    record(600, Level.INFO, _start);
+    _throttle.record(Level.INFO, _start + TimeUnit.MINUTES.toNanos(10));
+
+    // Ten decay times later, the burst is worth less than the one new event.
+    assertEquals(1d / 60, _throttle.getRate(), 0.001);
+    assertTrue(_throttle.getIntervalMillis() < MAX / 4);
+  }
+
+  @Test
+  public void debugCountsHalf() {
+    record(60, Level.DEBUG, _start);
+    assertEquals(0.5d, _throttle.getRate(), 0.001);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsBackwardsBounds() {
+    new AdaptiveThrottle(MAX, MIN);
+  }
+
+  private void record(int count, Level level, long nowNanos) {
+    for (int i = 0; i < count; i++) {
+      _throttle.record(level, nowNanos);
+    }
+  }
+
+}
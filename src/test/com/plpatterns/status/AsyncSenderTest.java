@@ -0,0 +1,198 @@
+package com.plpatterns.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.jivesoftware.smack.Chat;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author Jonathan Tran (jtran)
+ */
+public class AsyncSenderTest {
+
+  private static final Logger LOGGER = Logger.getLogger("status.test.AsyncSenderTest");
+
+  private AsyncSender _sender;
+
+  @After
+  public void tearDown() {
+    if (_sender != null) _sender.shutdown(1000L);
+  }
+
+  @Test(timeout = 10000)
+  public void deliversEverythingInOrder() throws Exception {
+    RecordingAppender appender = new RecordingAppender();
+    _sender = new AsyncSender(appender, 16, OverflowPolicy.BLOCK, 5000L);
+
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(_sender.enqueue(event(i)));
+    }
+    waitFor(_sender, 1000);
+
+    assertEquals(1000, _sender.getEnqueuedCount());
+    assertEquals(0, _sender.getDroppedCount());
+    assertEquals(0, _sender.getFailedCount());
+    List<String> delivered = appender.getDelivered();
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(String.valueOf(i), delivered.get(i));
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void countsFailedSends() throws Exception {
+    TestAppender appender = new TestAppender();
+    assertTrue(appender.tryConnect());
+    TestConnection con = appender.getTestConnection();
+    Chat chat = con.getChatManager().createChat("bob@localhost", null);
+    appender.getConversationRegistry().register(chat);
+    con.failSendsContaining("fail");
+    _sender = new AsyncSender(appender, 16, OverflowPolicy.BLOCK, 5000L);
+
+    // Errors aren't throttled, so each one is sent.
+    for (int i = 0; i < 100; i++) {
+      String msg = (i % 2 == 1) ? "fail " + i : "ok " + i;
+      _sender.enqueue(new LoggingEvent(Logger.class.getName(), LOGGER, Level.ERROR, msg, null));
+    }
+    waitFor(_sender, 100);
+
+    assertEquals(50, _sender.getFailedCount());
+    assertEquals(50, con.getSent().size());
+    assertTrue(appender.isLoggedIn());
+  }
+
+  @Test(timeout = 10000)
+  public void dropNewestRejectsWhenFull() throws Exception {
+    BlockingAppender appender = new BlockingAppender();
+    _sender = new AsyncSender(appender, 4, OverflowPolicy.DROP_NEWEST, 0L);
+    fillBehindBlockedDelivery(appender, 4);
+
+    assertFalse(_sender.enqueue(event(99)));
+    assertEquals(1, _sender.getDroppedCount());
+
+    appender.release();
+    waitFor(_sender, 5);
+    assertEquals("0", appender.getDelivered().get(0));
+    assertFalse(appender.getDelivered().contains("99"));
+  }
+
+  @Test(timeout = 10000)
+  public void dropOldestMakesRoom() throws Exception {
+    BlockingAppender appender = new BlockingAppender();
+    _sender = new AsyncSender(appender, 4, OverflowPolicy.DROP_OLDEST, 0L);
+    fillBehindBlockedDelivery(appender, 4);
+
+    assertTrue(_sender.enqueue(event(99)));
+    assertEquals(1, _sender.getDroppedCount());
+
+    appender.release();
+    waitFor(_sender, 5);
+    // The first queued after the blocked one was dropped.
+    assertFalse(appender.getDelivered().contains("1"));
+    assertEquals("99", appender.getDelivered().get(4));
+  }
+
+  @Test(timeout = 10000)
+  public void blockGivesUpAfterTimeout() throws Exception {
+    BlockingAppender appender = new BlockingAppender();
+    _sender = new AsyncSender(appender, 4, OverflowPolicy.BLOCK, 50L);
+    fillBehindBlockedDelivery(appender, 4);
+
+    long start = System.nanoTime();
+    assertFalse(_sender.enqueue(event(99)));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    assertEquals(1, _sender.getDroppedCount());
+    appender.release();
+  }
+
+  @Test(timeout = 10000)
+  public void dropsEverythingAfterShutdown() throws Exception {
+    _sender = new AsyncSender(new RecordingAppender(), 4, OverflowPolicy.BLOCK, 0L);
+    _sender.shutdown(1000L);
+
+    assertFalse(_sender.enqueue(event(0)));
+    assertEquals(1, _sender.getDroppedCount());
+  }
+
+  /**
+   * Gets the sender stuck delivering event 0, then queues events 1 to
+   * capacity behind it.
+   */
+  private void fillBehindBlockedDelivery(BlockingAppender appender, int capacity) throws Exception {
+    assertTrue(_sender.enqueue(event(0)));
+    appender.awaitBlocked();
+    for (int i = 1; i <= capacity; i++) {
+      assertTrue(_sender.enqueue(event(i)));
+    }
+  }
+
+  private static void waitFor(AsyncSender sender, long processed) throws InterruptedException {
+    while (sender.getProcessedCount() < processed) {
+      Thread.sleep(1);
+    }
+  }
+
+  private static LoggingEvent event(int i) {
+    return new LoggingEvent(Logger.class.getName(), LOGGER, Level.INFO, String.valueOf(i), null);
+  }
+
+  private static class RecordingAppender extends XmppAppender {
+
+    private final List<String> _delivered = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    boolean deliver(LoggingEvent event) {
+      _delivered.add((String)event.getMessage());
+      return true;
+    }
+
+    List<String> getDelivered() {
+      synchronized (_delivered) {
+        return new ArrayList<String>(_delivered);
+      }
+    }
+
+  }
+
+  /**
+   * Holds up the first delivery until released.
+   */
+  private static class BlockingAppender extends RecordingAppender {
+
+    private final CountDownLatch _blocked = new CountDownLatch(1);
+    private final CountDownLatch _released = new CountDownLatch(1);
+
+    @Override
+    boolean deliver(LoggingEvent event) {
+      _blocked.countDown();
+      try {
+        _released.await();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return super.deliver(event);
+    }
+
+    void awaitBlocked() throws InterruptedException {
+      _blocked.await();
+    }
+
+    void release() {
+      _released.countDown();
+    }
+
+  }
+
+}
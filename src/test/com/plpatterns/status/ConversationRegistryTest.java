@@ -0,0 +1,108 @@
+package com.plpatterns.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.jivesoftware.smack.Chat;
+import org.junit.Test;
+
+/**
+ * @author Jonathan Tran (jtran)
+ */
+public class ConversationRegistryTest {
+
+  private final TestConnection _con = new TestConnection();
+
+  @Test
+  public void registersEachParticipantOnce() {
+    ConversationRegistry registry = new ConversationRegistry(10);
+    ConversationRegistry.Registration first = registry.register(chat("bob@localhost"));
+    ConversationRegistry.Registration again = registry.register(chat("bob@localhost"));
+
+    assertTrue(first.isNewConversation());
+    assertFalse(again.isNewConversation());
+    assertSame(first.getConversation(), again.getConversation());
+    assertSame(first.getConversation(), registry.get("bob@localhost"));
+    assertEquals(1, registry.size());
+  }
+
+  @Test
+  public void evictsWhoeverWasHeardFromLeastRecently() {
+    ConversationRegistry registry = new ConversationRegistry(2);
+    Conversation bob = registry.register(chat("bob@localhost")).getConversation();
+    registry.register(chat("carol@localhost"));
+
+    // Hearing from bob again makes carol the oldest.
+    registry.register(chat("bob@localhost"));
+    ConversationRegistry.Registration dave = registry.register(chat("dave@localhost"));
+
+    assertEquals(1, dave.getEvicted().size());
+    assertEquals("carol@localhost", dave.getEvicted().get(0).getChat().getParticipant());
+    assertNull(registry.get("carol@localhost"));
+    assertSame(bob, registry.get("bob@localhost"));
+    assertEquals(Arrays.asList("dave@localhost", "bob@localhost"), registry.getParticipants());
+  }
+
+  @Test
+  public void lookingUpDoesNotChangeRecency() {
+    ConversationRegistry registry = new ConversationRegistry(2);
+    registry.register(chat("bob@localhost"));
+    registry.register(chat("carol@localhost"));
+
+    registry.get("bob@localhost");
+    ConversationRegistry.Registration dave = registry.register(chat("dave@localhost"));
+    assertEquals("bob@localhost", dave.getEvicted().get(0).getChat().getParticipant());
+  }
+
+  @Test
+  public void loweringTheCapEvictsTheOldest() {
+    ConversationRegistry registry = new ConversationRegistry(10);
+    registry.register(chat("bob@localhost"));
+    registry.register(chat("carol@localhost"));
+    registry.register(chat("dave@localhost"));
+
+    assertEquals(Collections.<Conversation>emptyList(), registry.setMaxConversations(3));
+    assertEquals(2, registry.setMaxConversations(1).size());
+    assertEquals(Arrays.asList("dave@localhost"), registry.getParticipants());
+    assertEquals(1, registry.getConversations().size());
+  }
+
+  @Test
+  public void snapshotsDoNotChangeUnderneathYou() {
+    ConversationRegistry registry = new ConversationRegistry(10);
+    registry.register(chat("bob@localhost"));
+    Conversation[] before = registry.snapshot();
+
+    registry.register(chat("carol@localhost"));
+    assertSame(registry.get("bob@localhost"), registry.remove("bob@localhost"));
+    assertNull(registry.remove("bob@localhost"));
+
+    assertEquals(1, before.length);
+    assertEquals(1, registry.snapshot().length);
+    assertEquals("carol@localhost", registry.snapshot()[0].getChat().getParticipant());
+  }
+
+  @Test
+  public void addReplacesTheConversationForAParticipant() {
+    ConversationRegistry registry = new ConversationRegistry(10);
+    Conversation old = registry.register(chat("bob@localhost")).getConversation();
+    Conversation restored = new Conversation(chat("bob@localhost"));
+
+    assertTrue(registry.add(restored).isEmpty());
+    assertSame(restored, registry.get("bob@localhost"));
+    assertNotSame(old, registry.get("bob@localhost"));
+    assertEquals(1, registry.size());
+  }
+
+  private Chat chat(String participant) {
+    return _con.getChatManager().createChat(participant, null);
+  }
+
+}
@@ -0,0 +1,188 @@
+package com.plpatterns.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jivesoftware.smack.Chat;
+import org.jivesoftware.smack.ChatManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Saving and restoring conversations, including after a crash leaves a
+ * torn or corrupt record at the end of the journal.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class ConversationStoreTest {
+
+  private File _file;
+  private File _journal;
+
+  @Before
+  public void setUp() throws IOException {
+    _file = File.createTempFile("status-test", ".state");
+    _file.delete();
+    _journal = new File(_file.getPath() + ".journal");
+  }
+
+  @After
+  public void tearDown() {
+    _file.delete();
+    _journal.delete();
+    new File(_file.getPath() + ".tmp").delete();
+  }
+
+  @Test
+  public void startsEmpty() {
+    ConversationStore store = new ConversationStore(_file);
+    assertTrue(store.load().isEmpty());
+    store.close();
+    assertTrue(_file.exists());
+  }
+
+  @Test
+  public void restoresWhatWasSaved() {
+    ConversationStore store = new ConversationStore(_file);
+    store.load();
+    Conversation alice = conversation("alice@example.com");
+    store.put(alice);
+    alice.setPaused(true);
+    alice.setMinMillisecondsBetweenMessages(5 * 60 * 1000L);
+    alice.addWatch("status.billing");
+    store.put(alice);
+    store.put(conversation("bob@example.com"));
+    store.remove("bob@example.com");
+    store.close();
+
+    List<ConversationState> states = new ConversationStore(_file).load();
+    assertEquals(1, states.size());
+    ConversationState state = states.get(0);
+    assertEquals("alice@example.com", state.getParticipant());
+    assertTrue(state.isPaused());
+    assertEquals(5 * 60 * 1000L, state.getMinMillisecondsBetweenMessages());
+    assertEquals(Arrays.asList("status.billing"), state.getWatches());
+  }
+
+  @Test
+  public void skipsATornRecordAtTheEndOfTheJournal() throws IOException {
+    byte[] records = twoRecords();
+    int first = recordLength(records, 0);
+
+    // A crash partway through writing the second record.
+    writeJournal(prefix(records, first + (records.length - first) / 2));
+
+    List<ConversationState> states = new ConversationStore(_file).load();
+    assertEquals(1, states.size());
+    assertEquals("alice@example.com", states.get(0).getParticipant());
+  }
+
+  @Test
+  public void stopsAtACorruptRecord() throws IOException {
+    byte[] records = twoRecords();
+    // Flip bits in bob's data, so his CRC doesn't match.
+    records[records.length - 1] ^= 0x55;
+    writeJournal(records);
+
+    List<ConversationState> states = new ConversationStore(_file).load();
+    assertEquals(1, states.size());
+    assertEquals("alice@example.com", states.get(0).getParticipant());
+  }
+
+  @Test
+  public void foldsTheJournalIntoTheFileOnLoad() throws IOException {
+    byte[] records = twoRecords();
+    writeJournal(prefix(records, records.length - 1));
+
+    ConversationStore store = new ConversationStore(_file);
+    assertEquals(1, store.load().size());
+    assertEquals(0L, _journal.length());
+    store.close();
+
+    assertEquals(1, new ConversationStore(_file).load().size());
+    assertFalse(new File(_file.getPath() + ".tmp").exists());
+  }
+
+  /**
+   * Saves alice then bob, and returns the two records the snapshot ends up
+   * with, leaving no files behind.
+   */
+  private byte[] twoRecords() throws IOException {
+    ConversationStore store = new ConversationStore(_file);
+    store.load();
+    store.put(conversation("alice@example.com"));
+    store.put(conversation("bob@example.com"));
+    store.close();
+
+    byte[] bytes = read(_file);
+    _file.delete();
+    _journal.delete();
+    assertEquals(bytes.length, recordLength(bytes, 0) + recordLength(bytes, recordLength(bytes, 0)));
+    return bytes;
+  }
+
+  /** A record is its data's length, a CRC, and the data. */
+  private static int recordLength(byte[] bytes, int offset) {
+    return 8 + ByteBuffer.wrap(bytes, offset, 4).getInt();
+  }
+
+  private static byte[] prefix(byte[] bytes, int length) {
+    byte[] prefix = new byte[length];
+    System.arraycopy(bytes, 0, prefix, 0, length);
+    return prefix;
+  }
+
+  private void writeJournal(byte[] bytes) throws IOException {
+    FileOutputStream out = new FileOutputStream(_journal);
+    try {
+      out.write(bytes);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  private static byte[] read(File file) throws IOException {
+    byte[] bytes = new byte[(int)file.length()];
+    FileInputStream in = new FileInputStream(file);
+    try {
+      int read = 0;
+      while (read < bytes.length) {
+        int n = in.read(bytes, read, bytes.length - read);
+        if (n < 0) break;
+        read += n;
+      }
+    }
+    finally {
+      in.close();
+    }
+    return bytes;
+  }
+
+  /**
+   * Smack only makes chats through a logged-in connection, so build one
+   * directly.
+   */
+  private static Conversation conversation(String participant) {
+    try {
+      Constructor<Chat> c = Chat.class.getDeclaredConstructor(ChatManager.class, String.class, String.class);
+      c.setAccessible(true);
+      return new Conversation(c.newInstance(null, participant, "thread-" + participant));
+    }
+    catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+}
@@ -0,0 +1,146 @@
+package com.plpatterns.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+/**
+ * The lock-free throttle: however many threads race for an interval,
+ * exactly one gets it.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+public class ConversationTest {
+
+  private static final Logger LOGGER = Logger.getLogger("status.test.ConversationTest");
+
+  @Test
+  public void firstEventGetsThroughThenThrottles() {
+    Conversation convo = throttled(60 * 1000L);
+    LoggingEvent info = event(Level.INFO);
+
+    assertTrue(convo.shouldNotify(info));
+    assertNotNull(convo.claimNotification(info));
+    assertNotNull(convo.getLastSentTo());
+
+    assertFalse(convo.shouldNotify(info));
+    assertNull(convo.claimNotification(info));
+    assertTrue(convo.getMillisUntilThrottleOpens() > 0);
+  }
+
+  @Test
+  public void shouldNotifyDoesNotTakeTheInterval() {
+    Conversation convo = throttled(60 * 1000L);
+    LoggingEvent info = event(Level.INFO);
+
+    assertTrue(convo.shouldNotify(info));
+    assertTrue(convo.shouldNotify(info));
+    assertNull(convo.getLastSentTo());
+    assertNotNull(convo.claimNotification(info));
+  }
+
+  @Test
+  public void warningsBypassTheThrottle() {
+    Conversation convo = throttled(60 * 1000L);
+    assertNotNull(convo.claimNotification(event(Level.INFO)));
+
+    assertNotNull(convo.claimNotification(event(Level.WARN)));
+    assertNotNull(convo.claimNotification(event(Level.ERROR)));
+    assertNull(convo.claimNotification(event(Level.INFO)));
+  }
+
+  @Test
+  public void pausedGetsNothing() {
+    Conversation convo = throttled(0L);
+    convo.setPaused(true);
+
+    assertFalse(convo.shouldNotify(event(Level.ERROR)));
+    assertNull(convo.claimNotification(event(Level.ERROR)));
+  }
+
+  @Test
+  public void intervalReopens() throws Exception {
+    Conversation convo = throttled(20L);
+    assertNotNull(convo.claimNotification(event(Level.INFO)));
+    assertNull(convo.claimNotification(event(Level.INFO)));
+
+    Thread.sleep(40L);
+    assertNotNull(convo.claimNotification(event(Level.INFO)));
+  }
+
+  @Test(timeout = 30000)
+  public void exactlyOneRacingThreadWinsEachInterval() throws Exception {
+    final int threads = 8;
+    for (int round = 0; round < 200; round++) {
+      final Conversation convo = throttled(60 * 1000L);
+      final LoggingEvent info = event(Level.INFO);
+      final CyclicBarrier barrier = new CyclicBarrier(threads);
+      final CountDownLatch done = new CountDownLatch(threads);
+      final AtomicInteger winners = new AtomicInteger();
+
+      for (int t = 0; t < threads; t++) {
+        new Thread(new Runnable() {
+          public void run() {
+            try {
+              barrier.await();
+              if (convo.shouldNotify(info) && convo.claimNotification(info) != null) {
+                winners.incrementAndGet();
+              }
+            }
+            catch (Exception e) {
+              throw new RuntimeException(e);
+            }
+            finally {
+              done.countDown();
+            }
+          }
+        }).start();
+      }
+      done.await();
+
+      assertEquals("winners in round " + round, 1, winners.get());
+    }
+  }
+
+  @Test
+  public void releasingAClaimReopensTheThrottle() {
+    Conversation convo = throttled(60 * 1000L);
+    ThrottleClaim claim = convo.claimNotification(event(Level.INFO));
+    assertNotNull(claim);
+
+    assertTrue(claim.release());
+    assertNotNull(convo.claimNotification(event(Level.INFO)));
+  }
+
+  @Test
+  public void releaseLeavesALaterClaimAlone() {
+    Conversation convo = throttled(60 * 1000L);
+    ThrottleClaim info = convo.claimNotification(event(Level.INFO));
+    assertNotNull(convo.claimNotification(event(Level.WARN)));
+
+    assertFalse(info.release());
+    assertNull(convo.claimNotification(event(Level.INFO)));
+  }
+
+  private static Conversation throttled(long millis) {
+    Conversation convo = new Conversation(null);
+    convo.setMinMillisecondsBetweenMessages(millis);
+    return convo;
+  }
+
+  private static LoggingEvent event(Level level) {
+    return new LoggingEvent(Logger.class.getName(), LOGGER, level, "test", null);
+  }
+
+}
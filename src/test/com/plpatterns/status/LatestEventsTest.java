@@ -0,0 +1,71 @@
+package com.plpatterns.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+/**
+ * @author Jonathan Tran (jtran)
+ */
+public class LatestEventsTest {
+
+  @Test
+  public void keepsTheLatestPerLoggerAndLevelNewestFirst() {
+    LatestEvents latest = new LatestEvents();
+    latest.record(event("status.billing", Level.INFO, "first", 1000L));
+    latest.record(event("status.billing", Level.INFO, "second", 2000L));
+    latest.record(event("status.billing.invoices", Level.WARN, "retrying", 3000L));
+    latest.record(event("status.shipping", Level.ERROR, "stuck", 4000L));
+
+    List<LatestEvents.Entry> billing = latest.get("status.billing");
+    assertEquals(2, billing.size());
+    assertEquals("retrying", billing.get(0).getMessage());
+    assertEquals("second", billing.get(1).getMessage());
+    assertEquals(Level.INFO, billing.get(1).getLevel());
+    assertEquals(2000L, billing.get(1).getTimeStamp());
+
+    assertEquals("status.shipping ERROR 6 seconds ago: stuck",
+            latest.toHumanReadableString("status.shipping", 10000L));
+    assertNull(latest.toHumanReadableString("status.nothing", 10000L));
+  }
+
+  @Test
+  public void rendersCallablesWhenAsked() {
+    final int[] calls = {0};
+    LatestEvents latest = new LatestEvents();
+    latest.record(event("status.queue", Level.INFO, new Callable<String>() {
+      public String call() {
+        return "depth " + (++calls[0]);
+      }
+    }, 1000L));
+    assertEquals(0, calls[0]);
+
+    assertEquals("status.queue INFO just now: depth 1", latest.toHumanReadableString("", 1000L));
+    assertEquals("status.queue INFO just now: depth 2", latest.toHumanReadableString("", 1000L));
+  }
+
+  @Test
+  public void stopsAtMaxLoggers() {
+    LatestEvents latest = new LatestEvents(2);
+    latest.record(event("a", Level.INFO, "1", 1L));
+    latest.record(event("b", Level.INFO, "2", 2L));
+    latest.record(event("c", Level.INFO, "3", 3L));
+    latest.record(event("a", Level.WARN, "4", 4L));
+
+    assertEquals(2, latest.size());
+    assertEquals(3, latest.get("").size());
+  }
+
+  private static LoggingEvent event(String logger, Level level, Object msg, long timeStamp) {
+    return new LoggingEvent(Logger.class.getName(), Logger.getLogger(logger), timeStamp, level,
+            msg, new IllegalStateException("not kept"));
+  }
+
+}
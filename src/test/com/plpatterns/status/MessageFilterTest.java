@@ -0,0 +1,70 @@
+package com.plpatterns.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Jonathan Tran (jtran)
+ */
+public class MessageFilterTest {
+
+  /**
+   * Backtracks exponentially on a run of a's with no b after it.  The
+   * backreference keeps the JDK from optimizing it away.
+   */
+  private static final String CATASTROPHIC = "/((a|aa)\\1?)+b/";
+
+  @Test
+  public void matchesRegexesAndText() {
+    MessageFilter filter = MessageFilter.NONE.matching("/failed|stuck/i").ignoring("heartbeat");
+
+    assertTrue(filter.accepts("job 12 FAILED"));
+    assertFalse(filter.accepts("job 12 done"));
+    assertFalse(filter.accepts("heartbeat stuck"));
+    assertEquals(1, filter.getPassed());
+    assertEquals(2, filter.getBlocked());
+  }
+
+  @Test
+  public void regexesOnlyLookAtTheStart() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < MessageFilter.MAX_REGEX_INPUT; i++) {
+      sb.append('x');
+    }
+    String msg = sb.append(" failed").toString();
+
+    assertFalse(MessageFilter.NONE.matching("/failed/").accepts(msg));
+    assertTrue(MessageFilter.NONE.matching("failed").accepts(msg));
+  }
+
+  @Test(timeout = 10000)
+  public void turnsOffASlowFilter() {
+    MessageFilter filter = MessageFilter.NONE.matching(CATASTROPHIC);
+    String msg = repeat('a', 60);
+
+    // It lets everything through once it's off, rather than nothing.
+    assertTrue(filter.accepts(msg));
+    assertTrue(filter.accepts("anything"));
+    assertTrue(filter.toHumanReadableString(), filter.toHumanReadableString().contains("too slow, turned off"));
+  }
+
+  @Test(timeout = 10000)
+  public void turnsOffASlowIgnore() {
+    MessageFilter filter = MessageFilter.NONE.ignoring(CATASTROPHIC);
+
+    assertTrue(filter.accepts(repeat('a', 60)));
+    assertTrue(filter.accepts("aab"));
+  }
+
+  private static String repeat(char c, int n) {
+    StringBuilder sb = new StringBuilder(n);
+    for (int i = 0; i < n; i++) {
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+}
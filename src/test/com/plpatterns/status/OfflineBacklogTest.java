@@ -0,0 +1,102 @@
+package com.plpatterns.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+/**
+ * @author Jonathan Tran (jtran)
+ */
+public class OfflineBacklogTest {
+
+  private static final Logger LOGGER = Logger.getLogger("status.test.OfflineBacklogTest");
+
+  private final TestConnection _con = new TestConnection();
+  private final Conversation _bob = conversation("bob@localhost");
+  private final Conversation _carol = conversation("carol@localhost");
+
+  @Test
+  public void keepsEachPersonsNewestEvents() {
+    OfflineBacklog backlog = new OfflineBacklog(2, 100);
+    backlog.add(_bob, event("one"));
+    backlog.add(_bob, event("two"));
+    backlog.add(_bob, event("three"));
+    assertEquals(2, backlog.size());
+    assertEquals(1, backlog.getDropped());
+
+    String body = backlog.drain(_bob).getBody();
+    assertTrue(body, body.startsWith("while you were away, "));
+    assertFalse(body, body.contains("one"));
+    assertTrue(body, body.contains("two"));
+    assertTrue(body, body.contains("three"));
+    assertTrue(body, body.contains("(1 older update didn't fit)"));
+    assertEquals(0, backlog.size());
+    assertNull(backlog.drain(_bob));
+  }
+
+  @Test
+  public void dropsTheOldestOverallPastTheTotal() {
+    OfflineBacklog backlog = new OfflineBacklog(10, 3);
+    backlog.add(_bob, event("bob 1"));
+    backlog.add(_carol, event("carol 1"));
+    backlog.add(_bob, event("bob 2"));
+    backlog.add(_carol, event("carol 2"));
+    backlog.add(_carol, event("carol 3"));
+
+    // Bob's first and carol's first were the oldest across everyone.
+    assertEquals(3, backlog.size());
+    assertEquals(2, backlog.getDropped());
+
+    String carol = backlog.drain(_carol).getBody();
+    assertFalse(carol, carol.contains("carol 1"));
+    assertTrue(carol, carol.contains("carol 2"));
+    assertTrue(carol, carol.contains("carol 3"));
+    assertEquals(1, backlog.size());
+
+    String bob = backlog.drain(_bob).getBody();
+    assertFalse(bob, bob.contains("bob 1"));
+    assertTrue(bob, bob.contains("bob 2"));
+    assertEquals(0, backlog.size());
+  }
+
+  @Test
+  public void tellsPeopleWhenEverythingOfTheirsWasDropped() {
+    OfflineBacklog backlog = new OfflineBacklog(10, 1);
+    backlog.add(_bob, event("bob 1"));
+    backlog.add(_carol, event("carol 1"));
+
+    Summary summary = backlog.drain(_bob);
+    assertEquals("while you were away, 1 update came in, but i couldn't hold on to them", summary.getBody());
+    assertNull(summary.getLevel());
+  }
+
+  @Test
+  public void discardingFreesRoomForOthers() {
+    OfflineBacklog backlog = new OfflineBacklog(10, 2);
+    backlog.add(_bob, event("bob 1"));
+    backlog.add(_bob, event("bob 2"));
+    backlog.discard(_bob);
+    assertEquals(0, backlog.size());
+    assertNull(backlog.drain(_bob));
+
+    backlog.add(_carol, event("carol 1"));
+    backlog.add(_carol, event("carol 2"));
+    assertEquals(2, backlog.size());
+    assertEquals(0, backlog.getDropped());
+  }
+
+  private Conversation conversation(String participant) {
+    return new Conversation(_con.getChatManager().createChat(participant, null));
+  }
+
+  private static LoggingEvent event(String message) {
+    return new LoggingEvent(Logger.class.getName(), LOGGER, Level.INFO, message, null);
+  }
+
+}
@@ -0,0 +1,64 @@
+package com.plpatterns.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author Jonathan Tran (jtran)
+ */
+public class ProgressTrackerTest {
+
+  private static final long TTL_NANOS = TimeUnit.MILLISECONDS.toNanos(ProgressTracker.FINISHED_TTL_MILLIS);
+
+  @Test
+  public void forgetsFinishedJobsAfterAWhile() {
+    ProgressTracker finished = ProgressTracker.start("test.finished", 10);
+    ProgressTracker running = ProgressTracker.start("test.running", 10);
+    finished.finish();
+    assertTrue(finished.isFinished());
+    assertFalse(running.isFinished());
+
+    long now = System.nanoTime();
+    ProgressTracker.sampleAll(now);
+    assertSame(finished, ProgressTracker.get("test.finished"));
+
+    ProgressTracker.sampleAll(now + TTL_NANOS);
+    assertNull(ProgressTracker.get("test.finished"));
+    assertSame(running, ProgressTracker.get("test.running"));
+    running.remove();
+  }
+
+  @Test
+  public void finishesOnce() throws Exception {
+    ProgressTracker tracker = ProgressTracker.start("test.once", 0);
+    tracker.add(5);
+    tracker.finish();
+    String first = tracker.toHumanReadableString();
+    Thread.sleep(20);
+    tracker.finish();
+
+    assertEquals(first, tracker.toHumanReadableString());
+    assertEquals(-1L, tracker.getEtaMillis());
+    tracker.remove();
+  }
+
+  @Test
+  public void estimatesFromTheSampledRate() {
+    ProgressTracker tracker = ProgressTracker.start("test.rate", 1000);
+    long start = System.nanoTime();
+    tracker.add(100);
+    tracker.sample(start + TimeUnit.SECONDS.toNanos(10));
+
+    assertEquals(10d, tracker.getRate(), 1d);
+    assertEquals(90000L, tracker.getEtaMillis(), 10000L);
+    tracker.remove();
+  }
+
+}
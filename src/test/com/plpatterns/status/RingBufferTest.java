@@ -0,0 +1,124 @@
+package com.plpatterns.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * @author Jonathan Tran (jtran)
+ */
+public class RingBufferTest {
+
+  @Test
+  public void roundsCapacityUpToPowerOfTwo() {
+    assertEquals(1, new RingBuffer<String>(1).capacity());
+    assertEquals(8, new RingBuffer<String>(5).capacity());
+    assertEquals(1024, new RingBuffer<String>(1024).capacity());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsZeroCapacity() {
+    new RingBuffer<String>(0);
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void rejectsNull() {
+    new RingBuffer<String>(4).offer(null);
+  }
+
+  @Test
+  public void pollsInOrderAndReportsFull() {
+    RingBuffer<Integer> buffer = new RingBuffer<Integer>(4);
+    assertTrue(buffer.isEmpty());
+    assertNull(buffer.poll());
+
+    for (int i = 0; i < 4; i++) {
+      assertTrue(buffer.offer(i));
+    }
+    assertFalse(buffer.offer(4));
+    assertEquals(4, buffer.size());
+
+    for (int i = 0; i < 4; i++) {
+      assertEquals(Integer.valueOf(i), buffer.poll());
+    }
+    assertNull(buffer.poll());
+    assertTrue(buffer.isEmpty());
+  }
+
+  @Test
+  public void reusesSlotsAfterWrappingAround() {
+    RingBuffer<Integer> buffer = new RingBuffer<Integer>(2);
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(buffer.offer(i));
+      assertEquals(Integer.valueOf(i), buffer.poll());
+    }
+    assertTrue(buffer.isEmpty());
+  }
+
+  @Test(timeout = 30000)
+  public void neverLosesOrDuplicatesUnderContention() throws Exception {
+    final int producers = 4;
+    final int consumers = 4;
+    final int perProducer = 100000;
+    final int total = producers * perProducer;
+    final RingBuffer<Integer> buffer = new RingBuffer<Integer>(64);
+    final AtomicIntegerArray seen = new AtomicIntegerArray(total);
+    final AtomicLong taken = new AtomicLong();
+    final CountDownLatch start = new CountDownLatch(1);
+
+    Thread[] threads = new Thread[producers + consumers];
+    for (int p = 0; p < producers; p++) {
+      final int base = p * perProducer;
+      threads[p] = new Thread(new Runnable() {
+        public void run() {
+          await(start);
+          for (int i = 0; i < perProducer; i++) {
+            while (!buffer.offer(base + i)) Thread.yield();
+          }
+        }
+      });
+    }
+    for (int c = 0; c < consumers; c++) {
+      threads[producers + c] = new Thread(new Runnable() {
+        public void run() {
+          await(start);
+          while (taken.get() < total) {
+            Integer e = buffer.poll();
+            if (e == null) {
+              Thread.yield();
+              continue;
+            }
+            seen.incrementAndGet(e);
+            taken.incrementAndGet();
+          }
+        }
+      });
+    }
+    for (Thread t : threads) t.start();
+    start.countDown();
+    for (Thread t : threads) t.join();
+
+    assertEquals(total, taken.get());
+    for (int i = 0; i < total; i++) {
+      assertEquals("times " + i + " was taken", 1, seen.get(i));
+    }
+    assertTrue(buffer.isEmpty());
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
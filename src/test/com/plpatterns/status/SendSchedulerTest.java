@@ -0,0 +1,134 @@
+package com.plpatterns.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.jivesoftware.smack.packet.Message;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author Jonathan Tran (jtran)
+ */
+public class SendSchedulerTest {
+
+  private static final Logger LOGGER = Logger.getLogger("status.test.SendSchedulerTest");
+
+  private final TestAppender _appender = new TestAppender();
+  private SendScheduler _scheduler;
+
+  @After
+  public void tearDown() {
+    if (_scheduler != null) _scheduler.shutdown(1000L);
+  }
+
+  @Test(timeout = 10000)
+  public void sendsTheMostUrgentLaneFirst() throws Exception {
+    // Nothing goes out until we're logged in.
+    _scheduler = new SendScheduler(_appender, 1000d, 10, 10, 60 * 1000L);
+    assertTrue(_scheduler.submit(SendScheduler.Lane.LOW, message("low"), null, 0L, null));
+    assertTrue(_scheduler.submit(SendScheduler.Lane.NORMAL, message("normal"), null, 0L, null));
+    assertTrue(_scheduler.submit(SendScheduler.Lane.URGENT, message("urgent"), null, 0L, null));
+    assertEquals(3, _scheduler.getDepth());
+
+    assertTrue(_appender.tryConnect());
+    TestConnection con = _appender.getTestConnection();
+    while (con.getSent().size() < 3) {
+      Thread.sleep(1);
+    }
+    assertEquals(Arrays.asList("urgent", "normal", "low"), con.getSent());
+    assertEquals(1, _scheduler.getSent(SendScheduler.Lane.URGENT));
+  }
+
+  @Test
+  public void shedsTheOldestLowMessageToMakeRoom() {
+    _scheduler = new SendScheduler(_appender, 1000d, 10, 2, 60 * 1000L);
+    DeliveryStats stats = new DeliveryStats();
+    assertTrue(_scheduler.submit(SendScheduler.Lane.LOW, message("first"), stats, 0L, null));
+    assertTrue(_scheduler.submit(SendScheduler.Lane.LOW, message("second"), stats, 0L, null));
+    assertTrue(_scheduler.submit(SendScheduler.Lane.URGENT, message("error"), stats, 0L, null));
+
+    assertEquals(1, _scheduler.getShed(SendScheduler.Lane.LOW));
+    assertEquals(1, stats.getShed());
+    assertEquals(1, _scheduler.getDepth(SendScheduler.Lane.LOW));
+    assertEquals(1, _scheduler.getDepth(SendScheduler.Lane.URGENT));
+  }
+
+  @Test
+  public void shedsNewcomersThatMatterLessThanEverythingWaiting() {
+    _scheduler = new SendScheduler(_appender, 1000d, 10, 1, 60 * 1000L);
+    assertTrue(_scheduler.submit(SendScheduler.Lane.URGENT, message("error"), null, 0L, null));
+    assertFalse(_scheduler.submit(SendScheduler.Lane.LOW, message("info"), null, 0L, null));
+
+    assertEquals(1, _scheduler.getShed(SendScheduler.Lane.LOW));
+    assertEquals(0, _scheduler.getShed(SendScheduler.Lane.URGENT));
+  }
+
+  @Test
+  public void shedUpdateLeavesTheThrottleOpen() {
+    _scheduler = new SendScheduler(_appender, 1000d, 10, 1, 60 * 1000L);
+    Conversation convo = conversation();
+
+    convo.sendUpdate("disk 80% full", Level.INFO);
+    assertFalse(convo.shouldNotify(event(Level.INFO)));
+
+    // An error pushes the update out before it's sent.
+    assertTrue(_scheduler.submit(SendScheduler.Lane.URGENT, message("error"), null, 0L, null));
+    assertEquals(1, convo.getStats().getShed());
+    assertTrue(convo.shouldNotify(event(Level.INFO)));
+    assertEquals(null, convo.getLastSentTo());
+  }
+
+  @Test(timeout = 10000)
+  public void staleUpdateLeavesTheThrottleOpen() throws Exception {
+    _scheduler = new SendScheduler(_appender, 1000d, 10, 10, 0L);
+    Conversation convo = conversation();
+
+    convo.sendUpdate("disk 80% full", Level.INFO);
+    while (_scheduler.getShed(SendScheduler.Lane.LOW) == 0) {
+      Thread.sleep(1);
+    }
+    assertTrue(convo.shouldNotify(event(Level.INFO)));
+  }
+
+  @Test
+  public void shutdownShedsWhatsWaitingAndGivesBackItsInterval() {
+    _scheduler = new SendScheduler(_appender, 1000d, 10, 10, 60 * 1000L);
+    Conversation convo = conversation();
+    LoggingEvent info = event(Level.INFO);
+
+    ThrottleClaim claim = convo.claimNotification(info);
+    convo.sendIm(new FanOutMessage("disk 80% full", info.timeStamp, Level.INFO), null, claim);
+    assertFalse(convo.shouldNotify(info));
+
+    _scheduler.shutdown(0L);
+    assertEquals(1, convo.getStats().getShed());
+    assertTrue(convo.shouldNotify(info));
+    assertFalse(_scheduler.submit(SendScheduler.Lane.URGENT, message("late"), null, 0L, null));
+  }
+
+  private Conversation conversation() {
+    TestConnection con = new TestConnection();
+    Conversation convo = new Conversation(con.getChatManager().createChat("bob@localhost", null));
+    convo.setMinMillisecondsBetweenMessages(60 * 1000L);
+    convo.setSendScheduler(_scheduler);
+    return convo;
+  }
+
+  private static Message message(String body) {
+    Message msg = new Message("bob@localhost", Message.Type.chat);
+    msg.setBody(body);
+    return msg;
+  }
+
+  private static LoggingEvent event(Level level) {
+    return new LoggingEvent(Logger.class.getName(), LOGGER, level, "test", null);
+  }
+
+}
@@ -0,0 +1,114 @@
+package com.plpatterns.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * @author Jonathan Tran (jtran)
+ */
+public class SubscriptionIndexTest {
+
+  private final TestConnection _con = new TestConnection();
+
+  @Test
+  public void normalizesPatterns() {
+    assertEquals("status.billing", SubscriptionIndex.normalize("status.billing"));
+    assertEquals("status.billing", SubscriptionIndex.normalize(" status.billing.* "));
+    assertEquals("", SubscriptionIndex.normalize("*"));
+    assertNull(SubscriptionIndex.normalize(null));
+    assertNull(SubscriptionIndex.normalize(".status"));
+    assertNull(SubscriptionIndex.normalize("status..billing"));
+    assertNull(SubscriptionIndex.normalize("status.*.billing"));
+    assertNull(SubscriptionIndex.normalize("status billing"));
+  }
+
+  @Test
+  public void watchersGetTheLoggerAndEverythingUnderIt() {
+    SubscriptionIndex index = new SubscriptionIndex();
+    Conversation billing = conversation("bob@localhost");
+    Conversation everything = conversation("carol@localhost");
+    assertTrue(index.add("status.billing", billing));
+    assertTrue(index.add("", everything));
+
+    assertEquals(set(billing, everything), collect(index, "status.billing"));
+    assertEquals(set(billing, everything), collect(index, "status.billing.invoices"));
+    assertEquals(set(everything), collect(index, "status.billingreport"));
+    assertEquals(set(everything), collect(index, "status"));
+    assertEquals(set(everything), collect(index, null));
+  }
+
+  @Test
+  public void addingAndRemovingAreIdempotent() {
+    SubscriptionIndex index = new SubscriptionIndex();
+    Conversation bob = conversation("bob@localhost");
+    assertTrue(index.isEmpty());
+
+    assertTrue(index.add("status.billing", bob));
+    assertFalse(index.add("status.billing", bob));
+    assertFalse(index.remove("status", bob));
+    assertFalse(index.remove("status.billing.invoices", bob));
+
+    assertTrue(index.remove("status.billing", bob));
+    assertFalse(index.remove("status.billing", bob));
+    assertTrue(index.isEmpty());
+    assertEquals(set(), collect(index, "status.billing"));
+  }
+
+  @Test
+  public void registryRoutesToWatchersAndTheUnfiltered() {
+    ConversationRegistry registry = new ConversationRegistry(10);
+    Conversation bob = registry.register(_con.getChatManager().createChat("bob@localhost", null)).getConversation();
+    Conversation carol = registry.register(_con.getChatManager().createChat("carol@localhost", null)).getConversation();
+
+    assertTrue(registry.watch(bob, "status.billing.*"));
+    assertFalse(registry.watch(bob, "status.billing"));
+    assertEquals(set(bob, carol), set(registry.recipientsFor("status.billing.x")));
+    assertEquals(set(carol), set(registry.recipientsFor("status.search")));
+
+    assertTrue(registry.unwatch(bob, "status.billing"));
+    assertEquals(set(bob, carol), set(registry.recipientsFor("status.search")));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void registryRejectsBadPatterns() {
+    ConversationRegistry registry = new ConversationRegistry(10);
+    Conversation bob = registry.register(_con.getChatManager().createChat("bob@localhost", null)).getConversation();
+    registry.watch(bob, "status..billing");
+  }
+
+  @Test
+  public void removedConversationsStopWatching() {
+    ConversationRegistry registry = new ConversationRegistry(10);
+    Conversation bob = registry.register(_con.getChatManager().createChat("bob@localhost", null)).getConversation();
+    Conversation carol = registry.register(_con.getChatManager().createChat("carol@localhost", null)).getConversation();
+    assertTrue(registry.watch(bob, "status.billing"));
+
+    registry.remove("bob@localhost");
+    assertFalse(registry.watch(bob, "status.search"));
+    assertEquals(set(carol), set(registry.recipientsFor("status.billing")));
+  }
+
+  private Conversation conversation(String participant) {
+    return new Conversation(_con.getChatManager().createChat(participant, null));
+  }
+
+  private static Set<Conversation> collect(SubscriptionIndex index, String loggerName) {
+    Set<Conversation> watchers = new LinkedHashSet<Conversation>();
+    index.collect(loggerName, watchers);
+    return watchers;
+  }
+
+  private static Set<Conversation> set(Conversation... convos) {
+    return new HashSet<Conversation>(Arrays.asList(convos));
+  }
+
+}
@@ -0,0 +1,43 @@
+package com.plpatterns.status;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.XMPPConnection;
+
+/**
+ * An {@link XmppAppender} that logs in on {@link TestConnection}s.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+class TestAppender extends XmppAppender {
+
+  private final List<TestConnection> _connections = new ArrayList<TestConnection>();
+
+  TestAppender() {
+    super(new ConnectionConfiguration("localhost", 5222), "status", "secret", "test");
+  }
+
+  @Override
+  protected XMPPConnection createConnection(ConnectionConfiguration conConfig) {
+    TestConnection con = new TestConnection(conConfig);
+    synchronized (_connections) {
+      _connections.add(con);
+    }
+    return con;
+  }
+
+  /** Every connection made so far, oldest first. */
+  List<TestConnection> getConnections() {
+    synchronized (_connections) {
+      return new ArrayList<TestConnection>(_connections);
+    }
+  }
+
+  /** The connection we're on now. */
+  TestConnection getTestConnection() {
+    return (TestConnection)getConnection();
+  }
+
+}
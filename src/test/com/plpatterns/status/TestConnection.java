@@ -0,0 +1,119 @@
+package com.plpatterns.status;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.Roster;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * An {@link XMPPConnection} that never touches the network.  It remembers
+ * the bodies of messages sent on it, can be made to fail sends, and drops
+ * when told to.
+ *
+ * @author Jonathan Tran (jtran)
+ */
+class TestConnection extends XMPPConnection {
+
+  private final List<ConnectionListener> _listeners = new ArrayList<ConnectionListener>();
+  private final List<String> _sent = new ArrayList<String>();
+  private volatile boolean _connected;
+  private volatile boolean _loggedIn;
+  private volatile String _failOn;
+
+  TestConnection() {
+    this(new ConnectionConfiguration("localhost", 5222));
+  }
+
+  TestConnection(ConnectionConfiguration conConfig) {
+    super(conConfig);
+  }
+
+  /**
+   * Makes sending any message whose body or recipient contains the given
+   * text throw.
+   */
+  void failSendsContaining(String text) {
+    _failOn = text;
+  }
+
+  void drop() {
+    _connected = false;
+    _loggedIn = false;
+  }
+
+  List<ConnectionListener> getConnectionListeners() {
+    return _listeners;
+  }
+
+  List<String> getSent() {
+    synchronized (_sent) {
+      return new ArrayList<String>(_sent);
+    }
+  }
+
+  @Override
+  public void connect() {
+    _connected = true;
+  }
+
+  @Override
+  public boolean isConnected() {
+    return _connected;
+  }
+
+  @Override
+  public void login(String username, String password, String resource) {
+    _loggedIn = true;
+  }
+
+  @Override
+  public boolean isAuthenticated() {
+    return _loggedIn;
+  }
+
+  @Override
+  public Roster getRoster() {
+    return null;
+  }
+
+  @Override
+  public void sendPacket(Packet packet) {
+    String body = (packet instanceof Message) ? ((Message)packet).getBody() : null;
+    String failOn = _failOn;
+    if (failOn != null && ((body != null && body.contains(failOn)) ||
+            (packet.getTo() != null && packet.getTo().contains(failOn)))) {
+      throw new IllegalStateException("failed sending " + body);
+    }
+    synchronized (_sent) {
+      _sent.add(body);
+    }
+  }
+
+  @Override
+  public void addPacketListener(PacketListener listener, PacketFilter filter) {
+    // Nothing will ever arrive.
+  }
+
+  @Override
+  public void addConnectionListener(ConnectionListener listener) {
+    _listeners.add(listener);
+  }
+
+  @Override
+  public void removeConnectionListener(ConnectionListener listener) {
+    _listeners.remove(listener);
+  }
+
+  @Override
+  public void disconnect() {
+    drop();
+  }
+
+}
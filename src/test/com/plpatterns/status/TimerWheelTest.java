@@ -0,0 +1,183 @@
+package com.plpatterns.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Jonathan Tran (jtran)
+ */
+public class TimerWheelTest {
+
+  private TimerWheel _wheel;
+
+  @Before
+  public void setUp() {
+    // A small wheel, so longer delays take several trips around it.
+    _wheel = new TimerWheel("test-timer", 5L, 8);
+  }
+
+  @After
+  public void tearDown() {
+    _wheel.stop();
+  }
+
+  @Test(timeout = 10000)
+  public void runsTasksNoSoonerThanTheirDelay() throws Exception {
+    long[] delays = { 0L, 3L, 17L, 40L, 130L };
+    for (long delay : delays) {
+      final CountDownLatch ran = new CountDownLatch(1);
+      long start = System.nanoTime();
+      TimerWheel.Timeout timeout = _wheel.schedule(new Runnable() {
+        public void run() {
+          ran.countDown();
+        }
+      }, delay);
+      ran.await();
+
+      long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertTrue("ran after " + elapsedMillis + " ms instead of " + delay, elapsedMillis >= delay);
+      assertTrue(timeout.isExpired());
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void runsEverythingScheduledFromManyThreads() throws Exception {
+    final int threads = 4;
+    final int perThread = 500;
+    final CountDownLatch ran = new CountDownLatch(threads * perThread);
+    final Runnable task = new Runnable() {
+      public void run() {
+        ran.countDown();
+      }
+    };
+
+    Thread[] schedulers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      schedulers[t] = new Thread(new Runnable() {
+        public void run() {
+          for (int i = 0; i < perThread; i++) {
+            _wheel.schedule(task, i % 100);
+          }
+        }
+      });
+      schedulers[t].start();
+    }
+    for (Thread t : schedulers) t.join();
+
+    ran.await();
+    assertEquals(0, ran.getCount());
+  }
+
+  @Test(timeout = 10000)
+  public void cancelledTasksDontRun() throws Exception {
+    final AtomicBoolean ran = new AtomicBoolean();
+    TimerWheel.Timeout timeout = _wheel.schedule(new Runnable() {
+      public void run() {
+        ran.set(true);
+      }
+    }, 30L);
+    assertTrue(timeout.cancel());
+
+    final CountDownLatch later = new CountDownLatch(1);
+    _wheel.schedule(new Runnable() {
+      public void run() {
+        later.countDown();
+      }
+    }, 60L);
+    later.await();
+
+    assertFalse(ran.get());
+    assertTrue(timeout.isCancelled());
+    assertFalse(timeout.isExpired());
+  }
+
+  @Test(timeout = 10000)
+  public void keepsGoingAfterATaskFails() throws Exception {
+    _wheel.schedule(new Runnable() {
+      public void run() {
+        throw new IllegalStateException("boom");
+      }
+    }, 0L);
+
+    final CountDownLatch ran = new CountDownLatch(1);
+    _wheel.schedule(new Runnable() {
+      public void run() {
+        ran.countDown();
+      }
+    }, 10L);
+    ran.await();
+  }
+
+  @Test
+  public void schedulingAfterStopIsCancelled() {
+    _wheel.stop();
+    TimerWheel.Timeout timeout = _wheel.schedule(new Runnable() {
+      public void run() {
+      }
+    }, 0L);
+
+    assertTrue(timeout.isCancelled());
+  }
+
+  @Test(timeout = 10000)
+  public void handsSlowTasksToTheExecutor() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        return new Thread(r, "test-executor");
+      }
+    });
+    try {
+      final AtomicReference<String> thread = new AtomicReference<String>();
+      final CountDownLatch ran = new CountDownLatch(1);
+      _wheel.schedule(new Runnable() {
+        public void run() {
+          thread.set(Thread.currentThread().getName());
+          ran.countDown();
+        }
+      }, 10L, executor);
+      ran.await();
+
+      assertEquals("test-executor", thread.get());
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void dropsTasksForAShutDownExecutor() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.shutdown();
+    final AtomicLong ran = new AtomicLong();
+    _wheel.schedule(new Runnable() {
+      public void run() {
+        ran.incrementAndGet();
+      }
+    }, 0L, executor);
+
+    final CountDownLatch later = new CountDownLatch(1);
+    _wheel.schedule(new Runnable() {
+      public void run() {
+        later.countDown();
+      }
+    }, 20L);
+    later.await();
+
+    assertEquals(0, ran.get());
+  }
+
+}
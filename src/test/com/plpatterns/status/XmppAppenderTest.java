@@ -0,0 +1,132 @@
+package com.plpatterns.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.jivesoftware.smack.Chat;
+import org.jivesoftware.smack.packet.Message;
+import org.junit.Test;
+
+/**
+ * @author Jonathan Tran (jtran)
+ */
+public class XmppAppenderTest {
+
+  @Test
+  public void reconnectsOnAFreshConnection() throws Exception {
+    TestAppender appender = new TestAppender();
+    assertTrue(appender.tryConnect());
+    TestConnection first = appender.getConnections().get(0);
+
+    Chat chat = first.getChatManager().createChat("bob@localhost", null);
+    Conversation convo = appender.getConversationRegistry().register(chat).getConversation();
+
+    // Smack's reader and writer each report the drop; the first report
+    // gets us logged back in.
+    first.drop();
+    assertTrue(appender.tryConnect());
+    assertEquals(2, appender.getConnections().size());
+    TestConnection second = appender.getConnections().get(1);
+    assertSame(second, appender.getConnection());
+
+    // The late report can't reach us through the old connection.
+    assertTrue(first.getConnectionListeners().isEmpty());
+    assertEquals(1, second.getConnectionListeners().size());
+
+    // Bob's chat moved to the new connection and kept its thread.
+    Chat moved = convo.getChat();
+    assertNotSame(chat, moved);
+    assertEquals("bob@localhost", moved.getParticipant());
+    assertEquals(chat.getThreadID(), moved.getThreadID());
+    assertSame(moved, second.getChatManager().getThreadChat(chat.getThreadID()));
+
+    // Still logged in, so nothing new is made.
+    assertTrue(appender.tryConnect());
+    assertEquals(2, appender.getConnections().size());
+  }
+
+  @Test
+  public void oneFailedSendDoesNotSkipTheRest() throws Exception {
+    TestAppender appender = new TestAppender();
+    assertTrue(appender.tryConnect());
+    TestConnection con = appender.getTestConnection();
+    ConversationRegistry registry = appender.getConversationRegistry();
+    registry.register(con.getChatManager().createChat("bob@localhost", null));
+    registry.register(con.getChatManager().createChat("carol@localhost", null));
+    con.failSendsContaining("bob");
+
+    LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+            Logger.getLogger("status.test"), Level.ERROR, "disk full", null);
+    assertFalse(appender.deliver(event));
+    assertEquals(1, con.getSent().size());
+    assertEquals(1, registry.get("carol@localhost").getStats().getSent());
+  }
+
+  @Test(timeout = 10000)
+  public void evictsEvenWhenTooBusyForCommands() throws Exception {
+    TestAppender appender = new TestAppender();
+    appender.setMaxConversations(1);
+    appender.setMaxQueuedCommands(1);
+    appender.setOfflineBacklogSize(10);
+    assertTrue(appender.tryConnect());
+    TestConnection con = appender.getTestConnection();
+    ConversationRegistry registry = appender.getConversationRegistry();
+
+    Conversation bob = registry.register(con.getChatManager().createChat("bob@localhost", null))
+            .getConversation();
+    bob.setLastHeardFrom(new Date());
+    appender.getOfflineBacklog().add(bob, new LoggingEvent(Logger.class.getName(),
+            Logger.getLogger("status.test"), Level.INFO, "held for bob", null));
+
+    // Carol IMs us, which evicts Bob, but there's no room to run her command.
+    final CountDownLatch busy = new CountDownLatch(1);
+    Runnable waitForIt = new Runnable() {
+      public void run() {
+        try {
+          busy.await();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    CommandExecutor commands = appender.getCommandExecutor();
+    assertTrue(commands.submit("dave@localhost", waitForIt));
+    while (commands.getQueueDepth() > 0) {
+      Thread.sleep(1);
+    }
+    assertTrue(commands.submit("dave@localhost", waitForIt));
+
+    Chat carol = con.getChatManager().createChat("carol@localhost", null);
+    Message hi = new Message("status@localhost", Message.Type.chat);
+    hi.setFrom("carol@localhost");
+    hi.setThread(carol.getThreadID());
+    hi.setBody("hi");
+    Method deliver = Chat.class.getDeclaredMethod("deliver", Message.class);
+    deliver.setAccessible(true);
+    deliver.invoke(carol, hi);
+
+    assertNull(registry.get("bob@localhost"));
+    assertNotNull(registry.get("carol@localhost"));
+    assertEquals(0, appender.getOfflineBacklog().size());
+    List<String> sent = con.getSent();
+    assertEquals(2, sent.size());
+    assertTrue(sent.get(0), sent.get(0).startsWith("I'm holding a conversation"));
+    assertTrue(sent.get(1), sent.get(1).startsWith("hi, i'll start sending updates"));
+    busy.countDown();
+  }
+
+}